@@ -0,0 +1,482 @@
+package org.sitenv.referenceccda.batch;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.log4j.Logger;
+import org.sitenv.referenceccda.dto.ResultMetaData;
+import org.sitenv.referenceccda.dto.ValidationResultsDto;
+import org.sitenv.referenceccda.dto.ValidationResultsMetaData;
+import org.sitenv.referenceccda.embedded.EmbeddedCCDAValidator;
+import org.sitenv.referenceccda.embedded.ValidationOptions;
+import org.sitenv.referenceccda.validators.CCDADocument;
+import org.sitenv.referenceccda.validators.RefCCDAValidationResult;
+import org.sitenv.referenceccda.validators.enums.ValidationResultType;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Validates every C-CDA document of a directory tree or ZIP file from the command line, outside of the servlet
+ * container, with an {@link EmbeddedCCDAValidator} configured with the same properties as the service.
+ * <p>
+ * Documents are validated in parallel, by default on one thread per available processor. The results of each
+ * document are appended to the output file as one JSON object per line, holding the document name and the
+ * resultsMetaData and ccdaValidationResults of the service response, without the echoed file contents. Once all
+ * documents are done, the number of documents, service errors and results of each ValidationResultType are printed
+ * and written to the summary file.
+ * <p>
+ * The output file is also the checkpoint of the run: a line is only written once its document is validated, so a run
+ * restarted with --resume drops a partly written last line and skips the documents already in the output, whose
+ * results are still counted in the summary.
+ * <p>
+ * The properties set as context parameters in referenceccdaservice.xml are given as system properties or in a
+ * properties file, for example:
+ * <pre>
+ * java -cp "referenceccdaservice/WEB-INF/classes:referenceccdaservice/WEB-INF/lib/*" \
+ *     org.sitenv.referenceccda.batch.BatchValidator --properties validator.properties \
+ *     --objective C-CDA_IG_Plus_Vocab /path/to/documents.zip results.jsonl
+ * </pre>
+ */
+public class BatchValidator {
+	private static Logger logger = Logger.getLogger(BatchValidator.class);
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	private static final String XML_EXTENSION = ".xml";
+	private static final String SUMMARY_EXTENSION = ".summary.json";
+	private static final String USAGE = "Usage: BatchValidator --objective <validationObjective>"
+			+ " [--reference <referenceFileName>] [--threads <count>] [--properties <file>] [--summary <file>] [--resume]"
+			+ " <directory or zip file> <output file>";
+
+	private final EmbeddedCCDAValidator validator;
+	private final ValidationOptions options;
+	private final int threads;
+	private final ObjectMapper objectMapper = new ObjectMapper();
+
+	/**
+	 * @param options the options of each validation, whose echoFileContents is ignored as the results are written
+	 *                without the file contents
+	 */
+	public BatchValidator(EmbeddedCCDAValidator validator, ValidationOptions options, int threads) {
+		this.validator = validator;
+		this.options = new ValidationOptions.ValidationOptionsBuilder(options).echoFileContents(false).build();
+		this.threads = threads;
+	}
+
+	public static void main(String[] args) throws Exception {
+		String validationObjective = null;
+		String referenceFileName = "";
+		int threads = Runtime.getRuntime().availableProcessors();
+		File propertiesFile = null;
+		File summaryFile = null;
+		boolean resume = false;
+		List<String> files = new ArrayList<String>();
+		try {
+			for (int i = 0; i < args.length; i++) {
+				switch (args[i]) {
+				case "--objective":
+					validationObjective = args[++i];
+					break;
+				case "--reference":
+					referenceFileName = args[++i];
+					break;
+				case "--threads":
+					threads = Integer.parseInt(args[++i]);
+					break;
+				case "--properties":
+					propertiesFile = new File(args[++i]);
+					break;
+				case "--summary":
+					summaryFile = new File(args[++i]);
+					break;
+				case "--resume":
+					resume = true;
+					break;
+				default:
+					if (args[i].startsWith("--")) {
+						throw new IllegalArgumentException("Unknown option " + args[i]);
+					}
+					files.add(args[i]);
+				}
+			}
+			if (validationObjective == null || files.size() != 2 || threads < 1) {
+				throw new IllegalArgumentException("A validation objective, an input and an output file are required");
+			}
+		} catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+			System.err.println(e.getMessage() != null ? e.getMessage() : "Missing option value");
+			System.err.println(USAGE);
+			System.exit(2);
+		}
+		Properties properties = loadProperties(propertiesFile);
+		File output = new File(files.get(1));
+		if (summaryFile == null) {
+			summaryFile = new File(output.getPath() + SUMMARY_EXTENSION);
+		}
+		try (EmbeddedCCDAValidator validator = EmbeddedCCDAValidator.create(properties)) {
+			BatchValidator batchValidator = new BatchValidator(validator,
+					new ValidationOptions.ValidationOptionsBuilder(validationObjective).referenceFileName(referenceFileName)
+							.build(), threads);
+			long start = System.nanoTime();
+			BatchSummary summary = batchValidator.validate(new File(files.get(0)), output, resume);
+			batchValidator.writeSummary(summary, summaryFile);
+			System.out.println("Validated " + summary.getDocuments() + " documents (" + summary.getServiceErrors()
+					+ " service errors), " + summary.getDocumentsThisRun() + " in this run in "
+					+ TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start) + " s");
+			for (Map.Entry<String, Long> resultCount : summary.getResultCounts().entrySet()) {
+				System.out.println("  " + resultCount.getKey() + ": " + resultCount.getValue());
+			}
+		}
+	}
+
+	/**
+	 * Validates the documents of the given directory or ZIP file which are not in the output file yet, appending their
+	 * results to it.
+	 *
+	 * @param resume whether to continue the run which wrote the output file, rather than refusing to append to it
+	 * @return the summary of all the documents in the output file
+	 */
+	public BatchSummary validate(File input, File output, boolean resume) throws IOException, InterruptedException {
+		BatchSummary summary = new BatchSummary();
+		Set<String> completed = new HashSet<String>();
+		if (output.length() > 0) {
+			if (!resume) {
+				throw new IOException("The output file " + output + " already exists, use --resume to continue the run"
+						+ " which wrote it or remove it to start over");
+			}
+			readCompletedDocuments(output, completed, summary);
+		}
+		try (DocumentSource source = openDocumentSource(input);
+				Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(output, true), UTF_8))) {
+			List<String> pending = new ArrayList<String>();
+			for (String name : source.listDocuments()) {
+				if (!completed.contains(name)) {
+					pending.add(name);
+				}
+			}
+			logger.info("Validating " + pending.size() + " documents of " + input + " on " + threads + " threads, "
+					+ completed.size() + " already validated");
+			AtomicReference<IOException> writeFailure = new AtomicReference<IOException>();
+			// bounds the documents read but not validated yet
+			Semaphore inFlight = new Semaphore(threads * 2);
+			ExecutorService executor = Executors.newFixedThreadPool(threads);
+			try {
+				for (String name : pending) {
+					inFlight.acquire();
+					if (writeFailure.get() != null) {
+						break;
+					}
+					executor.execute(new ValidationTask(source, name, writer, summary, inFlight, writeFailure));
+				}
+			} finally {
+				executor.shutdown();
+				executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+			}
+			if (writeFailure.get() != null) {
+				throw writeFailure.get();
+			}
+		}
+		return summary;
+	}
+
+	public void writeSummary(BatchSummary summary, File summaryFile) throws IOException {
+		try (OutputStream out = new FileOutputStream(summaryFile)) {
+			objectMapper.writeValue(out, summary);
+		}
+	}
+
+	private void readCompletedDocuments(File output, Set<String> completed, BatchSummary summary) throws IOException {
+		long completeLength = 0;
+		long position = 0;
+		try (InputStream in = new BufferedInputStream(new FileInputStream(output))) {
+			ByteArrayOutputStream line = new ByteArrayOutputStream();
+			int b;
+			while ((b = in.read()) != -1) {
+				position++;
+				if (b != '\n') {
+					line.write(b);
+					continue;
+				}
+				if (line.size() > 0) {
+					Map<?, ?> record = objectMapper.readValue(line.toByteArray(), Map.class);
+					completed.add((String) record.get("file"));
+					summary.addPrevious((Map<?, ?>) record.get("resultsMetaData"));
+				}
+				completeLength = position;
+				line.reset();
+			}
+		}
+		if (completeLength < position) {
+			logger.warn("Dropping the partly written last line of " + output);
+			try (RandomAccessFile file = new RandomAccessFile(output, "rw")) {
+				file.setLength(completeLength);
+			}
+		}
+		logger.info("Resuming after the " + completed.size() + " documents validated in " + output);
+	}
+
+	/**
+	 * @return the properties of the given file, or no properties if it is null
+	 */
+	static Properties loadProperties(File propertiesFile) throws IOException {
+		Properties properties = new Properties();
+		if (propertiesFile != null) {
+			try (InputStream in = new FileInputStream(propertiesFile)) {
+				properties.load(in);
+			}
+		}
+		return properties;
+	}
+
+	/**
+	 * @return the results of a document which could not be read
+	 */
+	static ValidationResultsDto readErrorResults(IOException e) {
+		ValidationResultsDto results = new ValidationResultsDto();
+		results.setResultsMetaData(new ValidationResultsMetaData());
+		results.getResultsMetaData().setServiceError(true);
+		results.getResultsMetaData().setServiceErrorMessage("Error reading the document: " + e.getMessage());
+		results.setCcdaValidationResults(Collections.<RefCCDAValidationResult> emptyList());
+		return results;
+	}
+
+	private static DocumentSource openDocumentSource(File input) throws IOException {
+		if (input.isDirectory()) {
+			return new DirectoryDocumentSource(input.toPath());
+		} else if (input.isFile()) {
+			return new ZipDocumentSource(new ZipFile(input));
+		}
+		throw new IOException("The input " + input + " is neither a directory nor a ZIP file");
+	}
+
+	static boolean isXMLFileName(String name) {
+		return name.toLowerCase().endsWith(XML_EXTENSION);
+	}
+
+	private class ValidationTask implements Runnable {
+		private final DocumentSource source;
+		private final String name;
+		private final Writer writer;
+		private final BatchSummary summary;
+		private final Semaphore inFlight;
+		private final AtomicReference<IOException> writeFailure;
+
+		ValidationTask(DocumentSource source, String name, Writer writer, BatchSummary summary, Semaphore inFlight,
+				AtomicReference<IOException> writeFailure) {
+			this.source = source;
+			this.name = name;
+			this.writer = writer;
+			this.summary = summary;
+			this.inFlight = inFlight;
+			this.writeFailure = writeFailure;
+		}
+
+		@Override
+		public void run() {
+			try {
+				ValidationResultsDto results;
+				try {
+					results = validator.validate(source.read(name), options);
+				} catch (IOException e) {
+					logger.error("Error reading " + name + ": " + e.getMessage());
+					results = readErrorResults(e);
+				}
+				Map<String, Object> record = new LinkedHashMap<String, Object>();
+				record.put("file", name);
+				record.put("resultsMetaData", results.getResultsMetaData());
+				record.put("ccdaValidationResults", results.getCcdaValidationResults());
+				String line = objectMapper.writeValueAsString(record);
+				synchronized (writer) {
+					writer.write(line);
+					writer.write('\n');
+					writer.flush();
+				}
+				summary.add(results.getResultsMetaData());
+			} catch (IOException e) {
+				logger.error("Error writing the results of " + name + ": " + e.getMessage());
+				writeFailure.compareAndSet(null, e);
+			} finally {
+				inFlight.release();
+			}
+		}
+	}
+
+	/**
+	 * The number of documents, service errors and results of each type of a run, including the documents validated
+	 * before it was resumed.
+	 */
+	public static class BatchSummary {
+		private long documents;
+		private long documentsThisRun;
+		private long serviceErrors;
+		private final Map<String, Long> resultCounts = new LinkedHashMap<String, Long>();
+
+		BatchSummary() {
+			for (ValidationResultType resultType : ValidationResultType.values()) {
+				resultCounts.put(resultType.getTypePrettyName(), 0L);
+			}
+		}
+
+		synchronized void add(ValidationResultsMetaData resultsMetaData) {
+			documentsThisRun++;
+			add(resultsMetaData.isServiceError());
+			for (ResultMetaData resultMetaData : resultsMetaData.getResultMetaData()) {
+				addResultCount(resultMetaData.getType(), resultMetaData.getCount());
+			}
+		}
+
+		/**
+		 * Adds a document read back from the output file, as its results metadata parsed from JSON.
+		 */
+		synchronized void addPrevious(Map<?, ?> resultsMetaData) {
+			add(Boolean.TRUE.equals(resultsMetaData.get("serviceError")));
+			List<?> resultMetaData = (List<?>) resultsMetaData.get("resultMetaData");
+			if (resultMetaData != null) {
+				for (Object typeCount : resultMetaData) {
+					addResultCount((String) ((Map<?, ?>) typeCount).get("type"),
+							((Number) ((Map<?, ?>) typeCount).get("count")).longValue());
+				}
+			}
+		}
+
+		private void add(boolean serviceError) {
+			documents++;
+			if (serviceError) {
+				serviceErrors++;
+			}
+		}
+
+		private void addResultCount(String type, long count) {
+			Long previous = resultCounts.get(type);
+			resultCounts.put(type, previous != null ? previous + count : count);
+		}
+
+		public synchronized long getDocuments() {
+			return documents;
+		}
+
+		public synchronized long getDocumentsThisRun() {
+			return documentsThisRun;
+		}
+
+		public synchronized long getServiceErrors() {
+			return serviceErrors;
+		}
+
+		public synchronized Map<String, Long> getResultCounts() {
+			return new LinkedHashMap<String, Long>(resultCounts);
+		}
+	}
+
+	/**
+	 * The documents to validate, which may be read from several threads at once.
+	 */
+	private interface DocumentSource extends Closeable {
+		/**
+		 * @return the names of the documents in a stable order
+		 */
+		List<String> listDocuments() throws IOException;
+
+		CCDADocument read(String name) throws IOException;
+	}
+
+	private static class DirectoryDocumentSource implements DocumentSource {
+		private final Path directory;
+
+		DirectoryDocumentSource(Path directory) {
+			this.directory = directory;
+		}
+
+		@Override
+		public List<String> listDocuments() throws IOException {
+			final List<String> names = new ArrayList<String>();
+			Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
+				@Override
+				public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+					String name = directory.relativize(file).toString().replace(File.separatorChar, '/');
+					if (attributes.isRegularFile() && isXMLFileName(name)) {
+						names.add(name);
+					}
+					return FileVisitResult.CONTINUE;
+				}
+			});
+			Collections.sort(names);
+			return names;
+		}
+
+		@Override
+		public CCDADocument read(String name) throws IOException {
+			return CCDADocument.fromPath(directory.resolve(name));
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+
+	private static class ZipDocumentSource implements DocumentSource {
+		private final ZipFile zipFile;
+
+		ZipDocumentSource(ZipFile zipFile) {
+			this.zipFile = zipFile;
+		}
+
+		@Override
+		public List<String> listDocuments() {
+			List<String> names = new ArrayList<String>();
+			Enumeration<? extends ZipEntry> entries = zipFile.entries();
+			while (entries.hasMoreElements()) {
+				ZipEntry entry = entries.nextElement();
+				if (!entry.isDirectory() && isXMLFileName(entry.getName())) {
+					names.add(entry.getName());
+				}
+			}
+			Collections.sort(names);
+			return names;
+		}
+
+		@Override
+		public CCDADocument read(String name) throws IOException {
+			try (InputStream in = zipFile.getInputStream(zipFile.getEntry(name))) {
+				return CCDADocument.fromBytes(name, IOUtils.toByteArray(in));
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			zipFile.close();
+		}
+	}
+}
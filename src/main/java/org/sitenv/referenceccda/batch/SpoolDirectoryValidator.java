@@ -0,0 +1,437 @@
+package org.sitenv.referenceccda.batch;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+import org.sitenv.referenceccda.dto.ValidationResultsDto;
+import org.sitenv.referenceccda.embedded.EmbeddedCCDAValidator;
+import org.sitenv.referenceccda.embedded.ValidationOptions;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Validates the C-CDA documents dropped into the inbox of a spool directory as they arrive, with an
+ * {@link EmbeddedCCDAValidator} configured with the same properties as the service, until the process is stopped.
+ * <p>
+ * The spool directory holds the following folders, which are created if missing:
+ * <ul>
+ * <li>inbox: where the .xml documents are dropped. A document is only picked up once it has not been modified for
+ * --settle-millis, so producers which cannot write under another name and rename should write it in one go.</li>
+ * <li>processing: the documents being validated, in a folder of each running validator holding a lock on its
+ * .lock file. A document is claimed by an atomic rename from the inbox, so several validators, or a validator and
+ * another consumer, may watch the same inbox without validating a document twice.</li>
+ * <li>outbox: the results of each document as &lt;document name&gt;.json, in the format of the validation endpoint
+ * without the echoed file contents. They are written under a .part name and renamed once complete.</li>
+ * <li>done: the documents which were validated, whatever their results.</li>
+ * <li>failed: the documents which could not be validated, i.e. whose results are a service error.</li>
+ * </ul>
+ * The inbox is watched with a {@link WatchService} and rescanned on every change, or every --settle-millis while
+ * documents are settling. Documents are claimed only as workers become free, oldest first, so that the documents not
+ * started yet stay in the inbox for the other validators. When a validator starts, the documents of the processing
+ * folders whose lock is not held, left by a validator which was killed, are returned to the inbox and the folders
+ * deleted. The folders of the validators still running are left alone. The lock is a {@link FileLock}, so validators
+ * sharing an inbox on a network file system need one which supports them.
+ * <pre>
+ * java -cp "referenceccdaservice/WEB-INF/classes:referenceccdaservice/WEB-INF/lib/*" \
+ *     org.sitenv.referenceccda.batch.SpoolDirectoryValidator --properties validator.properties \
+ *     --objective C-CDA_IG_Plus_Vocab /var/spool/ccda
+ * </pre>
+ */
+public class SpoolDirectoryValidator implements Closeable {
+	private static Logger logger = Logger.getLogger(SpoolDirectoryValidator.class);
+
+	private static final String RESULTS_EXTENSION = ".json";
+	private static final String PARTIAL_EXTENSION = ".part";
+	private static final String PROCESSING_PREFIX = "validator-";
+	private static final String LOCK_FILE_NAME = ".lock";
+	private static final long DEFAULT_SETTLE_MILLIS = 1000;
+	private static final String USAGE = "Usage: SpoolDirectoryValidator --objective <validationObjective>"
+			+ " [--reference <referenceFileName>] [--threads <count>] [--properties <file>] [--settle-millis <millis>]"
+			+ " <spool directory>";
+
+	private final EmbeddedCCDAValidator validator;
+	private final ValidationOptions options;
+	private final int threads;
+	private final long settleMillis;
+	private final Path inbox;
+	private final Path processingRoot;
+	// the processing folder of this validator, set while it runs
+	private Path processing;
+	private FileChannel processingLockChannel;
+	private FileLock processingLock;
+	private final Path outbox;
+	private final Path done;
+	private final Path failed;
+	private final ObjectMapper objectMapper = new ObjectMapper();
+	// bounds the documents claimed but not validated yet
+	private final Semaphore workers;
+	private final CountDownLatch stopped = new CountDownLatch(1);
+	private volatile boolean running;
+	private volatile boolean closed;
+
+	/**
+	 * @param options the options of each validation, whose echoFileContents is ignored as the results are written
+	 *                without the file contents
+	 */
+	public SpoolDirectoryValidator(EmbeddedCCDAValidator validator, ValidationOptions options, int threads,
+			long settleMillis, Path spoolDirectory) throws IOException {
+		this.validator = validator;
+		this.options = new ValidationOptions.ValidationOptionsBuilder(options).echoFileContents(false).build();
+		this.threads = threads;
+		this.settleMillis = settleMillis;
+		this.inbox = Files.createDirectories(spoolDirectory.resolve("inbox"));
+		this.processingRoot = Files.createDirectories(spoolDirectory.resolve("processing"));
+		this.outbox = Files.createDirectories(spoolDirectory.resolve("outbox"));
+		this.done = Files.createDirectories(spoolDirectory.resolve("done"));
+		this.failed = Files.createDirectories(spoolDirectory.resolve("failed"));
+		this.workers = new Semaphore(threads);
+	}
+
+	public static void main(String[] args) throws Exception {
+		String validationObjective = null;
+		String referenceFileName = "";
+		int threads = Runtime.getRuntime().availableProcessors();
+		File propertiesFile = null;
+		long settleMillis = DEFAULT_SETTLE_MILLIS;
+		List<String> files = new ArrayList<String>();
+		try {
+			for (int i = 0; i < args.length; i++) {
+				switch (args[i]) {
+				case "--objective":
+					validationObjective = args[++i];
+					break;
+				case "--reference":
+					referenceFileName = args[++i];
+					break;
+				case "--threads":
+					threads = Integer.parseInt(args[++i]);
+					break;
+				case "--properties":
+					propertiesFile = new File(args[++i]);
+					break;
+				case "--settle-millis":
+					settleMillis = Long.parseLong(args[++i]);
+					break;
+				default:
+					if (args[i].startsWith("--")) {
+						throw new IllegalArgumentException("Unknown option " + args[i]);
+					}
+					files.add(args[i]);
+				}
+			}
+			if (validationObjective == null || files.size() != 1 || threads < 1 || settleMillis < 1) {
+				throw new IllegalArgumentException("A validation objective and a spool directory are required");
+			}
+		} catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+			System.err.println(e.getMessage() != null ? e.getMessage() : "Missing option value");
+			System.err.println(USAGE);
+			System.exit(2);
+		}
+		try (EmbeddedCCDAValidator validator = EmbeddedCCDAValidator.create(BatchValidator.loadProperties(propertiesFile))) {
+			final SpoolDirectoryValidator spoolValidator = new SpoolDirectoryValidator(validator,
+					new ValidationOptions.ValidationOptionsBuilder(validationObjective).referenceFileName(referenceFileName)
+							.build(), threads, settleMillis, new File(files.get(0)).toPath());
+			Runtime.getRuntime().addShutdownHook(new Thread() {
+				@Override
+				public void run() {
+					spoolValidator.close();
+				}
+			});
+			spoolValidator.run();
+		}
+	}
+
+	/**
+	 * Validates the documents of the inbox as they arrive, until {@link #close()} is called, then waits for the
+	 * documents being validated.
+	 */
+	public void run() throws IOException, InterruptedException {
+		running = true;
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try (WatchService watchService = inbox.getFileSystem().newWatchService()) {
+			lockProcessingDirectory();
+			returnClaimedDocuments();
+			inbox.register(watchService, ENTRY_CREATE, ENTRY_MODIFY);
+			logger.info("Watching " + inbox + " with " + threads + " threads");
+			while (!closed) {
+				boolean settling = claimSettledDocuments(executor);
+				WatchKey key = settling ? watchService.poll(settleMillis, TimeUnit.MILLISECONDS)
+						: watchService.poll(1, TimeUnit.SECONDS);
+				if (key != null) {
+					// the inbox is rescanned rather than following the events, which also recovers from an overflow
+					key.pollEvents();
+					if (!key.reset()) {
+						throw new IOException("The inbox " + inbox + " can no longer be watched");
+					}
+				}
+			}
+		} finally {
+			executor.shutdown();
+			executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+			releaseProcessingDirectory();
+			stopped.countDown();
+			logger.info("Stopped watching " + inbox);
+		}
+	}
+
+	/**
+	 * Stops claiming documents and waits for the documents being validated, if {@link #run()} was called.
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		if (!running) {
+			return;
+		}
+		try {
+			stopped.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Claims the documents of the inbox which have settled, as workers become free.
+	 *
+	 * @return true if documents were left in the inbox as they were still being written
+	 */
+	private boolean claimSettledDocuments(ExecutorService executor) throws IOException, InterruptedException {
+		long settledBefore = System.currentTimeMillis() - settleMillis;
+		boolean settling = false;
+		List<InboxDocument> settled = new ArrayList<InboxDocument>();
+		try (DirectoryStream<Path> documents = Files.newDirectoryStream(inbox)) {
+			for (Path document : documents) {
+				if (!BatchValidator.isXMLFileName(document.getFileName().toString())) {
+					continue;
+				}
+				BasicFileAttributes attributes;
+				try {
+					attributes = Files.readAttributes(document, BasicFileAttributes.class);
+				} catch (NoSuchFileException e) {
+					continue;
+				}
+				if (!attributes.isRegularFile()) {
+					continue;
+				}
+				long lastModified = attributes.lastModifiedTime().toMillis();
+				if (lastModified > settledBefore) {
+					settling = true;
+				} else {
+					settled.add(new InboxDocument(document, lastModified));
+				}
+			}
+		}
+		Collections.sort(settled, new Comparator<InboxDocument>() {
+			@Override
+			public int compare(InboxDocument first, InboxDocument second) {
+				return first.lastModified < second.lastModified ? -1 : first.lastModified > second.lastModified ? 1
+						: first.path.compareTo(second.path);
+			}
+		});
+		for (InboxDocument document : settled) {
+			while (!workers.tryAcquire(settleMillis, TimeUnit.MILLISECONDS)) {
+				if (closed) {
+					return settling;
+				}
+			}
+			Path claimed = processing.resolve(document.path.getFileName());
+			try {
+				Files.move(document.path, claimed, StandardCopyOption.ATOMIC_MOVE);
+			} catch (NoSuchFileException e) {
+				// claimed by another consumer of the inbox
+				workers.release();
+				continue;
+			} catch (IOException e) {
+				workers.release();
+				throw e;
+			}
+			executor.execute(new ValidationTask(claimed));
+		}
+		return settling;
+	}
+
+	/**
+	 * Creates the processing folder of this validator and locks it. The lock file is checked again once locked, as
+	 * another validator starting at the same time may have taken the folder for the one of a killed validator.
+	 */
+	private void lockProcessingDirectory() throws IOException {
+		while (true) {
+			Path directory = Files.createTempDirectory(processingRoot, PROCESSING_PREFIX);
+			Path lockFile = directory.resolve(LOCK_FILE_NAME);
+			FileChannel channel = FileChannel.open(lockFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+			FileLock lock = tryLock(channel);
+			if (lock != null && Files.exists(lockFile)) {
+				processing = directory;
+				processingLockChannel = channel;
+				processingLock = lock;
+				return;
+			}
+			channel.close();
+		}
+	}
+
+	private void releaseProcessingDirectory() {
+		if (processingLock == null) {
+			return;
+		}
+		try {
+			deleteProcessingDirectory(processing);
+		} catch (IOException e) {
+			logger.warn("Error deleting " + processing + ": " + e.getMessage());
+		}
+		try {
+			processingLockChannel.close();
+		} catch (IOException e) {
+			logger.warn("Error releasing the lock of " + processing + ": " + e.getMessage());
+		}
+		processingLock = null;
+	}
+
+	/**
+	 * Returns the documents of the processing folders whose lock is not held to the inbox, and deletes those folders.
+	 */
+	private void returnClaimedDocuments() throws IOException {
+		try (DirectoryStream<Path> directories = Files.newDirectoryStream(processingRoot, PROCESSING_PREFIX + "*")) {
+			for (Path directory : directories) {
+				Path lockFile = directory.resolve(LOCK_FILE_NAME);
+				if (directory.equals(processing) || !Files.isRegularFile(lockFile)) {
+					continue;
+				}
+				try (FileChannel channel = FileChannel.open(lockFile, StandardOpenOption.WRITE)) {
+					if (tryLock(channel) == null) {
+						continue;
+					}
+					returnDocuments(directory);
+					// deleted while locked, so a validator which just created the folder sees its lock file gone
+					deleteProcessingDirectory(directory);
+				} catch (NoSuchFileException e) {
+					// returned by another validator starting at the same time
+				}
+			}
+		}
+	}
+
+	private void returnDocuments(Path directory) throws IOException {
+		try (DirectoryStream<Path> documents = Files.newDirectoryStream(directory)) {
+			for (Path document : documents) {
+				if (document.getFileName().toString().equals(LOCK_FILE_NAME)) {
+					continue;
+				}
+				try {
+					Files.move(document, inbox.resolve(document.getFileName()), StandardCopyOption.ATOMIC_MOVE);
+					logger.warn("Returned " + document.getFileName() + " to the inbox, its validation was interrupted");
+				} catch (FileAlreadyExistsException e) {
+					logger.warn("Left " + document + " in place, a document with the same name is in the inbox");
+				}
+			}
+		}
+	}
+
+	/**
+	 * Deletes a processing folder holding no document. A folder still holding documents keeps its lock file, so that
+	 * they are returned to the inbox by the next validator to start.
+	 */
+	private static void deleteProcessingDirectory(Path directory) throws IOException {
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+			for (Path file : files) {
+				if (!file.getFileName().toString().equals(LOCK_FILE_NAME)) {
+					logger.warn("Left " + directory + " in place, it still holds documents");
+					return;
+				}
+			}
+		}
+		Files.deleteIfExists(directory.resolve(LOCK_FILE_NAME));
+		Files.delete(directory);
+	}
+
+	/**
+	 * @return the lock, or null if it is held by another validator, in this process or another one
+	 */
+	private static FileLock tryLock(FileChannel channel) throws IOException {
+		try {
+			return channel.tryLock();
+		} catch (OverlappingFileLockException e) {
+			return null;
+		}
+	}
+
+	private void writeResults(String name, ValidationResultsDto results) throws IOException {
+		Path partial = outbox.resolve(name + RESULTS_EXTENSION + PARTIAL_EXTENSION);
+		try (OutputStream out = Files.newOutputStream(partial)) {
+			objectMapper.writeValue(out, results);
+		}
+		Files.move(partial, outbox.resolve(name + RESULTS_EXTENSION), StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private static class InboxDocument {
+		private final Path path;
+		private final long lastModified;
+
+		InboxDocument(Path path, long lastModified) {
+			this.path = path;
+			this.lastModified = lastModified;
+		}
+	}
+
+	private class ValidationTask implements Runnable {
+		private final Path document;
+
+		ValidationTask(Path document) {
+			this.document = document;
+		}
+
+		@Override
+		public void run() {
+			String name = document.getFileName().toString();
+			boolean validated = false;
+			try {
+				ValidationResultsDto results;
+				try {
+					results = validator.validate(document, options);
+				} catch (IOException e) {
+					logger.error("Error reading " + name + ": " + e.getMessage());
+					results = BatchValidator.readErrorResults(e);
+				}
+				writeResults(name, results);
+				validated = !results.getResultsMetaData().isServiceError();
+			} catch (IOException | RuntimeException e) {
+				logger.error("Error validating " + name + ": " + e.getMessage(), e);
+			} finally {
+				try {
+					Files.move(document, (validated ? done : failed).resolve(name), StandardCopyOption.REPLACE_EXISTING);
+				} catch (IOException e) {
+					logger.error("Error moving " + name + " out of " + processing + ": " + e.getMessage());
+				}
+				workers.release();
+			}
+		}
+	}
+}
@@ -0,0 +1,38 @@
+package org.sitenv.referenceccda.configuration;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.sitenv.referenceccda.services.ValidationAllocationStatistics;
+import org.sitenv.referenceccda.validators.ValidationTrace;
+import org.springframework.web.servlet.handler.HandlerInterceptorAdapter;
+
+/**
+ * Adds the bytes allocated by writing the response of a validation to the
+ * {@link ValidationTrace#SERIALIZATION_STAGE} of its objective, which ends after the controller has returned. The
+ * controller leaves the trace and the objective of the validation in the request attributes.
+ */
+public class AllocationAccountingInterceptor extends HandlerInterceptorAdapter {
+	public static final String VALIDATION_TRACE_ATTRIBUTE = AllocationAccountingInterceptor.class.getName() + ".trace";
+	public static final String VALIDATION_OBJECTIVE_ATTRIBUTE = AllocationAccountingInterceptor.class.getName() + ".objective";
+
+	private final ValidationAllocationStatistics validationAllocationStatistics;
+
+	public AllocationAccountingInterceptor(ValidationAllocationStatistics validationAllocationStatistics) {
+		this.validationAllocationStatistics = validationAllocationStatistics;
+	}
+
+	@Override
+	public void afterCompletion(HttpServletRequest request, HttpServletResponse response, Object handler, Exception ex) {
+		Object trace = request.getAttribute(VALIDATION_TRACE_ATTRIBUTE);
+		if (!(trace instanceof ValidationTrace)) {
+			return;
+		}
+		long endAllocatedBytes = ((ValidationTrace) trace).getEndAllocatedBytes();
+		long allocatedBytes = ValidationTrace.currentThreadAllocatedBytes();
+		if (endAllocatedBytes >= 0 && allocatedBytes >= 0) {
+			validationAllocationStatistics.record((String) request.getAttribute(VALIDATION_OBJECTIVE_ATTRIBUTE),
+					ValidationTrace.SERIALIZATION_STAGE, allocatedBytes - endAllocatedBytes);
+		}
+	}
+}
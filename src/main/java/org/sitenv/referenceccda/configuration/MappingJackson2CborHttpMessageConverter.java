@@ -0,0 +1,19 @@
+package org.sitenv.referenceccda.configuration;
+
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.json.AbstractJackson2HttpMessageConverter;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+
+/**
+ * Writes and reads responses in the binary CBOR encoding (RFC 7049), for clients which send an Accept header of
+ * application/cbor. The structure is the same as the JSON responses.
+ */
+public class MappingJackson2CborHttpMessageConverter extends AbstractJackson2HttpMessageConverter {
+	public static final MediaType APPLICATION_CBOR = new MediaType("application", "cbor");
+
+	public MappingJackson2CborHttpMessageConverter() {
+		super(new ObjectMapper(new CBORFactory()), APPLICATION_CBOR);
+	}
+}
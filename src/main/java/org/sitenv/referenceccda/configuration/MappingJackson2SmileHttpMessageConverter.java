@@ -0,0 +1,25 @@
+package org.sitenv.referenceccda.configuration;
+
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.json.AbstractJackson2HttpMessageConverter;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileGenerator;
+
+/**
+ * Writes and reads responses in the binary Smile encoding of JSON, for clients which send an Accept header of
+ * application/x-jackson-smile. The structure is the same as the JSON responses.
+ * <p>
+ * Property names are always written once per response and then referenced. Repeated string values, such as result
+ * types, descriptions and XPaths, are referenced as well while they are short enough for the Smile shared value table
+ * (64 bytes).
+ */
+public class MappingJackson2SmileHttpMessageConverter extends AbstractJackson2HttpMessageConverter {
+	public static final MediaType APPLICATION_SMILE = new MediaType("application", "x-jackson-smile");
+
+	public MappingJackson2SmileHttpMessageConverter() {
+		super(new ObjectMapper(new SmileFactory().configure(SmileGenerator.Feature.CHECK_SHARED_STRING_VALUES, true)),
+				APPLICATION_SMILE);
+	}
+}
@@ -1,26 +1,59 @@
 package org.sitenv.referenceccda.configuration;
 
+import java.io.IOException;
+import java.util.List;
+
+import javax.annotation.PostConstruct;
+
+import org.sitenv.referenceccda.services.ValidationAllocationStatistics;
+import org.sitenv.referenceccda.validators.XMLParserProvider;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.cache.CacheManager;
 import org.springframework.cache.annotation.EnableCaching;
 import org.springframework.cache.concurrent.ConcurrentMapCacheManager;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.ComponentScan;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.EnableMBeanExport;
 import org.springframework.context.annotation.PropertySource;
 import org.springframework.context.support.PropertySourcesPlaceholderConfigurer;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.http.converter.HttpMessageConverter;
+import org.springframework.jmx.support.RegistrationPolicy;
 import org.springframework.web.multipart.MultipartResolver;
 import org.springframework.web.multipart.commons.CommonsMultipartResolver;
 import org.springframework.web.servlet.config.annotation.EnableWebMvc;
+import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
 import org.springframework.web.servlet.config.annotation.ResourceHandlerRegistry;
 import org.springframework.web.servlet.config.annotation.ViewControllerRegistry;
 import org.springframework.web.servlet.config.annotation.WebMvcConfigurerAdapter;
 
 @EnableWebMvc
 @EnableCaching
+@EnableMBeanExport(registration = RegistrationPolicy.REPLACE_EXISTING)
 @Configuration
 @ComponentScan("org.sitenv")
 @PropertySource(value = "/META-INF/maven/org.sitenv/referenceccdavalidator/pom.properties", ignoreResourceNotFound=true)
 public class MvcConfiguration extends WebMvcConfigurerAdapter {
+    // -1 leaves the upload size unlimited, as before the limit was configurable
+    @Value("${referenceccda.upload.maxSizeBytes:-1}")
+    private long maxUploadSizeBytes;
+    @Value("${referenceccda.upload.maxInMemorySizeBytes:1048576}")
+    private int maxInMemorySizeBytes;
+    @Value("${referenceccda.upload.tempDir:}")
+    private String uploadTempDir;
+    @Value("${referenceccda.xml.maxElementDepth:1000}")
+    private int xmlMaxElementDepth;
+    @Value("${referenceccda.xml.maxAttributeSize:1048576}")
+    private int xmlMaxAttributeSize;
+    @Autowired
+    private ValidationAllocationStatistics validationAllocationStatistics;
+
+    @PostConstruct
+    public void configureXMLParserLimits() {
+        XMLParserProvider.configureLimits(xmlMaxElementDepth, xmlMaxAttributeSize);
+    }
 
     @Override
     public void addResourceHandlers(ResourceHandlerRegistry registry) {
@@ -33,8 +66,14 @@ public class MvcConfiguration extends WebMvcConfigurerAdapter {
     }
 
     @Bean
-	public MultipartResolver multipartResolver() {
+	public MultipartResolver multipartResolver() throws IOException {
 		CommonsMultipartResolver multipartResolver = new CommonsMultipartResolver();
+		// uploads larger than maxInMemorySizeBytes are spilled to disk and streamed from there by the validators
+		multipartResolver.setMaxUploadSize(maxUploadSizeBytes);
+		multipartResolver.setMaxInMemorySize(maxInMemorySizeBytes);
+		if (!uploadTempDir.isEmpty()) {
+			multipartResolver.setUploadTempDir(new FileSystemResource(uploadTempDir));
+		}
 		return multipartResolver;
 	}
 
@@ -48,6 +87,18 @@ public class MvcConfiguration extends WebMvcConfigurerAdapter {
         return new ConcurrentMapCacheManager("messagetypeValidationObjectivesAndReferenceFilesMap");
     }
 
+    @Override
+    public void extendMessageConverters(List<HttpMessageConverter<?>> converters) {
+        // added after the JSON converter, which stays the default when the Accept header does not ask for these
+        converters.add(new MappingJackson2SmileHttpMessageConverter());
+        converters.add(new MappingJackson2CborHttpMessageConverter());
+    }
+
+    @Override
+    public void addInterceptors(InterceptorRegistry registry) {
+        registry.addInterceptor(new AllocationAccountingInterceptor(validationAllocationStatistics)).addPathPatterns("/");
+    }
+
     @Override
     public void addViewControllers(ViewControllerRegistry registry) {
         registry.addViewController("/ui").setViewName("redirect:static/validationui.html");
@@ -1,20 +1,44 @@
 package org.sitenv.referenceccda.controllers;
 
+import org.sitenv.referenceccda.configuration.AllocationAccountingInterceptor;
+import org.sitenv.referenceccda.dto.SlowValidationRecord;
+import org.sitenv.referenceccda.dto.StoredValidationResultsDto;
 import org.sitenv.referenceccda.dto.ValidationResultsDto;
 import org.sitenv.referenceccda.services.ReferenceCCDAValidationService;
+import org.sitenv.referenceccda.services.SlowValidationRecorder;
+import org.sitenv.referenceccda.services.ValidationAdmissionController;
+import org.sitenv.referenceccda.services.ValidationAllocationStatistics;
+import org.sitenv.referenceccda.services.ValidationAllocationStatistics.AllocationHistogram;
+import org.sitenv.referenceccda.services.ValidationMemoryBudget;
+import org.sitenv.referenceccda.services.ValidationResultStore;
 import org.sitenv.referenceccda.services.VocabularyService;
+import org.sitenv.referenceccda.validators.CCDADocument;
+import org.sitenv.referenceccda.validators.ValidationResultFilter;
+import org.sitenv.referenceccda.validators.ValidationTrace;
+import org.sitenv.referenceccda.validators.enums.ValidationResultSeverity;
+import org.sitenv.referenceccda.validators.schema.ValidationPlan;
+import org.sitenv.referenceccda.validators.schema.ValidationPlans;
 import org.sitenv.vocabularies.validation.entities.Code;
 import org.sitenv.vocabularies.validation.entities.VsacValueSet;
 import org.sitenv.vocabularies.validation.services.VocabularyValidationService;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.cache.annotation.Cacheable;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 import org.springframework.web.multipart.MultipartFile;
 
+import com.fasterxml.jackson.databind.JsonNode;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 
@@ -23,18 +47,137 @@ public class ReferenceCCDAValidationController {
 	@Autowired
 	ReferenceCCDAValidationService referenceCcdaValidationService;
 	@Autowired
+	ValidationAdmissionController validationAdmissionController;
+	@Autowired
+	ValidationMemoryBudget validationMemoryBudget;
+	@Autowired
+	ValidationResultStore validationResultStore;
+	@Autowired
+	SlowValidationRecorder slowValidationRecorder;
+	@Autowired
+	ValidationAllocationStatistics validationAllocationStatistics;
+	@Autowired
 	VocabularyService vocabularyService;
 	@Autowired
 	VocabularyValidationService validationManager;
 
+	@Value("${referenceccda.allocations.responseHeaders:false}")
+	private boolean allocationResponseHeaders;
+	// the /admin endpoints describe the documents validated, they answer 404 unless enabled
+	@Value("${referenceccda.admin.enabled:false}")
+	private boolean adminEnabled;
+
+	private static final String ALLOCATED_BYTES_HEADER = "X-Validation-Allocated-Bytes";
 	private static final String GITHUB_URL = "https://api.github.com/repos/siteadmin/2015-Certification-C-CDA-Test-Data/git/trees/master?recursive=1";
 
 	@RequestMapping(value = "/", headers = "content-type=multipart/*", method = RequestMethod.POST)
 	public ValidationResultsDto doValidation(
 			@RequestParam(value = "validationObjective", required = true) String validationObjective,
 			@RequestParam(value = "referenceFileName", required = true) String referenceFileName,
-			@RequestParam(value = "ccdaFile", required = true) MultipartFile ccdaFile) {
-		return referenceCcdaValidationService.validateCCDA(validationObjective, referenceFileName, ccdaFile);
+			@RequestParam(value = "ccdaFile", required = true) MultipartFile ccdaFile,
+			@RequestParam(value = "minSeverity", required = false) String minSeverity,
+			@RequestParam(value = "maxResults", required = false) Integer maxResults,
+			@RequestParam(value = "maxResultsPerType", required = false) Integer maxResultsPerType,
+			HttpServletRequest request, HttpServletResponse response) {
+		ValidationResultFilter resultFilter;
+		try {
+			resultFilter = new ValidationResultFilter.ValidationResultFilterBuilder()
+					.minSeverity(minSeverity != null ? ValidationResultSeverity.fromString(minSeverity) : null)
+					.maxResults(maxResults)
+					.maxResultsPerType(maxResultsPerType)
+					.build();
+		} catch (IllegalArgumentException e) {
+			return ReferenceCCDAValidationControllerAdvice.buildServiceErrorResults(e.getMessage());
+		}
+		CCDADocument ccdaDocument = CCDADocument.fromMultipartFile(ccdaFile);
+		// the stored results are looked up before the request is admitted, so that neither reading the uploaded document
+		// for its id nor waiting for the same request in progress holds a validation slot or memory reservation
+		String resultId = validationResultStore.resultId(validationObjective, referenceFileName, resultFilter, ccdaDocument);
+		if (resultId != null) {
+			response.setHeader(ValidationResultStore.RESULT_ID_HEADER, resultId);
+		}
+		try {
+			JsonNode storedResults = validationResultStore.claim(resultId);
+			if (storedResults != null) {
+				return new StoredValidationResultsDto(storedResults);
+			}
+			ValidationResultsDto results;
+			ValidationTrace trace = new ValidationTrace();
+			validationAdmissionController.acquire();
+			long start = 0;
+			boolean validated = false;
+			try (ValidationMemoryBudget.Reservation reservation = validationMemoryBudget.reserve(ccdaFile.getSize(), trace)) {
+				start = System.nanoTime();
+				validated = true;
+				results = referenceCcdaValidationService.validateCCDA(validationObjective, referenceFileName, ccdaDocument, resultFilter, trace);
+			} finally {
+				// only the latency of validations adapts the limit
+				if (validated) {
+					validationAdmissionController.release(System.nanoTime() - start);
+				} else {
+					validationAdmissionController.release();
+				}
+			}
+			request.setAttribute(AllocationAccountingInterceptor.VALIDATION_TRACE_ATTRIBUTE, trace);
+			request.setAttribute(AllocationAccountingInterceptor.VALIDATION_OBJECTIVE_ATTRIBUTE, validationObjective);
+			if (allocationResponseHeaders) {
+				setAllocatedBytesHeader(response, trace);
+			}
+			validationResultStore.store(resultId, results);
+			return results;
+		} finally {
+			validationResultStore.complete(resultId);
+		}
+	}
+
+	/**
+	 * Sets the bytes allocated by each stage of the validation and their total, as in
+	 * "schema=1048576, mdht=8388608, total=9437184", omitted if the JVM does not measure allocations. Writing the
+	 * response is not included as the headers are sent before it.
+	 */
+	private static void setAllocatedBytesHeader(HttpServletResponse response, ValidationTrace trace) {
+		Map<String, Long> stageAllocatedBytes = trace.getStageAllocatedBytes();
+		if (stageAllocatedBytes.isEmpty()) {
+			return;
+		}
+		StringBuilder header = new StringBuilder();
+		long total = 0;
+		for (Map.Entry<String, Long> stage : stageAllocatedBytes.entrySet()) {
+			header.append(stage.getKey()).append('=').append(stage.getValue()).append(", ");
+			total += stage.getValue();
+		}
+		response.setHeader(ALLOCATED_BYTES_HEADER, header.append("total=").append(total).toString());
+	}
+
+	@RequestMapping(value = "/results/{resultId}", method = RequestMethod.GET)
+	public ResponseEntity<JsonNode> getStoredResults(@PathVariable("resultId") String resultId) {
+		JsonNode storedResults = validationResultStore.get(resultId);
+		if (storedResults == null) {
+			return new ResponseEntity<JsonNode>(HttpStatus.NOT_FOUND);
+		}
+		return new ResponseEntity<JsonNode>(storedResults, HttpStatus.OK);
+	}
+
+	@RequestMapping(value = "/admin/slowvalidations", method = RequestMethod.GET)
+	public ResponseEntity<List<SlowValidationRecord>> getSlowValidations() {
+		if (!adminEnabled) {
+			return new ResponseEntity<List<SlowValidationRecord>>(HttpStatus.NOT_FOUND);
+		}
+		return new ResponseEntity<List<SlowValidationRecord>>(slowValidationRecorder.getRecords(), HttpStatus.OK);
+	}
+
+	@RequestMapping(value = "/admin/allocations", method = RequestMethod.GET)
+	public ResponseEntity<Map<String, Map<String, AllocationHistogram>>> getAllocations() {
+		if (!adminEnabled) {
+			return new ResponseEntity<Map<String, Map<String, AllocationHistogram>>>(HttpStatus.NOT_FOUND);
+		}
+		return new ResponseEntity<Map<String, Map<String, AllocationHistogram>>>(validationAllocationStatistics.getHistograms(),
+				HttpStatus.OK);
+	}
+
+	@RequestMapping(value = "/validationplans", method = RequestMethod.GET)
+	public Collection<ValidationPlan> getValidationPlans() {
+		return ValidationPlans.getPlans();
 	}
 
 	@RequestMapping(value = "/getvaluesetsbyoids", method = RequestMethod.GET)
@@ -0,0 +1,53 @@
+package org.sitenv.referenceccda.controllers;
+
+import java.util.ArrayList;
+
+import org.apache.log4j.Logger;
+import org.sitenv.referenceccda.dto.ValidationResultsDto;
+import org.sitenv.referenceccda.dto.ValidationResultsMetaData;
+import org.sitenv.referenceccda.services.ValidationRejectedException;
+import org.sitenv.referenceccda.validators.RefCCDAValidationResult;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.ControllerAdvice;
+import org.springframework.web.bind.annotation.ExceptionHandler;
+import org.springframework.web.multipart.MaxUploadSizeExceededException;
+
+/**
+ * Handles errors raised before a request reaches ReferenceCCDAValidationController, such as an upload rejected by the
+ * multipart resolver, and reports them in the same form as a validation service error.
+ */
+@ControllerAdvice
+public class ReferenceCCDAValidationControllerAdvice {
+	private static Logger logger = Logger.getLogger(ReferenceCCDAValidationControllerAdvice.class);
+
+	private static final String ERROR_PREFIX = "The service has encountered the following error: ";
+	private static final String ERROR_MAX_UPLOAD_SIZE_EXCEEDED = ERROR_PREFIX
+			+ "The C-CDA file sent exceeds the maximum upload size of ";
+
+	@ExceptionHandler(MaxUploadSizeExceededException.class)
+	public ResponseEntity<ValidationResultsDto> handleMaxUploadSizeExceeded(MaxUploadSizeExceededException exception) {
+		String fullError = ERROR_MAX_UPLOAD_SIZE_EXCEEDED + exception.getMaxUploadSize() + " bytes";
+		logger.error(fullError);
+		return new ResponseEntity<ValidationResultsDto>(buildServiceErrorResults(fullError), HttpStatus.PAYLOAD_TOO_LARGE);
+	}
+
+	@ExceptionHandler(ValidationRejectedException.class)
+	public ResponseEntity<ValidationResultsDto> handleValidationRejected(ValidationRejectedException exception) {
+		HttpHeaders headers = new HttpHeaders();
+		headers.set("Retry-After", Long.toString(exception.getRetryAfterSeconds()));
+		return new ResponseEntity<ValidationResultsDto>(buildServiceErrorResults(ERROR_PREFIX + exception.getMessage()),
+				headers, HttpStatus.TOO_MANY_REQUESTS);
+	}
+
+	static ValidationResultsDto buildServiceErrorResults(String serviceErrorMessage) {
+		ValidationResultsMetaData resultsMetaData = new ValidationResultsMetaData();
+		resultsMetaData.setServiceError(true);
+		resultsMetaData.setServiceErrorMessage(serviceErrorMessage);
+		ValidationResultsDto resultsDto = new ValidationResultsDto();
+		resultsDto.setResultsMetaData(resultsMetaData);
+		resultsDto.setCcdaValidationResults(new ArrayList<RefCCDAValidationResult>());
+		return resultsDto;
+	}
+}
@@ -0,0 +1,175 @@
+package org.sitenv.referenceccda.dto;
+
+import java.util.Map;
+
+/**
+ * Diagnostic record of a validation which took longer than referenceccda.slowValidations.thresholdMillis.
+ */
+public class SlowValidationRecord {
+	private long startedAt;
+	private long totalMillis;
+	private Map<String, Long> stageMillis;
+	private Map<String, Long> stageAllocatedBytes;
+	private long gcCount;
+	private long gcMillis;
+	private String thread;
+	private String validationObjective;
+	private String referenceFileName;
+	private String ccdaFileName;
+	private long documentSize;
+	private long elementCount;
+	private Map<String, Integer> resultsPerSeverity;
+	private boolean serviceError;
+	private String serviceErrorMessage;
+	private String quarantinedFile;
+
+	/**
+	 * @return the start of the validation, in milliseconds since the epoch
+	 */
+	public long getStartedAt() {
+		return startedAt;
+	}
+
+	public void setStartedAt(long startedAt) {
+		this.startedAt = startedAt;
+	}
+
+	public long getTotalMillis() {
+		return totalMillis;
+	}
+
+	public void setTotalMillis(long totalMillis) {
+		this.totalMillis = totalMillis;
+	}
+
+	/**
+	 * @return the milliseconds spent in each validator which was run
+	 */
+	public Map<String, Long> getStageMillis() {
+		return stageMillis;
+	}
+
+	public void setStageMillis(Map<String, Long> stageMillis) {
+		this.stageMillis = stageMillis;
+	}
+
+	/**
+	 * @return the bytes allocated by each stage, empty if the JVM does not measure allocations
+	 */
+	public Map<String, Long> getStageAllocatedBytes() {
+		return stageAllocatedBytes;
+	}
+
+	public void setStageAllocatedBytes(Map<String, Long> stageAllocatedBytes) {
+		this.stageAllocatedBytes = stageAllocatedBytes;
+	}
+
+	/**
+	 * @return the garbage collections of the whole JVM during the validation
+	 */
+	public long getGcCount() {
+		return gcCount;
+	}
+
+	public void setGcCount(long gcCount) {
+		this.gcCount = gcCount;
+	}
+
+	public long getGcMillis() {
+		return gcMillis;
+	}
+
+	public void setGcMillis(long gcMillis) {
+		this.gcMillis = gcMillis;
+	}
+
+	public String getThread() {
+		return thread;
+	}
+
+	public void setThread(String thread) {
+		this.thread = thread;
+	}
+
+	public String getValidationObjective() {
+		return validationObjective;
+	}
+
+	public void setValidationObjective(String validationObjective) {
+		this.validationObjective = validationObjective;
+	}
+
+	public String getReferenceFileName() {
+		return referenceFileName;
+	}
+
+	public void setReferenceFileName(String referenceFileName) {
+		this.referenceFileName = referenceFileName;
+	}
+
+	public String getCcdaFileName() {
+		return ccdaFileName;
+	}
+
+	public void setCcdaFileName(String ccdaFileName) {
+		this.ccdaFileName = ccdaFileName;
+	}
+
+	public long getDocumentSize() {
+		return documentSize;
+	}
+
+	public void setDocumentSize(long documentSize) {
+		this.documentSize = documentSize;
+	}
+
+	/**
+	 * @return the number of elements of the document, or -1 if it could not be parsed
+	 */
+	public long getElementCount() {
+		return elementCount;
+	}
+
+	public void setElementCount(long elementCount) {
+		this.elementCount = elementCount;
+	}
+
+	/**
+	 * @return the number of results of each severity found, including those left out of the response by the result
+	 *         filter
+	 */
+	public Map<String, Integer> getResultsPerSeverity() {
+		return resultsPerSeverity;
+	}
+
+	public void setResultsPerSeverity(Map<String, Integer> resultsPerSeverity) {
+		this.resultsPerSeverity = resultsPerSeverity;
+	}
+
+	public boolean isServiceError() {
+		return serviceError;
+	}
+
+	public void setServiceError(boolean serviceError) {
+		this.serviceError = serviceError;
+	}
+
+	public String getServiceErrorMessage() {
+		return serviceErrorMessage;
+	}
+
+	public void setServiceErrorMessage(String serviceErrorMessage) {
+		this.serviceErrorMessage = serviceErrorMessage;
+	}
+
+	/**
+	 * @return the copy of the document in referenceccda.slowValidations.quarantineDir, or null if it was not copied
+	 */
+	public String getQuarantinedFile() {
+		return quarantinedFile;
+	}
+
+	public void setQuarantinedFile(String quarantinedFile) {
+		this.quarantinedFile = quarantinedFile;
+	}
+}
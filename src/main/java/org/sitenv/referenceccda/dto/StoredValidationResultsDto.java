@@ -0,0 +1,27 @@
+package org.sitenv.referenceccda.dto;
+
+import com.fasterxml.jackson.annotation.JsonValue;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * The results of a previous validation of the same request, read back from the ValidationResultStore. They are
+ * serialized as they were stored, with reusedPreviousResults set, rather than from the fields of ValidationResultsDto,
+ * which are left empty.
+ */
+public class StoredValidationResultsDto extends ValidationResultsDto {
+	private final JsonNode storedResults;
+
+	public StoredValidationResultsDto(JsonNode storedResults) {
+		JsonNode resultsMetaData = storedResults.get("resultsMetaData");
+		if (resultsMetaData != null && resultsMetaData.isObject()) {
+			((ObjectNode) resultsMetaData).put("reusedPreviousResults", true);
+		}
+		this.storedResults = storedResults;
+	}
+
+	@JsonValue
+	public JsonNode getStoredResults() {
+		return storedResults;
+	}
+}
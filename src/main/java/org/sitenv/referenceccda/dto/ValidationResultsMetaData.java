@@ -2,27 +2,36 @@ package org.sitenv.referenceccda.dto;
 
 import org.sitenv.referenceccda.validators.enums.ValidationResultType;
 
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonInclude.Include;
+
 import java.util.ArrayList;
-import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Map;
-import java.util.concurrent.atomic.AtomicInteger;
 
 
+/**
+ * The metadata of the results of a validation. The properties describing the minSeverity, maxResults and
+ * maxResultsPerType options and the stored results are only serialized when they are set, so that the metadata of a
+ * request without those options is serialized as before they were added.
+ */
 public class ValidationResultsMetaData {
+	private static final ValidationResultType[] RESULT_TYPES = ValidationResultType.values();
+
 	private String ccdaDocumentType;
 	private boolean serviceError;
 	private String serviceErrorMessage;
 	private String ccdaFileName;
 	private String ccdaFileContents;
-	private final Map<String, AtomicInteger> errorCounts = new LinkedHashMap<String, AtomicInteger>();
+	// counts indexed by ValidationResultType ordinal
+	private final int[] errorCounts = new int[RESULT_TYPES.length];
 	private List<ResultMetaData> resultMetaData;
-
-	public ValidationResultsMetaData() {
-		for (ValidationResultType resultType : ValidationResultType.values()) {
-			errorCounts.put(resultType.getTypePrettyName(), new AtomicInteger(0));
-		}
-	}
+	private String minSeverity;
+	private final int[] suppressedCounts = new int[RESULT_TYPES.length];
+	private Integer maxResults;
+	private Integer maxResultsPerType;
+	private boolean truncated;
+	private final int[] truncatedCounts = new int[RESULT_TYPES.length];
+	private boolean reusedPreviousResults;
 
 	public String getCcdaDocumentType() {
 		return ccdaDocumentType;
@@ -49,13 +58,103 @@ public class ValidationResultsMetaData {
 	}
 
 	public List<ResultMetaData> getResultMetaData() {
-		resultMetaData = new ArrayList<ResultMetaData>();
-		for (Map.Entry<String, AtomicInteger> entry : errorCounts.entrySet()) {
-			resultMetaData.add(new ResultMetaData(entry.getKey(), entry.getValue().intValue()));
+		resultMetaData = new ArrayList<ResultMetaData>(RESULT_TYPES.length);
+		for (ValidationResultType resultType : RESULT_TYPES) {
+			resultMetaData.add(new ResultMetaData(resultType.getTypePrettyName(), errorCounts[resultType.ordinal()]));
 		}
 		return resultMetaData;
 	}
 
+	/**
+	 * @return the requested minSeverity, or null if every severity was requested
+	 */
+	@JsonInclude(Include.NON_NULL)
+	public String getMinSeverity() {
+		return minSeverity;
+	}
+
+	public void setMinSeverity(String minSeverity) {
+		this.minSeverity = minSeverity;
+	}
+
+	/**
+	 * @return the number of results found but not returned because they were below the requested minSeverity, only
+	 *         for the types which had results suppressed
+	 */
+	@JsonInclude(Include.NON_EMPTY)
+	public List<ResultMetaData> getSuppressedResultMetaData() {
+		return getNonZeroResultMetaData(suppressedCounts);
+	}
+
+	public void addSuppressedCount(ValidationResultType resultType, int count) {
+		suppressedCounts[resultType.ordinal()] += count;
+	}
+
+	@JsonInclude(Include.NON_NULL)
+	public Integer getMaxResults() {
+		return maxResults;
+	}
+
+	public void setMaxResults(Integer maxResults) {
+		this.maxResults = maxResults;
+	}
+
+	@JsonInclude(Include.NON_NULL)
+	public Integer getMaxResultsPerType() {
+		return maxResultsPerType;
+	}
+
+	public void setMaxResultsPerType(Integer maxResultsPerType) {
+		this.maxResultsPerType = maxResultsPerType;
+	}
+
+	/**
+	 * @return true if results were left out because of maxResults or maxResultsPerType
+	 */
+	@JsonInclude(Include.NON_DEFAULT)
+	public boolean isTruncated() {
+		return truncated;
+	}
+
+	public void setTruncated(boolean truncated) {
+		this.truncated = truncated;
+	}
+
+	/**
+	 * @return the number of results found but not returned because of maxResults or maxResultsPerType, only for the
+	 *         types which had results truncated. Checks which were skipped once maxResults was reached are not counted.
+	 */
+	@JsonInclude(Include.NON_EMPTY)
+	public List<ResultMetaData> getTruncatedResultMetaData() {
+		return getNonZeroResultMetaData(truncatedCounts);
+	}
+
+	public void addTruncatedCount(ValidationResultType resultType, int count) {
+		truncatedCounts[resultType.ordinal()] += count;
+	}
+
+	private static List<ResultMetaData> getNonZeroResultMetaData(int[] counts) {
+		List<ResultMetaData> nonZeroResultMetaData = new ArrayList<ResultMetaData>();
+		for (ValidationResultType resultType : RESULT_TYPES) {
+			if (counts[resultType.ordinal()] > 0) {
+				nonZeroResultMetaData.add(new ResultMetaData(resultType.getTypePrettyName(), counts[resultType.ordinal()]));
+			}
+		}
+		return nonZeroResultMetaData;
+	}
+
+	/**
+	 * @return true if the results are those stored by a previous validation of the same request
+	 */
+	@JsonInclude(Include.NON_DEFAULT)
+	public boolean isReusedPreviousResults() {
+		return reusedPreviousResults;
+	}
+
+	public void setReusedPreviousResults(boolean reusedPreviousResults) {
+		this.reusedPreviousResults = reusedPreviousResults;
+	}
+
 	public String getCcdaFileName() {
 		return ccdaFileName;
 	}
@@ -73,10 +172,6 @@ public class ValidationResultsMetaData {
 	}
 
 	public void addCount(ValidationResultType resultType) {
-		if (errorCounts.containsKey(resultType.getTypePrettyName())) {
-			errorCounts.get(resultType.getTypePrettyName()).addAndGet(1);
-		} else {
-			errorCounts.put(resultType.getTypePrettyName(), new AtomicInteger(1));
-		}
+		errorCounts[resultType.ordinal()]++;
 	}
 }
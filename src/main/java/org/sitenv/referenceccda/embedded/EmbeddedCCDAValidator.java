@@ -0,0 +1,119 @@
+package org.sitenv.referenceccda.embedded;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.Properties;
+
+import org.apache.commons.io.IOUtils;
+import org.sitenv.contentvalidator.configuration.ContentValidatorApiConfiguration;
+import org.sitenv.referenceccda.dto.ValidationResultsDto;
+import org.sitenv.referenceccda.services.ReferenceCCDAValidationService;
+import org.sitenv.referenceccda.validators.CCDADocument;
+import org.sitenv.referenceccda.validators.ValidationForkJoinPool;
+import org.sitenv.referenceccda.validators.ValidationTrace;
+import org.sitenv.referenceccda.validators.XMLParserProvider;
+import org.sitenv.referenceccda.validators.content.ReferenceContentValidator;
+import org.sitenv.referenceccda.validators.schema.CDASchemaValidator;
+import org.sitenv.referenceccda.validators.schema.ReferenceCCDAValidator;
+import org.sitenv.referenceccda.validators.vocabulary.VocabularyCCDAValidator;
+import org.sitenv.vocabularies.configuration.CodeValidatorApiConfiguration;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.context.support.PropertySourcesPlaceholderConfigurer;
+import org.springframework.core.env.PropertiesPropertySource;
+
+/**
+ * Validates C-CDA documents in process, without Spring MVC or an HTTP round trip, returning the same
+ * {@link ValidationResultsDto} as the validation endpoint.
+ * <p>
+ * An instance is created once, which loads the vocabularies and scenarios, and is then shared by any number of
+ * threads, as the validators are by the concurrent requests of the service. Closing it releases the validators when
+ * it created them.
+ * <pre>
+ * EmbeddedCCDAValidator validator = EmbeddedCCDAValidator.create(properties);
+ * ValidationOptions options = new ValidationOptions.ValidationOptionsBuilder("C-CDA_IG_Plus_Vocab")
+ *         .minSeverity(ValidationResultSeverity.ERROR).build();
+ * ValidationResultsDto results = validator.validate(message.getBody(), message.getId(), options);
+ * </pre>
+ */
+public class EmbeddedCCDAValidator implements Closeable {
+	private static final String PROPERTY_SOURCE_NAME = "embeddedCCDAValidatorProperties";
+
+	private final ReferenceCCDAValidationService validationService;
+	private final ConfigurableApplicationContext context;
+
+	/**
+	 * Validates with an existing service, e.g. one created by the caller's own Spring context.
+	 */
+	public EmbeddedCCDAValidator(ReferenceCCDAValidationService validationService) {
+		this(validationService, null);
+	}
+
+	private EmbeddedCCDAValidator(ReferenceCCDAValidationService validationService, ConfigurableApplicationContext context) {
+		this.validationService = validationService;
+		this.context = context;
+	}
+
+	/**
+	 * Creates the validators and the vocabulary and content APIs they use, configured by the given properties: the
+	 * context parameters of referenceccdaservice.xml such as referenceccda.configFile, vocabulary.localCodeRepositoryDir,
+	 * vocabulary.localValueSetRepositoryDir and content.scenariosDir. System properties take precedence over them.
+	 */
+	public static EmbeddedCCDAValidator create(Properties properties) {
+		XMLParserProvider.configureLimits(
+				Integer.parseInt(properties.getProperty("referenceccda.xml.maxElementDepth",
+						System.getProperty("referenceccda.xml.maxElementDepth", "1000"))),
+				Integer.parseInt(properties.getProperty("referenceccda.xml.maxAttributeSize",
+						System.getProperty("referenceccda.xml.maxAttributeSize", "1048576"))));
+		AnnotationConfigApplicationContext context = new AnnotationConfigApplicationContext();
+		context.getEnvironment().getPropertySources().addLast(new PropertiesPropertySource(PROPERTY_SOURCE_NAME, properties));
+		// the classes are registered rather than scanned, so that the web configuration and its beans are left out
+		context.register(PropertySourcesPlaceholderConfigurer.class, CodeValidatorApiConfiguration.class,
+				ContentValidatorApiConfiguration.class, ValidationForkJoinPool.class, ReferenceCCDAValidator.class, VocabularyCCDAValidator.class,
+				ReferenceContentValidator.class, CDASchemaValidator.class, ReferenceCCDAValidationService.class);
+		context.refresh();
+		return new EmbeddedCCDAValidator(context.getBean(ReferenceCCDAValidationService.class), context);
+	}
+
+	public ValidationResultsDto validate(byte[] ccdaFile, String ccdaFileName, ValidationOptions options) {
+		return validate(CCDADocument.fromBytes(ccdaFileName, ccdaFile), options);
+	}
+
+	/**
+	 * Validates the remaining bytes of the given buffer, which must not be modified until this returns.
+	 */
+	public ValidationResultsDto validate(ByteBuffer ccdaFile, String ccdaFileName, ValidationOptions options) {
+		return validate(CCDADocument.fromByteBuffer(ccdaFileName, ccdaFile), options);
+	}
+
+	/**
+	 * Validates a file, which is streamed from disk by each validator rather than loaded onto the heap.
+	 */
+	public ValidationResultsDto validate(Path ccdaFile, ValidationOptions options) throws IOException {
+		return validate(CCDADocument.fromPath(ccdaFile), options);
+	}
+
+	/**
+	 * Validates the content of the given stream, which is read fully, as each validator reads the document in turn,
+	 * but not closed.
+	 */
+	public ValidationResultsDto validate(InputStream ccdaFile, String ccdaFileName, ValidationOptions options)
+			throws IOException {
+		return validate(CCDADocument.fromBytes(ccdaFileName, IOUtils.toByteArray(ccdaFile)), options);
+	}
+
+	public ValidationResultsDto validate(CCDADocument ccdaDocument, ValidationOptions options) {
+		return validationService.validateCCDA(options.getValidationObjective(), options.getReferenceFileName(),
+				ccdaDocument, options.createResultFilter(), new ValidationTrace(), options.isEchoFileContents());
+	}
+
+	@Override
+	public void close() {
+		if (context != null) {
+			context.close();
+		}
+	}
+}
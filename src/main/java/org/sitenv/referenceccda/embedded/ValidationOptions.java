@@ -0,0 +1,121 @@
+package org.sitenv.referenceccda.embedded;
+
+import org.sitenv.referenceccda.validators.ValidationResultFilter;
+import org.sitenv.referenceccda.validators.enums.ValidationResultSeverity;
+
+/**
+ * The options of a validation run by an {@link EmbeddedCCDAValidator}, matching the parameters of the validation
+ * endpoint. Options are immutable and can be reused for any number of validations.
+ */
+public class ValidationOptions {
+	private final String validationObjective;
+	private final String referenceFileName;
+	private final ValidationResultSeverity minSeverity;
+	private final Integer maxResults;
+	private final Integer maxResultsPerType;
+	private final boolean echoFileContents;
+
+	private ValidationOptions(ValidationOptionsBuilder builder) {
+		this.validationObjective = builder.validationObjective;
+		this.referenceFileName = builder.referenceFileName;
+		this.minSeverity = builder.minSeverity;
+		this.maxResults = builder.maxResults;
+		this.maxResultsPerType = builder.maxResultsPerType;
+		this.echoFileContents = builder.echoFileContents;
+	}
+
+	public String getValidationObjective() {
+		return validationObjective;
+	}
+
+	public String getReferenceFileName() {
+		return referenceFileName;
+	}
+
+	public ValidationResultSeverity getMinSeverity() {
+		return minSeverity;
+	}
+
+	public Integer getMaxResults() {
+		return maxResults;
+	}
+
+	public Integer getMaxResultsPerType() {
+		return maxResultsPerType;
+	}
+
+	public boolean isEchoFileContents() {
+		return echoFileContents;
+	}
+
+	/**
+	 * @return a new filter for a single validation with these options
+	 */
+	ValidationResultFilter createResultFilter() {
+		return new ValidationResultFilter.ValidationResultFilterBuilder().minSeverity(minSeverity)
+				.maxResults(maxResults).maxResultsPerType(maxResultsPerType).build();
+	}
+
+	public static class ValidationOptionsBuilder {
+		private final String validationObjective;
+		private String referenceFileName = "";
+		private ValidationResultSeverity minSeverity;
+		private Integer maxResults;
+		private Integer maxResultsPerType;
+		private boolean echoFileContents = true;
+
+		public ValidationOptionsBuilder(String validationObjective) {
+			this.validationObjective = validationObjective;
+		}
+
+		/**
+		 * Starts from the given options, to build options which only differ from them in some values.
+		 */
+		public ValidationOptionsBuilder(ValidationOptions options) {
+			this.validationObjective = options.validationObjective;
+			this.referenceFileName = options.referenceFileName;
+			this.minSeverity = options.minSeverity;
+			this.maxResults = options.maxResults;
+			this.maxResultsPerType = options.maxResultsPerType;
+			this.echoFileContents = options.echoFileContents;
+		}
+
+		public ValidationOptionsBuilder referenceFileName(String referenceFileName) {
+			this.referenceFileName = referenceFileName;
+			return this;
+		}
+
+		public ValidationOptionsBuilder minSeverity(ValidationResultSeverity minSeverity) {
+			this.minSeverity = minSeverity;
+			return this;
+		}
+
+		public ValidationOptionsBuilder maxResults(Integer maxResults) {
+			this.maxResults = maxResults;
+			return this;
+		}
+
+		public ValidationOptionsBuilder maxResultsPerType(Integer maxResultsPerType) {
+			this.maxResultsPerType = maxResultsPerType;
+			return this;
+		}
+
+		/**
+		 * @param echoFileContents false to return the results without the document in their ccdaFileContents, which
+		 *                         then is not decoded to a string (default: true, as the validation endpoint does)
+		 */
+		public ValidationOptionsBuilder echoFileContents(boolean echoFileContents) {
+			this.echoFileContents = echoFileContents;
+			return this;
+		}
+
+		/**
+		 * @throws IllegalArgumentException if maxResults or maxResultsPerType is less than 1
+		 */
+		public ValidationOptions build() {
+			ValidationOptions options = new ValidationOptions(this);
+			options.createResultFilter();
+			return options;
+		}
+	}
+}
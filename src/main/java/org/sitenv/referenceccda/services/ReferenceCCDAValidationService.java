@@ -1,21 +1,25 @@
 package org.sitenv.referenceccda.services;
 
 import java.io.IOException;
-import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 
-import org.apache.commons.io.IOUtils;
-import org.apache.commons.io.input.BOMInputStream;
 import org.apache.commons.lang3.exception.ExceptionUtils;
 import org.apache.log4j.Logger;
 import org.sitenv.referenceccda.dto.ValidationResultsDto;
 import org.sitenv.referenceccda.dto.ValidationResultsMetaData;
+import org.sitenv.referenceccda.validators.CCDADocument;
 import org.sitenv.referenceccda.validators.RefCCDAValidationResult;
+import org.sitenv.referenceccda.validators.ValidationResultFilter;
+import org.sitenv.referenceccda.validators.ValidationTrace;
 import org.sitenv.referenceccda.validators.content.ReferenceContentValidator;
-import org.sitenv.referenceccda.validators.schema.CCDATypes;
+import org.sitenv.referenceccda.validators.enums.ValidationResultSeverity;
+import org.sitenv.referenceccda.validators.enums.ValidationResultType;
+import org.sitenv.referenceccda.validators.schema.CDASchemaValidator;
 import org.sitenv.referenceccda.validators.schema.ReferenceCCDAValidator;
-import org.sitenv.referenceccda.validators.schema.ValidationObjectives;
+import org.sitenv.referenceccda.validators.schema.ValidationPlan;
+import org.sitenv.referenceccda.validators.schema.ValidationPlans;
 import org.sitenv.referenceccda.validators.vocabulary.VocabularyCCDAValidator;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
@@ -29,6 +33,11 @@ public class ReferenceCCDAValidationService {
     private ReferenceCCDAValidator referenceCCDAValidator;
     private VocabularyCCDAValidator vocabularyCCDAValidator;
     private ReferenceContentValidator goldMatchingValidator;
+    private CDASchemaValidator cdaSchemaValidator;
+    @Autowired(required = false)
+    private SlowValidationRecorder slowValidationRecorder;
+    @Autowired(required = false)
+    private ValidationAllocationStatistics validationAllocationStatistics;
     
     private static final String ERROR_GENERAL_PREFIX = "The service has encountered ";
     private static final String ERROR_PARSING_PREFIX = ERROR_GENERAL_PREFIX + "an error parsing the document. ";
@@ -41,23 +50,64 @@ public class ReferenceCCDAValidationService {
 			+ "Please verify the document does not contain in-line XSL styling and/or address " + ERROR_FOLLOWING_ERROR_POSTFIX;
 	private static final String ERROR_GENERIC_EXCEPTION = ERROR_GENERAL_PREFIX + ERROR_FOLLOWING_ERROR_POSTFIX;
 
-    @Autowired
     public ReferenceCCDAValidationService(ReferenceCCDAValidator referenceCCDAValidator, VocabularyCCDAValidator vocabularyCCDAValidator, 
     		ReferenceContentValidator goldValidator) {
+        this(referenceCCDAValidator, vocabularyCCDAValidator, goldValidator, new CDASchemaValidator());
+    }
+
+    @Autowired
+    public ReferenceCCDAValidationService(ReferenceCCDAValidator referenceCCDAValidator, VocabularyCCDAValidator vocabularyCCDAValidator, 
+    		ReferenceContentValidator goldValidator, CDASchemaValidator cdaSchemaValidator) {
         this.referenceCCDAValidator = referenceCCDAValidator;
         this.vocabularyCCDAValidator = vocabularyCCDAValidator;
         this.goldMatchingValidator = goldValidator;
+        this.cdaSchemaValidator = cdaSchemaValidator;
     }
 
     public ValidationResultsDto validateCCDA(String validationObjective, String referenceFileName, MultipartFile ccdaFile) {
+        return validateCCDA(validationObjective, referenceFileName, ccdaFile, ValidationResultFilter.acceptAll());
+    }
+
+    public ValidationResultsDto validateCCDA(String validationObjective, String referenceFileName, MultipartFile ccdaFile,
+    		ValidationResultFilter resultFilter) {
+        return validateCCDA(validationObjective, referenceFileName, CCDADocument.fromMultipartFile(ccdaFile), resultFilter);
+    }
+
+    /**
+     * Validates a document which was not uploaded, e.g. read from disk by the batch validator.
+     */
+    public ValidationResultsDto validateCCDA(String validationObjective, String referenceFileName, CCDADocument ccdaDocument,
+    		ValidationResultFilter resultFilter) {
+        return validateCCDA(validationObjective, referenceFileName, ccdaDocument, resultFilter, new ValidationTrace());
+    }
+
+    /**
+     * @param trace created by the caller on the current thread, to read the timings and allocations of the stages once
+     *              this returns
+     */
+    public ValidationResultsDto validateCCDA(String validationObjective, String referenceFileName, CCDADocument ccdaDocument,
+    		ValidationResultFilter resultFilter, ValidationTrace trace) {
+        return validateCCDA(validationObjective, referenceFileName, ccdaDocument, resultFilter, trace, true);
+    }
+
+    /**
+     * @param echoFileContents false to leave the ccdaFileContents of the results metadata null, so that callers which
+     *                         do not return the document, such as the batch validators, do not decode it to a string
+     */
+    public ValidationResultsDto validateCCDA(String validationObjective, String referenceFileName, CCDADocument ccdaDocument,
+    		ValidationResultFilter resultFilter, ValidationTrace trace, boolean echoFileContents) {
         ValidationResultsDto resultsDto = new ValidationResultsDto();
         ValidationResultsMetaData resultsMetaData = new ValidationResultsMetaData();
         List<RefCCDAValidationResult> validatorResults = new ArrayList<>();
+        ValidationTrace.setCurrent(trace);
         try {
-            validatorResults = runValidators(validationObjective, referenceFileName, ccdaFile);
-            resultsMetaData = buildValidationMedata(validatorResults, validationObjective);
-            resultsMetaData.setCcdaFileName(ccdaFile.getName());
-            resultsMetaData.setCcdaFileContents(new String(ccdaFile.getBytes()));
+            validatorResults = runValidators(validationObjective, referenceFileName, ccdaDocument, resultFilter, trace);
+            resultsMetaData = buildValidationMedata(validatorResults, validationObjective, resultFilter);
+            resultsMetaData.setCcdaFileName(ccdaDocument.getName());
+            if (echoFileContents) {
+            	trace.startStage(ValidationTrace.STRING_CONVERSION_STAGE);
+            	resultsMetaData.setCcdaFileContents(ccdaDocument.asString());
+            }
 	    } catch (IOException ioE) {
 	    	processValidateCCDAException(resultsMetaData, 
 	    			ERROR_IO_EXCEPTION, validationObjective, ioE);
@@ -70,7 +120,17 @@ public class ReferenceCCDAValidationService {
 		} catch (Exception catchAllE) {
 			processValidateCCDAException(resultsMetaData, 
 					ERROR_GENERIC_EXCEPTION, validationObjective, catchAllE);
-	    }        
+	    } finally {
+	    	ValidationTrace.setCurrent(null);
+	    }
+        trace.end();
+        if (validationAllocationStatistics != null) {
+        	validationAllocationStatistics.record(validationObjective, trace);
+        }
+        if (slowValidationRecorder != null) {
+        	slowValidationRecorder.record(trace, validationObjective, referenceFileName, ccdaDocument, resultFilter,
+        			validatorResults, resultsMetaData);
+        }
         resultsDto.setResultsMetaData(resultsMetaData);
         resultsDto.setCcdaValidationResults(validatorResults);
         return resultsDto;
@@ -92,30 +152,44 @@ public class ReferenceCCDAValidationService {
 	}
 
     private List<RefCCDAValidationResult> runValidators(String validationObjective, String referenceFileName,
-                                                        MultipartFile ccdaFile) throws SAXException, Exception {
+                                                        CCDADocument ccdaFileContents, ValidationResultFilter resultFilter,
+                                                        ValidationTrace trace) throws SAXException, Exception {
         List<RefCCDAValidationResult> validatorResults = new ArrayList<>();
-        InputStream ccdaFileInputStream = null;
+        ValidationPlan plan = ValidationPlans.getPlan(validationObjective);
+        if (plan.isSchemaOnly()) {
+        	trace.startStage(ValidationTrace.SCHEMA_STAGE);
+        	validatorResults.addAll(doSchemaValidation(validationObjective, referenceFileName, ccdaFileContents, resultFilter));
+        	logger.info("Skipping MDHT, Vocabulary and Content validation due to: validationObjective POSTed: " + validationObjective);
+        	return validatorResults;
+        }
         try {
-            ccdaFileInputStream = ccdaFile.getInputStream();
-            String ccdaFileContents = IOUtils.toString(new BOMInputStream(ccdaFileInputStream));
-
-            List<RefCCDAValidationResult> mdhtResults = doMDHTValidation(validationObjective, referenceFileName, ccdaFileContents);
+            trace.startStage(ValidationTrace.MDHT_STAGE);
+            List<RefCCDAValidationResult> mdhtResults = doMDHTValidation(validationObjective, referenceFileName, ccdaFileContents, resultFilter);
             if(mdhtResults != null && !mdhtResults.isEmpty()) {
             	logger.info("Adding MDHT results");
             	validatorResults.addAll(mdhtResults);
             }
             
-            boolean isSchemaErrorInMdhtResults = mdhtResultsHaveSchemaError(mdhtResults);
-            boolean isObjectiveAllowingVocabularyValidation = objectiveAllowsVocabularyValidation(validationObjective);
-            if (!isSchemaErrorInMdhtResults && isObjectiveAllowingVocabularyValidation) {
-                List<RefCCDAValidationResult> vocabResults = doVocabularyValidation(validationObjective, referenceFileName, ccdaFileContents);
+            // recorded by the validator before the caps, the schema error results may have been left out
+            boolean isSchemaErrorInMdhtResults = resultFilter.hasSchemaError();
+            boolean isObjectiveAllowingVocabularyValidation = plan.isVocabularyValidation();
+            if (resultFilter.isFull()) {
+            	resultFilter.markTruncated();
+            	logger.info("Skipping Vocabulary and Content validation due to: maximum number of results reached");
+            } else if (!isSchemaErrorInMdhtResults && isObjectiveAllowingVocabularyValidation) {
+                trace.startStage(ValidationTrace.VOCABULARY_STAGE);
+                List<RefCCDAValidationResult> vocabResults = doVocabularyValidation(validationObjective, referenceFileName, ccdaFileContents, resultFilter);
             	if(vocabResults != null && !vocabResults.isEmpty()) {
             		logger.info("Adding Vocabulary results");
             		validatorResults.addAll(vocabResults);
             	}
             	
-            	if(objectiveAllowsContentValidation(validationObjective)) {
-	                List<RefCCDAValidationResult> contentResults = doContentValidation(validationObjective, referenceFileName, ccdaFileContents);
+            	if(resultFilter.isFull()) {
+            		resultFilter.markTruncated();
+            		logger.info("Skipping Content validation due to: maximum number of results reached");
+            	} else if(plan.isContentValidation()) {
+	                trace.startStage(ValidationTrace.CONTENT_STAGE);
+	                List<RefCCDAValidationResult> contentResults = doContentValidation(validationObjective, referenceFileName, ccdaFileContents, resultFilter);
 	            	if(contentResults != null && !contentResults.isEmpty()) {
 	            		logger.info("Adding Content results");
 	                	validatorResults.addAll(contentResults);
@@ -134,63 +208,53 @@ public class ReferenceCCDAValidationService {
             }
         } catch (IOException e) {
             throw new RuntimeException("Error getting CCDA contents from provided file", e);
-        }finally {
-            closeFileInputStream(ccdaFileInputStream);
         }
         return validatorResults;
     }
      
-	private boolean mdhtResultsHaveSchemaError(List<RefCCDAValidationResult> mdhtResults) {
-        for(RefCCDAValidationResult result : mdhtResults){
-            if(result.isSchemaError()){
-                return true;
-            }
-        }
-		return false;
-	}    
-    
-    private boolean objectiveAllowsVocabularyValidation(String validationObjective) {
-        return !validationObjective.equalsIgnoreCase(ValidationObjectives.Sender.C_CDA_IG_ONLY) 
-        		&& !referenceCCDAValidator.isValidationObjectiveMu2Type() 
-        		&& !validationObjective.equalsIgnoreCase(CCDATypes.NON_SPECIFIC_CCDA);
-    }
-	
-	private boolean objectiveAllowsContentValidation(String validationObjective) {
-		return ReferenceCCDAValidator.isValidationObjectiveACertainType(validationObjective, 
-				ValidationObjectives.ALL_UNIQUE_CONTENT_ONLY);
-	}
-
-    private List<RefCCDAValidationResult> doMDHTValidation(String validationObjective, String referenceFileName, String ccdaFileContents) throws SAXException, Exception {
+    private List<RefCCDAValidationResult> doMDHTValidation(String validationObjective, String referenceFileName, CCDADocument ccdaFileContents,
+    		ValidationResultFilter resultFilter) throws SAXException, Exception {
     	logger.info("Attempting MDHT validation...");
-        return referenceCCDAValidator.validateFile(validationObjective, referenceFileName, ccdaFileContents);
+        return referenceCCDAValidator.validateFile(validationObjective, referenceFileName, ccdaFileContents, resultFilter);
     }
 	
-    private ArrayList<RefCCDAValidationResult> doVocabularyValidation(String validationObjective, String referenceFileName, String ccdaFileContents) throws SAXException {
+    private List<RefCCDAValidationResult> doSchemaValidation(String validationObjective, String referenceFileName, CCDADocument ccdaFileContents,
+    		ValidationResultFilter resultFilter) throws SAXException, Exception {
+    	logger.info("Attempting Schema only validation...");
+        return cdaSchemaValidator.validateFile(validationObjective, referenceFileName, ccdaFileContents, resultFilter);
+    }
+
+    private ArrayList<RefCCDAValidationResult> doVocabularyValidation(String validationObjective, String referenceFileName, CCDADocument ccdaFileContents,
+    		ValidationResultFilter resultFilter) throws SAXException {
     	logger.info("Attempting Vocabulary validation...");
-    	return vocabularyCCDAValidator.validateFile(validationObjective, referenceFileName, ccdaFileContents);
+    	return vocabularyCCDAValidator.validateFile(validationObjective, referenceFileName, ccdaFileContents, resultFilter);
     }
     
-    private List<RefCCDAValidationResult> doContentValidation(String validationObjective, String referenceFileName, String ccdaFileContents) throws SAXException {
+    private List<RefCCDAValidationResult> doContentValidation(String validationObjective, String referenceFileName, CCDADocument ccdaFileContents,
+    		ValidationResultFilter resultFilter) throws SAXException, IOException {
     	logger.info("Attempting Content validation...");
-    	return goldMatchingValidator.validateFile(validationObjective, referenceFileName, ccdaFileContents);
+    	return goldMatchingValidator.validateFile(validationObjective, referenceFileName, ccdaFileContents, resultFilter);
     }
 
-    private ValidationResultsMetaData buildValidationMedata(List<RefCCDAValidationResult> validatorResults, String ccdaDocType) {
+    private ValidationResultsMetaData buildValidationMedata(List<RefCCDAValidationResult> validatorResults, String ccdaDocType,
+    		ValidationResultFilter resultFilter) {
         ValidationResultsMetaData resultsMetaData = new ValidationResultsMetaData();
         for (RefCCDAValidationResult result : validatorResults) {
             resultsMetaData.addCount(result.getType());
         }
+        if (resultFilter.getMinSeverity() != ValidationResultSeverity.INFO) {
+            resultsMetaData.setMinSeverity(resultFilter.getMinSeverity().name());
+        }
+        for (Map.Entry<ValidationResultType, Integer> suppressed : resultFilter.getSuppressedCounts().entrySet()) {
+            resultsMetaData.addSuppressedCount(suppressed.getKey(), suppressed.getValue());
+        }
+        resultsMetaData.setMaxResults(resultFilter.getMaxResults());
+        resultsMetaData.setMaxResultsPerType(resultFilter.getMaxResultsPerType());
+        resultsMetaData.setTruncated(resultFilter.isTruncated());
+        for (Map.Entry<ValidationResultType, Integer> truncated : resultFilter.getTruncatedCounts().entrySet()) {
+            resultsMetaData.addTruncatedCount(truncated.getKey(), truncated.getValue());
+        }
         resultsMetaData.setCcdaDocumentType(ccdaDocType);
         return resultsMetaData;
     }
-
-    private void closeFileInputStream(InputStream fileIs) {
-        if (fileIs != null) {
-            try {
-                fileIs.close();
-            } catch (IOException e) {
-                throw new RuntimeException("Error closing CCDA file input stream", e);
-            }
-        }
-    }
 }
@@ -0,0 +1,186 @@
+package org.sitenv.referenceccda.services;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.log4j.Logger;
+import org.sitenv.referenceccda.dto.SlowValidationRecord;
+import org.sitenv.referenceccda.dto.ValidationResultsMetaData;
+import org.sitenv.referenceccda.validators.CCDADocument;
+import org.sitenv.referenceccda.validators.RefCCDAValidationResult;
+import org.sitenv.referenceccda.validators.ValidationResultFilter;
+import org.sitenv.referenceccda.validators.ValidationTrace;
+import org.sitenv.referenceccda.validators.XMLParserProvider;
+import org.sitenv.referenceccda.validators.enums.ValidationResultSeverity;
+import org.sitenv.referenceccda.validators.enums.ValidationResultType;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Keeps a diagnostic record of the last validations which took longer than referenceccda.slowValidations.thresholdMillis,
+ * up to referenceccda.slowValidations.maxRecords, served on /admin/slowvalidations when referenceccda.admin.enabled is
+ * set. The document is counted for the record only once it is known to be slow, so that fast validations only pay for
+ * their {@link ValidationTrace}.
+ * <p>
+ * When referenceccda.slowValidations.quarantineDir is set, slow documents are also copied there, and deleted again when
+ * their record is evicted.
+ */
+@Component
+public class SlowValidationRecorder {
+	private static Logger logger = Logger.getLogger(SlowValidationRecorder.class);
+
+	@Value("${referenceccda.slowValidations.thresholdMillis:10000}")
+	private long thresholdMillis = 10000;
+	@Value("${referenceccda.slowValidations.maxRecords:100}")
+	private int maxRecords = 100;
+	@Value("${referenceccda.slowValidations.quarantineDir:}")
+	private String quarantineDir = "";
+
+	// newest first
+	private final Deque<SlowValidationRecord> records = new ArrayDeque<SlowValidationRecord>();
+
+	/**
+	 * Records the given validation if it was slow.
+	 *
+	 * @param resultFilter the filter of the validation, holding the counts of the results left out of the response
+	 */
+	public void record(ValidationTrace trace, String validationObjective, String referenceFileName, CCDADocument ccdaFile,
+			ValidationResultFilter resultFilter, List<RefCCDAValidationResult> results, ValidationResultsMetaData resultsMetaData) {
+		trace.end();
+		if (trace.getElapsedMillis() < thresholdMillis) {
+			return;
+		}
+		SlowValidationRecord record = new SlowValidationRecord();
+		record.setStartedAt(trace.getStartMillis());
+		record.setTotalMillis(trace.getElapsedMillis());
+		record.setStageMillis(trace.getStageMillis());
+		record.setStageAllocatedBytes(trace.getStageAllocatedBytes());
+		record.setGcCount(trace.getGcCount());
+		record.setGcMillis(trace.getGcMillis());
+		record.setThread(Thread.currentThread().getName());
+		record.setValidationObjective(validationObjective);
+		record.setReferenceFileName(referenceFileName);
+		record.setCcdaFileName(ccdaFile.getName());
+		record.setDocumentSize(ccdaFile.getSize());
+		record.setElementCount(countElements(ccdaFile));
+		record.setResultsPerSeverity(countResultsPerSeverity(resultFilter, results));
+		record.setServiceError(resultsMetaData.isServiceError());
+		record.setServiceErrorMessage(resultsMetaData.getServiceErrorMessage());
+		record.setQuarantinedFile(quarantine(ccdaFile, trace.getStartMillis()));
+		logger.warn("Slow validation of " + ccdaFile.getName() + " (" + ccdaFile.getSize() + " bytes) for "
+				+ validationObjective + ": " + record.getTotalMillis() + " ms, " + record.getStageMillis()
+				+ ", GC " + record.getGcMillis() + " ms");
+		SlowValidationRecord evicted = null;
+		synchronized (records) {
+			records.addFirst(record);
+			if (records.size() > maxRecords) {
+				evicted = records.removeLast();
+			}
+		}
+		if (evicted != null && evicted.getQuarantinedFile() != null) {
+			try {
+				Files.deleteIfExists(Paths.get(evicted.getQuarantinedFile()));
+			} catch (IOException e) {
+				logger.error("Error deleting " + evicted.getQuarantinedFile() + ": " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * @return the records of the last slow validations, newest first
+	 */
+	public List<SlowValidationRecord> getRecords() {
+		synchronized (records) {
+			return new ArrayList<SlowValidationRecord>(records);
+		}
+	}
+
+	private static Map<String, Integer> countResultsPerSeverity(ValidationResultFilter resultFilter,
+			List<RefCCDAValidationResult> results) {
+		Map<ValidationResultType, Integer> countsPerType = new LinkedHashMap<ValidationResultType, Integer>();
+		for (RefCCDAValidationResult result : results) {
+			addCount(countsPerType, result.getType(), 1);
+		}
+		for (Map.Entry<ValidationResultType, Integer> suppressed : resultFilter.getSuppressedCounts().entrySet()) {
+			addCount(countsPerType, suppressed.getKey(), suppressed.getValue());
+		}
+		for (Map.Entry<ValidationResultType, Integer> truncated : resultFilter.getTruncatedCounts().entrySet()) {
+			addCount(countsPerType, truncated.getKey(), truncated.getValue());
+		}
+		Map<String, Integer> countsPerSeverity = new LinkedHashMap<String, Integer>();
+		for (ValidationResultSeverity severity : ValidationResultSeverity.values()) {
+			countsPerSeverity.put(severity.name(), 0);
+		}
+		for (Map.Entry<ValidationResultType, Integer> count : countsPerType.entrySet()) {
+			String severity = count.getKey().getSeverity().name();
+			countsPerSeverity.put(severity, countsPerSeverity.get(severity) + count.getValue());
+		}
+		return countsPerSeverity;
+	}
+
+	private static void addCount(Map<ValidationResultType, Integer> counts, ValidationResultType type, int count) {
+		Integer previous = counts.get(type);
+		counts.put(type, previous != null ? previous + count : count);
+	}
+
+	private static long countElements(CCDADocument ccdaFile) {
+		long elementCount = 0;
+		try (InputStream in = ccdaFile.openStream()) {
+			XMLStreamReader reader = XMLParserProvider.createXMLStreamReader(in);
+			try {
+				while (reader.hasNext()) {
+					if (reader.next() == XMLStreamConstants.START_ELEMENT) {
+						elementCount++;
+					}
+				}
+			} finally {
+				reader.close();
+			}
+			return elementCount;
+		} catch (IOException | XMLStreamException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Copies the document to a new file of the quarantine directory, named after its start time and name with a unique
+	 * part in between, as documents of the same name may be slow in the same millisecond.
+	 */
+	private String quarantine(CCDADocument ccdaFile, long startMillis) {
+		if (StringUtils.isEmpty(quarantineDir)) {
+			return null;
+		}
+		String name = ccdaFile.getName() != null ? ccdaFile.getName().replaceAll("[^A-Za-z0-9._-]", "_") : "document.xml";
+		Path file = null;
+		try (InputStream in = ccdaFile.openStream()) {
+			file = Files.createTempFile(Files.createDirectories(Paths.get(quarantineDir)), startMillis + "-", "-" + name);
+			Files.copy(in, file, StandardCopyOption.REPLACE_EXISTING);
+			return file.toString();
+		} catch (IOException e) {
+			logger.error("Error quarantining " + ccdaFile.getName() + ": " + e.getMessage());
+			if (file != null) {
+				try {
+					Files.deleteIfExists(file);
+				} catch (IOException deleteException) {
+					logger.error("Error deleting " + file + ": " + deleteException.getMessage());
+				}
+			}
+			return null;
+		}
+	}
+}
@@ -0,0 +1,233 @@
+package org.sitenv.referenceccda.services;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.annotation.PostConstruct;
+
+import org.apache.log4j.Logger;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Component;
+
+/**
+ * Limits the number of validations running at once, in front of
+ * {@link ReferenceCCDAValidationService#validateCCDA}.
+ * <p>
+ * A request runs immediately while fewer than the current limit are running, otherwise it waits in a short bounded
+ * queue for up to referenceccda.admission.queueTimeoutMillis. A request which finds the queue full, or times out in
+ * it, is rejected with a {@link ValidationRejectedException}, reported as a 429 with a Retry-After header.
+ * <p>
+ * The limit adapts to the observed latency: after every window of completed validations the p95 latency of the
+ * window is compared with referenceccda.admission.targetLatencyMillis. The limit is cut by a quarter when it is over
+ * the target, and raised by one when it is under and the limit was reached during the window, between 1 and
+ * referenceccda.admission.maxConcurrent. The queue depth, rejections and current limit are exported over JMX.
+ */
+@Component
+@ManagedResource(objectName = "org.sitenv.referenceccda:name=ValidationAdmissionController",
+		description = "Admission control of C-CDA validations")
+public class ValidationAdmissionController {
+	private static Logger logger = Logger.getLogger(ValidationAdmissionController.class);
+
+	private static final int LATENCY_WINDOW_SIZE = 50;
+	private static final int MIN_CONCURRENT = 1;
+
+	@Value("${referenceccda.admission.maxConcurrent:0}")
+	private int maxConcurrent;
+	@Value("${referenceccda.admission.queueSize:10}")
+	private int queueSize = 10;
+	@Value("${referenceccda.admission.queueTimeoutMillis:5000}")
+	private long queueTimeoutMillis = 5000;
+	@Value("${referenceccda.admission.targetLatencyMillis:20000}")
+	private long targetLatencyMillis = 20000;
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition permitReleased = lock.newCondition();
+	private int limit;
+	private int inFlight;
+	private int queued;
+	private long admittedCount;
+	private long rejectedCount;
+	private final long[] latencyWindowNanos = new long[LATENCY_WINDOW_SIZE];
+	private int latencyWindowCount;
+	private boolean limitReachedInWindow;
+	private long lastP95LatencyNanos;
+
+	public ValidationAdmissionController() {
+	}
+
+	public ValidationAdmissionController(int maxConcurrent, int queueSize, long queueTimeoutMillis, long targetLatencyMillis) {
+		this.maxConcurrent = maxConcurrent;
+		this.queueSize = queueSize;
+		this.queueTimeoutMillis = queueTimeoutMillis;
+		this.targetLatencyMillis = targetLatencyMillis;
+		init();
+	}
+
+	@PostConstruct
+	public void init() {
+		if (maxConcurrent <= 0) {
+			maxConcurrent = Runtime.getRuntime().availableProcessors() * 2;
+		}
+		limit = maxConcurrent;
+		logger.info("Validation admission: maxConcurrent=" + maxConcurrent + ", queueSize=" + queueSize
+				+ ", queueTimeoutMillis=" + queueTimeoutMillis + ", targetLatencyMillis=" + targetLatencyMillis);
+	}
+
+	/**
+	 * Waits for a validation slot. Every successful call must be followed by a call to {@link #release(long)}, or to
+	 * {@link #release()} if the request was not validated.
+	 *
+	 * @throws ValidationRejectedException if the queue is full or no slot became free in time
+	 */
+	public void acquire() {
+		lock.lock();
+		try {
+			if (inFlight >= limit) {
+				limitReachedInWindow = true;
+				if (queued >= queueSize) {
+					throw reject("the validation queue is full");
+				}
+				queued++;
+				try {
+					long remainingNanos = TimeUnit.MILLISECONDS.toNanos(queueTimeoutMillis);
+					while (inFlight >= limit) {
+						if (remainingNanos <= 0) {
+							throw reject("no validation slot became available within " + queueTimeoutMillis + " ms");
+						}
+						remainingNanos = permitReleased.awaitNanos(remainingNanos);
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw reject("interrupted while waiting for a validation slot");
+				} finally {
+					queued--;
+				}
+			}
+			inFlight++;
+			admittedCount++;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Frees the slot taken by {@link #acquire()} and records the latency of the validation which held it.
+	 */
+	public void release(long latencyNanos) {
+		lock.lock();
+		try {
+			inFlight--;
+			latencyWindowNanos[latencyWindowCount++] = latencyNanos;
+			if (latencyWindowCount == LATENCY_WINDOW_SIZE) {
+				adaptLimit();
+			}
+			permitReleased.signal();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Frees the slot taken by {@link #acquire()} of a request which was not validated, such as one rejected by the
+	 * memory budget, without recording its latency.
+	 */
+	public void release() {
+		lock.lock();
+		try {
+			inFlight--;
+			permitReleased.signal();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void adaptLimit() {
+		Arrays.sort(latencyWindowNanos);
+		lastP95LatencyNanos = latencyWindowNanos[(int) Math.ceil(LATENCY_WINDOW_SIZE * 0.95) - 1];
+		int previousLimit = limit;
+		if (lastP95LatencyNanos > TimeUnit.MILLISECONDS.toNanos(targetLatencyMillis)) {
+			limit = Math.max(MIN_CONCURRENT, limit - Math.max(1, limit / 4));
+		} else if (limitReachedInWindow) {
+			limit = Math.min(maxConcurrent, limit + 1);
+		}
+		if (limit != previousLimit) {
+			logger.info("Validation concurrency limit changed from " + previousLimit + " to " + limit + " (p95 latency "
+					+ TimeUnit.NANOSECONDS.toMillis(lastP95LatencyNanos) + " ms)");
+			permitReleased.signalAll();
+		}
+		latencyWindowCount = 0;
+		limitReachedInWindow = false;
+	}
+
+	private ValidationRejectedException reject(String reason) {
+		rejectedCount++;
+		long retryAfterSeconds = Math.max(1, TimeUnit.NANOSECONDS.toSeconds(lastP95LatencyNanos));
+		logger.warn("Rejected a validation request as " + reason + " (in flight: " + inFlight + ", limit: " + limit + ")");
+		return new ValidationRejectedException("The service is busy: " + reason + ". Please retry after "
+				+ retryAfterSeconds + " seconds.", retryAfterSeconds);
+	}
+
+	@ManagedAttribute(description = "Current maximum number of concurrent validations")
+	public int getCurrentLimit() {
+		lock.lock();
+		try {
+			return limit;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@ManagedAttribute(description = "Number of validations running")
+	public int getInFlight() {
+		lock.lock();
+		try {
+			return inFlight;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@ManagedAttribute(description = "Number of requests waiting for a validation slot")
+	public int getQueueDepth() {
+		lock.lock();
+		try {
+			return queued;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@ManagedAttribute(description = "Total number of admitted validations")
+	public long getAdmittedCount() {
+		lock.lock();
+		try {
+			return admittedCount;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@ManagedAttribute(description = "Total number of rejected validations")
+	public long getRejectedCount() {
+		lock.lock();
+		try {
+			return rejectedCount;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@ManagedAttribute(description = "p95 latency in milliseconds of the last completed window of validations")
+	public long getP95LatencyMillis() {
+		lock.lock();
+		try {
+			return TimeUnit.NANOSECONDS.toMillis(lastP95LatencyNanos);
+		} finally {
+			lock.unlock();
+		}
+	}
+}
@@ -0,0 +1,130 @@
+package org.sitenv.referenceccda.services;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.sitenv.referenceccda.validators.ValidationTrace;
+import org.sitenv.referenceccda.validators.schema.ValidationPlans;
+import org.springframework.stereotype.Component;
+
+/**
+ * Histograms of the bytes allocated by each stage of the validations of each objective, as measured by their
+ * {@link ValidationTrace}, served on /admin/allocations when referenceccda.admin.enabled is set. Unknown objectives are
+ * counted under the objective they are validated as, so the histograms are bounded by the number of objectives.
+ * <p>
+ * Allocations are counted in power of two buckets from 1 KB, so a regression moves the validations to a higher bucket
+ * whatever the size of the documents.
+ */
+@Component
+public class ValidationAllocationStatistics {
+	private static final int MIN_BUCKET_SHIFT = 10;
+	private static final int BUCKETS = 64 - MIN_BUCKET_SHIFT;
+
+	// objective, then stage, in order of first validation
+	private final Map<String, Map<String, AllocationHistogram>> histograms = new LinkedHashMap<String, Map<String, AllocationHistogram>>();
+
+	/**
+	 * Adds the allocations of each stage of the given validation.
+	 */
+	public void record(String validationObjective, ValidationTrace trace) {
+		for (Map.Entry<String, Long> stage : trace.getStageAllocatedBytes().entrySet()) {
+			record(validationObjective, stage.getKey(), stage.getValue());
+		}
+	}
+
+	public void record(String validationObjective, String stage, long allocatedBytes) {
+		String objective;
+		try {
+			objective = ValidationPlans.getPlan(validationObjective).getValidationObjective();
+		} catch (Exception e) {
+			// a null or empty objective is a service error, which is not worth counting
+			return;
+		}
+		synchronized (histograms) {
+			Map<String, AllocationHistogram> stages = histograms.get(objective);
+			if (stages == null) {
+				stages = new LinkedHashMap<String, AllocationHistogram>();
+				histograms.put(objective, stages);
+			}
+			AllocationHistogram histogram = stages.get(stage);
+			if (histogram == null) {
+				histogram = new AllocationHistogram();
+				stages.put(stage, histogram);
+			}
+			histogram.add(Math.max(allocatedBytes, 0));
+		}
+	}
+
+	/**
+	 * @return a copy of the histograms of each stage of each objective
+	 */
+	public Map<String, Map<String, AllocationHistogram>> getHistograms() {
+		synchronized (histograms) {
+			Map<String, Map<String, AllocationHistogram>> copy = new LinkedHashMap<String, Map<String, AllocationHistogram>>();
+			for (Map.Entry<String, Map<String, AllocationHistogram>> objective : histograms.entrySet()) {
+				Map<String, AllocationHistogram> stages = new LinkedHashMap<String, AllocationHistogram>();
+				for (Map.Entry<String, AllocationHistogram> stage : objective.getValue().entrySet()) {
+					stages.put(stage.getKey(), new AllocationHistogram(stage.getValue()));
+				}
+				copy.put(objective.getKey(), stages);
+			}
+			return copy;
+		}
+	}
+
+	public static class AllocationHistogram {
+		private long count;
+		private long totalBytes;
+		private long maxBytes;
+		private final long[] bucketCounts;
+
+		AllocationHistogram() {
+			bucketCounts = new long[BUCKETS];
+		}
+
+		AllocationHistogram(AllocationHistogram histogram) {
+			count = histogram.count;
+			totalBytes = histogram.totalBytes;
+			maxBytes = histogram.maxBytes;
+			bucketCounts = histogram.bucketCounts.clone();
+		}
+
+		void add(long allocatedBytes) {
+			count++;
+			totalBytes += allocatedBytes;
+			maxBytes = Math.max(maxBytes, allocatedBytes);
+			bucketCounts[Math.max(64 - Long.numberOfLeadingZeros(allocatedBytes) - MIN_BUCKET_SHIFT, 0)]++;
+		}
+
+		public long getCount() {
+			return count;
+		}
+
+		public long getTotalBytes() {
+			return totalBytes;
+		}
+
+		public long getMeanBytes() {
+			return count > 0 ? totalBytes / count : 0;
+		}
+
+		public long getMaxBytes() {
+			return maxBytes;
+		}
+
+		/**
+		 * @return the number of validations below each power of two of bytes which has any, by increasing bound
+		 */
+		public Map<Long, Long> getBuckets() {
+			Map<Long, Long> buckets = new TreeMap<Long, Long>();
+			for (int bucket = 0; bucket < bucketCounts.length; bucket++) {
+				if (bucketCounts[bucket] > 0) {
+					buckets.put(bucket + MIN_BUCKET_SHIFT < 63 ? 1L << (bucket + MIN_BUCKET_SHIFT) : Long.MAX_VALUE,
+							bucketCounts[bucket]);
+				}
+			}
+			return buckets;
+		}
+	}
+}
@@ -0,0 +1,193 @@
+package org.sitenv.referenceccda.services;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+
+import org.apache.log4j.Logger;
+import org.sitenv.referenceccda.validators.ValidationTrace;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Component;
+
+/**
+ * A node wide memory budget from which each validation reserves an estimate of the heap it needs before it runs, so
+ * that a few very large documents cannot exhaust the heap alongside many small ones.
+ * <p>
+ * The estimate is a fixed base plus the upload size times a bytes per document byte factor. The factor starts at
+ * referenceccda.memoryBudget.initialBytesPerDocumentByte and is calibrated from the bytes allocated by each completed
+ * validation, as reported by the HotSpot ThreadMXBean. The {@link ValidationTrace} of the validation is used when
+ * given, so the diagnostic conversion and vocabulary indexing forked to the validation fork-join pool are counted
+ * along with the request thread. Allocations made by threads the validation does not trace are not counted.
+ * <p>
+ * Allocated bytes are an upper bound of the heap a validation holds at once: they include the short lived garbage
+ * collected while it runs, typically most of them for MDHT. The budget therefore admits fewer concurrent validations
+ * than the heap could hold, which errs on the safe side; referenceccda.memoryBudget.totalBytes can be raised above
+ * its default of half the heap when the garbage collection logs show room to spare. A request waits up to
+ * referenceccda.memoryBudget.maxWaitMillis for its reservation and is then rejected with a
+ * {@link ValidationRejectedException}. A request larger than the whole budget runs alone.
+ */
+@Component
+@ManagedResource(objectName = "org.sitenv.referenceccda:name=ValidationMemoryBudget",
+		description = "Heap budget of C-CDA validations")
+public class ValidationMemoryBudget {
+	private static Logger logger = Logger.getLogger(ValidationMemoryBudget.class);
+
+	private static final long BASE_BYTES = 2 * 1024 * 1024;
+	private static final double MIN_BYTES_PER_DOCUMENT_BYTE = 5;
+	private static final double MAX_BYTES_PER_DOCUMENT_BYTE = 500;
+	private static final double CALIBRATION_WEIGHT = 0.2;
+
+	@Value("${referenceccda.memoryBudget.totalBytes:0}")
+	private long totalBytes;
+	@Value("${referenceccda.memoryBudget.initialBytesPerDocumentByte:40}")
+	private double bytesPerDocumentByte = 40;
+	@Value("${referenceccda.memoryBudget.maxWaitMillis:10000}")
+	private long maxWaitMillis = 10000;
+
+	private long reservedBytes;
+	private int waiting;
+	private long rejectedCount;
+
+	public ValidationMemoryBudget() {
+	}
+
+	public ValidationMemoryBudget(long totalBytes, double initialBytesPerDocumentByte, long maxWaitMillis) {
+		this.totalBytes = totalBytes;
+		this.bytesPerDocumentByte = initialBytesPerDocumentByte;
+		this.maxWaitMillis = maxWaitMillis;
+		init();
+	}
+
+	@PostConstruct
+	public void init() {
+		if (totalBytes <= 0) {
+			totalBytes = Runtime.getRuntime().maxMemory() / 2;
+		}
+		logger.info("Validation memory budget: totalBytes=" + totalBytes + ", initialBytesPerDocumentByte="
+				+ bytesPerDocumentByte + ", maxWaitMillis=" + maxWaitMillis);
+	}
+
+	/**
+	 * Reserves the estimated memory needed to validate a document of the given size, calibrated from the allocations of
+	 * the reserving thread only, see {@link #reserve(long, ValidationTrace)}.
+	 */
+	public Reservation reserve(long documentSize) {
+		return reserve(documentSize, null);
+	}
+
+	/**
+	 * Reserves the estimated memory needed to validate a document of the given size, waiting for it to become
+	 * available. The reservation must be closed once the validation is done.
+	 *
+	 * @param trace the trace of the validation, whose allocations calibrate the estimate once the reservation is closed,
+	 *              or null to measure the allocations of the reserving thread
+	 * @throws ValidationRejectedException if the memory did not become available in time
+	 */
+	public Reservation reserve(long documentSize, ValidationTrace trace) {
+		long estimate;
+		synchronized (this) {
+			estimate = Math.min(totalBytes, BASE_BYTES + (long) (bytesPerDocumentByte * documentSize));
+			long remainingNanos = TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+			long deadline = System.nanoTime() + remainingNanos;
+			waiting++;
+			try {
+				while (reservedBytes > 0 && reservedBytes + estimate > totalBytes) {
+					if (remainingNanos <= 0) {
+						throw reject(documentSize, estimate);
+					}
+					TimeUnit.NANOSECONDS.timedWait(this, remainingNanos);
+					remainingNanos = deadline - System.nanoTime();
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw reject(documentSize, estimate);
+			} finally {
+				waiting--;
+			}
+			reservedBytes += estimate;
+		}
+		return new Reservation(documentSize, estimate, trace);
+	}
+
+	private synchronized void release(Reservation reservation, long allocatedBytes) {
+		reservedBytes -= reservation.reservedBytes;
+		if (allocatedBytes > 0 && reservation.documentSize > 0) {
+			double observed = (allocatedBytes - BASE_BYTES) / (double) reservation.documentSize;
+			observed = Math.max(MIN_BYTES_PER_DOCUMENT_BYTE, Math.min(MAX_BYTES_PER_DOCUMENT_BYTE, observed));
+			bytesPerDocumentByte += CALIBRATION_WEIGHT * (observed - bytesPerDocumentByte);
+		}
+		notifyAll();
+	}
+
+	private ValidationRejectedException reject(long documentSize, long estimate) {
+		rejectedCount++;
+		logger.warn("Rejected a validation of a " + documentSize + " byte document as its estimated " + estimate
+				+ " bytes were not available (reserved: " + reservedBytes + " of " + totalBytes + ")");
+		return new ValidationRejectedException("The service does not have enough memory available to validate the "
+				+ documentSize + " byte document sent at the moment. Please retry later.",
+				Math.max(1, TimeUnit.MILLISECONDS.toSeconds(maxWaitMillis)));
+	}
+
+	@ManagedAttribute(description = "Total bytes of the budget")
+	public synchronized long getTotalBytes() {
+		return totalBytes;
+	}
+
+	@ManagedAttribute(description = "Bytes currently reserved by running validations")
+	public synchronized long getReservedBytes() {
+		return reservedBytes;
+	}
+
+	@ManagedAttribute(description = "Calibrated estimate of the bytes needed per byte of document")
+	public synchronized double getBytesPerDocumentByte() {
+		return bytesPerDocumentByte;
+	}
+
+	@ManagedAttribute(description = "Number of requests waiting for a reservation")
+	public synchronized int getWaiting() {
+		return waiting;
+	}
+
+	@ManagedAttribute(description = "Total number of requests rejected for lack of memory")
+	public synchronized long getRejectedCount() {
+		return rejectedCount;
+	}
+
+	/**
+	 * A reservation held by one validation, which measures the bytes allocated by the validation, or by the reserving
+	 * thread until it is closed on the same thread, to calibrate the estimate.
+	 */
+	public class Reservation implements AutoCloseable {
+		private final long documentSize;
+		private final long reservedBytes;
+		private final ValidationTrace trace;
+		private final long allocatedBytesAtStart = ValidationTrace.currentThreadAllocatedBytes();
+		private boolean closed;
+
+		private Reservation(long documentSize, long reservedBytes, ValidationTrace trace) {
+			this.documentSize = documentSize;
+			this.reservedBytes = reservedBytes;
+			this.trace = trace;
+		}
+
+		public long getReservedBytes() {
+			return reservedBytes;
+		}
+
+		@Override
+		public void close() {
+			if (!closed) {
+				closed = true;
+				if (trace != null) {
+					release(this, trace.getAllocatedBytes());
+				} else {
+					long allocatedBytesAtEnd = ValidationTrace.currentThreadAllocatedBytes();
+					release(this, allocatedBytesAtStart >= 0 && allocatedBytesAtEnd >= 0
+							? allocatedBytesAtEnd - allocatedBytesAtStart : -1);
+				}
+			}
+		}
+	}
+}
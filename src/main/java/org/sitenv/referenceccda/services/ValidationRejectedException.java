@@ -0,0 +1,22 @@
+package org.sitenv.referenceccda.services;
+
+/**
+ * Thrown when a validation request is not admitted because the service is saturated.
+ */
+public class ValidationRejectedException extends RuntimeException {
+	private static final long serialVersionUID = 1L;
+
+	private final long retryAfterSeconds;
+
+	public ValidationRejectedException(String message, long retryAfterSeconds) {
+		super(message);
+		this.retryAfterSeconds = retryAfterSeconds;
+	}
+
+	/**
+	 * @return the number of seconds after which the client should retry
+	 */
+	public long getRetryAfterSeconds() {
+		return retryAfterSeconds;
+	}
+}
@@ -0,0 +1,570 @@
+package org.sitenv.referenceccda.services;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.log4j.Logger;
+import org.sitenv.referenceccda.dto.ValidationResultsDto;
+import org.sitenv.referenceccda.validators.CCDADocument;
+import org.sitenv.referenceccda.validators.ValidationResultFilter;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+
+/**
+ * Keeps the results of each validation on local disk, so that a client which timed out on a long validation, or a page
+ * which is reloaded, gets them back without the document being validated again.
+ * <p>
+ * Results are stored under a SHA-256 fingerprint of the document bytes and the request options, which is returned to
+ * the client in the X-Validation-Result-Id header
+ * and can be fetched from /results/{resultId}. As the id only depends on the request, a retry of a request finds the
+ * results of the first one, or waits for them while it is still being validated, up to
+ * referenceccda.resultStore.claimWaitSeconds after which it is validated again. Results with a service error are not
+ * stored, and the results are stored without the echoed file contents, which the client already has.
+ * <p>
+ * The id is computed and claimed before the request goes through admission control. Hashing the upload, which the
+ * container has already received, costs little next to validating it, and a request answered from the store or
+ * waiting for the same request in progress then holds neither a validation slot nor a memory reservation.
+ * <p>
+ * The store is a directory of append-only segment files. Each record holds the result id, the time it was stored and
+ * the results encoded with Smile and deflated, followed by a CRC32 so that a record torn by a crash is dropped when the
+ * store is reopened. Only the position of each record is held in memory. A new segment is started when the active one
+ * reaches referenceccda.resultStore.segmentMegabytes, and every referenceccda.resultStore.compactionIntervalMinutes:
+ * <ul>
+ * <li>results stored more than referenceccda.resultStore.retentionHours ago are expired</li>
+ * <li>segments without any live record are deleted, as are the oldest segments beyond
+ * referenceccda.resultStore.maxMegabytes</li>
+ * <li>the live records of segments mostly holding expired or replaced records are copied to the active segment and
+ * those segments deleted</li>
+ * </ul>
+ * The store is disabled unless referenceccda.resultStore.dir is set.
+ */
+@Component
+public class ValidationResultStore {
+	private static Logger logger = Logger.getLogger(ValidationResultStore.class);
+
+	public static final String RESULT_ID_HEADER = "X-Validation-Result-Id";
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	private static final String SEGMENT_PREFIX = "results-";
+	private static final String SEGMENT_EXTENSION = ".seg";
+	private static final long MEGABYTE = 1024 * 1024;
+	// record length, then stored time, result id length and CRC32 around the result id and results
+	private static final int LENGTH_SIZE = 4;
+	private static final int MIN_RECORD_LENGTH = 8 + 2 + 4;
+	private static final int BUFFER_SIZE = 8192;
+
+	@Value("${referenceccda.resultStore.dir:}")
+	private String storeDirectory = "";
+	@Value("${referenceccda.resultStore.retentionHours:24}")
+	private long retentionHours = 24;
+	@Value("${referenceccda.resultStore.maxMegabytes:1024}")
+	private long maxMegabytes = 1024;
+	@Value("${referenceccda.resultStore.segmentMegabytes:64}")
+	private long segmentMegabytes = 64;
+	@Value("${referenceccda.resultStore.compactionIntervalMinutes:15}")
+	private long compactionIntervalMinutes = 15;
+	@Value("${referenceccda.resultStore.claimWaitSeconds:60}")
+	private long claimWaitSeconds = 60;
+
+	private final ObjectMapper smileMapper = new ObjectMapper(new SmileFactory());
+	private final ConcurrentMap<String, RecordLocation> index = new ConcurrentHashMap<>();
+	private final ConcurrentMap<String, ValidationInProgress> validationsInProgress = new ConcurrentHashMap<>();
+	private volatile Path directory;
+	// guarded by this
+	private final List<Segment> segments = new ArrayList<>();
+	private Segment activeSegment;
+	private long nextSequence;
+	private ScheduledExecutorService compactionExecutor;
+
+	@PostConstruct
+	public synchronized void open() throws IOException {
+		if (StringUtils.isEmpty(storeDirectory)) {
+			logger.info("The validation result store is disabled, referenceccda.resultStore.dir is not set");
+			return;
+		}
+		Path storePath = Files.createDirectories(Paths.get(storeDirectory));
+		List<Segment> existingSegments = new ArrayList<>();
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(storePath, SEGMENT_PREFIX + "*" + SEGMENT_EXTENSION)) {
+			for (Path file : files) {
+				String name = file.getFileName().toString();
+				try {
+					long sequence = Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_EXTENSION.length()));
+					existingSegments.add(new Segment(file, sequence, FileChannel.open(file, StandardOpenOption.READ)));
+				} catch (NumberFormatException e) {
+					logger.warn("Ignoring " + file + " which is not a segment of the validation result store");
+				}
+			}
+		}
+		Collections.sort(existingSegments);
+		for (Segment segment : existingSegments) {
+			loadRecords(segment);
+			segments.add(segment);
+			nextSequence = segment.sequence + 1;
+		}
+		directory = storePath;
+		startSegment();
+		compact();
+		compactionExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "validation-result-store-compaction");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		compactionExecutor.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					compact();
+				} catch (IOException | RuntimeException e) {
+					logger.error("Error compacting the validation result store: " + e.getMessage(), e);
+				}
+			}
+		}, compactionIntervalMinutes, compactionIntervalMinutes, TimeUnit.MINUTES);
+		logger.info("Opened the validation result store " + storePath + " holding " + index.size() + " results");
+	}
+
+	@PreDestroy
+	public synchronized void close() {
+		if (directory == null) {
+			return;
+		}
+		directory = null;
+		compactionExecutor.shutdownNow();
+		for (Segment segment : segments) {
+			try {
+				segment.channel.close();
+				if (segment == activeSegment && segment.size == 0) {
+					Files.deleteIfExists(segment.file);
+				}
+			} catch (IOException e) {
+				logger.error("Error closing " + segment.file + ": " + e.getMessage());
+			}
+		}
+		segments.clear();
+		activeSegment = null;
+		index.clear();
+	}
+
+	public boolean isEnabled() {
+		return directory != null;
+	}
+
+	/**
+	 * @return the id the results of the given request are stored under, or null if the store is disabled or the document
+	 *         could not be read
+	 */
+	public String resultId(String validationObjective, String referenceFileName, ValidationResultFilter resultFilter,
+			CCDADocument ccdaFile) {
+		if (!isEnabled()) {
+			return null;
+		}
+		try {
+			return fingerprint(validationObjective, referenceFileName, resultFilter, ccdaFile);
+		} catch (IOException e) {
+			logger.error("Error computing the result id of " + ccdaFile.getName() + ": " + e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * The fingerprint covers the exact bytes rather than the XML infoset as the stored results carry line numbers.
+	 */
+	private static String fingerprint(String validationObjective, String referenceFileName, ValidationResultFilter resultFilter,
+			CCDADocument ccdaFile) throws IOException {
+		MessageDigest digest = newDigest();
+		digest.update((validationObjective + '\0' + referenceFileName + '\0' + resultFilter.getMinSeverity() + '\0'
+				+ resultFilter.getMaxResults() + '\0' + resultFilter.getMaxResultsPerType() + '\0').getBytes(UTF_8));
+		byte[] buffer = new byte[BUFFER_SIZE];
+		try (InputStream in = ccdaFile.openStream()) {
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				digest.update(buffer, 0, read);
+			}
+		}
+		StringBuilder fingerprint = new StringBuilder();
+		for (byte b : digest.digest()) {
+			fingerprint.append(String.format("%02x", b));
+		}
+		return fingerprint.toString();
+	}
+
+	private static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 is not available", e);
+		}
+	}
+
+	/**
+	 * @return the results stored under the given id, or null if there are none or they have expired
+	 */
+	public JsonNode get(String resultId) {
+		// a record moved by a concurrent compaction is read again from its new segment
+		for (int attempt = 0; attempt < 2; attempt++) {
+			RecordLocation location = index.get(resultId);
+			if (location == null || location.storedAt < expiredBefore()) {
+				return null;
+			}
+			try {
+				ByteBuffer record = read(location.segment.channel, location.position + LENGTH_SIZE, location.length - LENGTH_SIZE);
+				if (!resultId.equals(checkRecord(record))) {
+					throw new IOException("The record of " + resultId + " in " + location.segment.file + " is corrupt");
+				}
+				try (InputStream in = new InflaterInputStream(new ByteArrayInputStream(record.array(), record.position(),
+						record.remaining() - 4))) {
+					return smileMapper.readTree(in);
+				}
+			} catch (ClosedChannelException e) {
+				continue;
+			} catch (IOException e) {
+				logger.error("Error reading the stored results " + resultId + ": " + e.getMessage());
+				return null;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Looks up the results of a request before it is admitted for validation. If a request with the same id is being
+	 * validated, waits for it to complete, for at most claimWaitSeconds.
+	 *
+	 * @return the results stored under the given id, or null if there are none or the wait timed out, in which case
+	 *         the caller validates the document, stores the results and then calls {@link #complete(String)} from the
+	 *         same thread
+	 */
+	public JsonNode claim(String resultId) {
+		if (resultId == null) {
+			return null;
+		}
+		long waitUntil = System.nanoTime() + TimeUnit.SECONDS.toNanos(claimWaitSeconds);
+		try {
+			while (true) {
+				JsonNode storedResults = get(resultId);
+				if (storedResults != null) {
+					return storedResults;
+				}
+				ValidationInProgress inProgress = validationsInProgress.putIfAbsent(resultId, new ValidationInProgress());
+				if (inProgress == null) {
+					// the results may have been stored since they were looked up
+					storedResults = get(resultId);
+					if (storedResults != null) {
+						complete(resultId);
+					}
+					return storedResults;
+				}
+				logger.info("Waiting for the validation in progress of the same request " + resultId);
+				if (!inProgress.await(waitUntil - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+					logger.warn("Validating " + resultId + " again, the validation in progress of the same request did not "
+							+ "complete within " + claimWaitSeconds + " seconds");
+					return null;
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		}
+	}
+
+	/**
+	 * Releases the requests waiting for the results of the given id, once they are stored or the validation failed. Does
+	 * nothing if the calling thread did not claim the id, such as after a wait which timed out.
+	 */
+	public void complete(String resultId) {
+		if (resultId != null) {
+			ValidationInProgress inProgress = validationsInProgress.get(resultId);
+			if (inProgress != null && inProgress.owner == Thread.currentThread()
+					&& validationsInProgress.remove(resultId, inProgress)) {
+				inProgress.countDown();
+			}
+		}
+	}
+
+	/**
+	 * Appends the given results to the store, without their file contents, unless they hold a service error.
+	 */
+	public void store(String resultId, ValidationResultsDto results) {
+		if (resultId == null || !isEnabled() || results.getResultsMetaData().isServiceError()) {
+			return;
+		}
+		try {
+			ByteArrayOutputStream payload = new ByteArrayOutputStream();
+			// the results are still returned with the file contents to the request which validated them
+			String ccdaFileContents = results.getResultsMetaData().getCcdaFileContents();
+			results.getResultsMetaData().setCcdaFileContents(null);
+			try (OutputStream out = new DeflaterOutputStream(payload)) {
+				smileMapper.writeValue(out, results);
+			} finally {
+				results.getResultsMetaData().setCcdaFileContents(ccdaFileContents);
+			}
+			long storedAt = System.currentTimeMillis();
+			ByteBuffer record = encodeRecord(resultId, storedAt, payload.toByteArray());
+			synchronized (this) {
+				if (activeSegment != null) {
+					append(resultId, record, storedAt);
+				}
+			}
+		} catch (IOException e) {
+			logger.error("Error storing the results " + resultId + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Expires the results past the retention period, then deletes or rewrites the segments holding few live records.
+	 */
+	synchronized void compact() throws IOException {
+		if (activeSegment == null) {
+			return;
+		}
+		long expiredBefore = expiredBefore();
+		int expired = 0;
+		for (Iterator<RecordLocation> locations = index.values().iterator(); locations.hasNext();) {
+			RecordLocation location = locations.next();
+			if (location.storedAt < expiredBefore) {
+				locations.remove();
+				location.segment.liveBytes -= location.length;
+				expired++;
+			}
+		}
+		long totalBytes = 0;
+		for (Segment segment : segments) {
+			totalBytes += segment.size;
+		}
+		int deleted = 0, rewritten = 0;
+		for (Segment segment : new ArrayList<>(segments)) {
+			if (segment == activeSegment) {
+				continue;
+			}
+			if (segment.liveBytes == 0 || totalBytes > maxMegabytes * MEGABYTE) {
+				if (segment.liveBytes > 0) {
+					logger.warn("Dropping the results of " + segment.file + " as the store exceeds " + maxMegabytes + " MB");
+					removeFromIndex(segment);
+				}
+				totalBytes -= segment.size;
+				deleteSegment(segment);
+				deleted++;
+			} else if (segment.liveBytes < segment.size / 2) {
+				for (Map.Entry<String, RecordLocation> entry : index.entrySet()) {
+					RecordLocation location = entry.getValue();
+					if (location.segment == segment) {
+						append(entry.getKey(), read(segment.channel, location.position, location.length), location.storedAt);
+					}
+				}
+				totalBytes -= segment.size - segment.liveBytes;
+				deleteSegment(segment);
+				rewritten++;
+			}
+		}
+		if (expired > 0 || deleted > 0 || rewritten > 0) {
+			logger.info("Compacted the validation result store: " + expired + " results expired, " + deleted
+					+ " segments deleted, " + rewritten + " segments rewritten, " + index.size() + " results left");
+		}
+	}
+
+	private long expiredBefore() {
+		return System.currentTimeMillis() - TimeUnit.HOURS.toMillis(retentionHours);
+	}
+
+	/**
+	 * Indexes the complete records of a segment, up to the first torn or corrupt one.
+	 */
+	private void loadRecords(Segment segment) throws IOException {
+		long fileSize = segment.channel.size();
+		long position = 0;
+		while (position + LENGTH_SIZE <= fileSize) {
+			int length = read(segment.channel, position, LENGTH_SIZE).getInt();
+			if (length < MIN_RECORD_LENGTH || position + LENGTH_SIZE + length > fileSize) {
+				break;
+			}
+			ByteBuffer record = read(segment.channel, position + LENGTH_SIZE, length);
+			long storedAt = record.getLong(record.position());
+			String resultId = checkRecord(record);
+			if (resultId == null) {
+				break;
+			}
+			addToIndex(resultId, new RecordLocation(segment, position, LENGTH_SIZE + length, storedAt));
+			position += LENGTH_SIZE + length;
+		}
+		if (position < fileSize) {
+			logger.warn("Ignoring the last " + (fileSize - position) + " bytes of " + segment.file
+					+ " which do not hold a complete record");
+		}
+		segment.size = fileSize;
+	}
+
+	/**
+	 * Appends a record, with its length, to the active segment and indexes it. Called with the lock held.
+	 */
+	private void append(String resultId, ByteBuffer record, long storedAt) throws IOException {
+		Segment segment = activeSegment;
+		long position = segment.size;
+		int length = record.remaining();
+		while (record.hasRemaining()) {
+			segment.channel.write(record, position + length - record.remaining());
+		}
+		segment.size += length;
+		addToIndex(resultId, new RecordLocation(segment, position, length, storedAt));
+		if (segment.size >= segmentMegabytes * MEGABYTE) {
+			startSegment();
+		}
+	}
+
+	private void addToIndex(String resultId, RecordLocation location) {
+		RecordLocation replaced = index.put(resultId, location);
+		if (replaced != null) {
+			replaced.segment.liveBytes -= replaced.length;
+		}
+		location.segment.liveBytes += location.length;
+	}
+
+	private void removeFromIndex(Segment segment) {
+		for (Iterator<RecordLocation> locations = index.values().iterator(); locations.hasNext();) {
+			if (locations.next().segment == segment) {
+				locations.remove();
+			}
+		}
+	}
+
+	private void startSegment() throws IOException {
+		if (activeSegment != null) {
+			activeSegment.channel.force(false);
+		}
+		Path file = directory.resolve(String.format("%s%016d%s", SEGMENT_PREFIX, nextSequence, SEGMENT_EXTENSION));
+		activeSegment = new Segment(file, nextSequence++, FileChannel.open(file, StandardOpenOption.CREATE_NEW,
+				StandardOpenOption.READ, StandardOpenOption.WRITE));
+		segments.add(activeSegment);
+	}
+
+	private void deleteSegment(Segment segment) throws IOException {
+		segments.remove(segment);
+		segment.channel.close();
+		Files.deleteIfExists(segment.file);
+	}
+
+	private static ByteBuffer encodeRecord(String resultId, long storedAt, byte[] payload) {
+		byte[] id = resultId.getBytes(UTF_8);
+		int length = MIN_RECORD_LENGTH + id.length + payload.length;
+		ByteBuffer record = ByteBuffer.allocate(LENGTH_SIZE + length);
+		record.putInt(length).putLong(storedAt).putShort((short) id.length).put(id).put(payload);
+		CRC32 crc = new CRC32();
+		crc.update(record.array(), LENGTH_SIZE, length - 4);
+		record.putInt((int) crc.getValue());
+		record.flip();
+		return record;
+	}
+
+	/**
+	 * Checks the CRC32 of a record read without its length, and positions the buffer on its results.
+	 *
+	 * @return the result id of the record, or null if it is corrupt
+	 */
+	private static String checkRecord(ByteBuffer record) {
+		int start = record.position();
+		int end = record.limit();
+		CRC32 crc = new CRC32();
+		crc.update(record.array(), start, end - start - 4);
+		if ((int) crc.getValue() != record.getInt(end - 4)) {
+			return null;
+		}
+		record.getLong();
+		int idLength = record.getShort() & 0xffff;
+		if (record.remaining() < idLength + 4) {
+			return null;
+		}
+		String resultId = new String(record.array(), record.position(), idLength, UTF_8);
+		record.position(record.position() + idLength);
+		return resultId;
+	}
+
+	private static ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0) {
+				throw new IOException("Unexpected end of segment");
+			}
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+	private static class Segment implements Comparable<Segment> {
+		private final Path file;
+		private final long sequence;
+		private final FileChannel channel;
+		// guarded by the store
+		private long size;
+		private long liveBytes;
+
+		Segment(Path file, long sequence, FileChannel channel) {
+			this.file = file;
+			this.sequence = sequence;
+			this.channel = channel;
+		}
+
+		@Override
+		public int compareTo(Segment other) {
+			return Long.compare(sequence, other.sequence);
+		}
+	}
+
+	private static class ValidationInProgress extends CountDownLatch {
+		private final Thread owner = Thread.currentThread();
+
+		ValidationInProgress() {
+			super(1);
+		}
+	}
+
+	private static class RecordLocation {
+		private final Segment segment;
+		private final long position;
+		private final int length;
+		private final long storedAt;
+
+		RecordLocation(Segment segment, long position, int length, long storedAt) {
+			this.segment = segment;
+			this.position = position;
+			this.length = length;
+			this.storedAt = storedAt;
+		}
+	}
+}
@@ -1,20 +1,29 @@
 package org.sitenv.referenceccda.validators;
 
-import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
-import org.xml.sax.XMLReader;
-import org.xml.sax.helpers.XMLReaderFactory;
 
 import java.io.IOException;
-import java.io.StringReader;
+import java.io.InputStream;
+import java.util.ArrayList;
 
 public abstract class BaseCCDAValidator {
-    protected static void trackXPathsInXML(XPathIndexer xpathIndexer, String xmlString) throws SAXException{
-        XMLReader parser = XMLReaderFactory.createXMLReader();
-        parser.setContentHandler(xpathIndexer);
-        try {
-            InputSource inputSource = new InputSource(new StringReader(xmlString));
-            parser.parse(inputSource);
+    public ArrayList<RefCCDAValidationResult> validateFile(String validationObjective, String referenceFileName,
+            String ccdaFile) throws SAXException, Exception {
+        return validateFile(validationObjective, referenceFileName,
+                ccdaFile != null ? CCDADocument.fromString(null, ccdaFile) : null);
+    }
+
+    public ArrayList<RefCCDAValidationResult> validateFile(String validationObjective, String referenceFileName,
+            CCDADocument ccdaFile) throws SAXException, Exception {
+        return validateFile(validationObjective, referenceFileName, ccdaFile, ValidationResultFilter.acceptAll());
+    }
+
+    public abstract ArrayList<RefCCDAValidationResult> validateFile(String validationObjective, String referenceFileName,
+            CCDADocument ccdaFile, ValidationResultFilter resultFilter) throws SAXException, Exception;
+
+    protected static void trackXPathsInXML(XPathIndexer xpathIndexer, CCDADocument ccdaFile) throws SAXException{
+        try (InputStream in = ccdaFile.openStream()) {
+            XMLParserProvider.parse(in, xpathIndexer);
         } catch (IOException e) {
             e.printStackTrace();
             System.out.println("Error In Line Number Routine: Bad filename, path or invalid document.");
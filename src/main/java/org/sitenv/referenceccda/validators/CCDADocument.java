@@ -0,0 +1,281 @@
+package org.sitenv.referenceccda.validators;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.IllegalCharsetNameException;
+import java.nio.charset.UnsupportedCharsetException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.io.IOUtils;
+import org.springframework.web.multipart.MultipartFile;
+
+/**
+ * The C-CDA document being validated.
+ * <p>
+ * Validators read the document through {@link #openStream()} rather than from a fully materialized String, so an
+ * upload that was spilled to disk by the multipart resolver is streamed from disk by each parser instead of being
+ * copied onto the heap. {@link #asString()} is only used by consumers which require a String (e.g. content
+ * validation and the file contents echoed back in the response) and is computed at most once.
+ * <p>
+ * Parsers are always handed the original bytes so they can apply their own encoding detection. When a String is
+ * required it is decoded using the encoding detected from the byte order mark or the XML declaration, as described in
+ * appendix F of the XML 1.0 specification, rather than with the platform default charset.
+ */
+public abstract class CCDADocument {
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	private static final Charset UTF_16BE = Charset.forName("UTF-16BE");
+	private static final Charset UTF_16LE = Charset.forName("UTF-16LE");
+	private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+	private static final int PROLOG_LENGTH = 512;
+	private static final Pattern XML_DECLARATION_ENCODING = Pattern.compile(
+			"^<\\?xml[^>]*?\\sencoding\\s*=\\s*[\"']([A-Za-z][A-Za-z0-9._\\-]*)[\"']");
+
+	private final String name;
+	private String contents;
+	private EncodingDetection encoding;
+
+	protected CCDADocument(String name) {
+		this.name = name;
+	}
+
+	public static CCDADocument fromMultipartFile(MultipartFile ccdaFile) {
+		return new MultipartFileCCDADocument(ccdaFile);
+	}
+
+	public static CCDADocument fromBytes(String name, byte[] ccdaFile) {
+		return new ByteArrayCCDADocument(name, ccdaFile);
+	}
+
+	/**
+	 * Wraps the remaining bytes of the given buffer, which must not be modified until the validation is done.
+	 */
+	public static CCDADocument fromByteBuffer(String name, ByteBuffer ccdaFile) {
+		return new ByteBufferCCDADocument(name, ccdaFile.slice());
+	}
+
+	/**
+	 * Wraps a document on disk, which is streamed from the file by each parser.
+	 */
+	public static CCDADocument fromPath(Path ccdaFile) throws IOException {
+		return new PathCCDADocument(ccdaFile);
+	}
+
+	/**
+	 * Wraps an already decoded document. The characters are encoded once, using the encoding named in the XML
+	 * declaration when it is supported (UTF-8 otherwise), so that parsers reading the bytes decode them as declared.
+	 */
+	public static CCDADocument fromString(String name, String ccdaFile) {
+		Charset charset = UTF_8;
+		Matcher declaration = XML_DECLARATION_ENCODING.matcher(
+				ccdaFile.length() > PROLOG_LENGTH ? ccdaFile.substring(0, PROLOG_LENGTH) : ccdaFile);
+		if (declaration.find()) {
+			Charset declared = lookupCharset(declaration.group(1));
+			if (declared != null && declared.canEncode() && declared.newEncoder().canEncode(ccdaFile)) {
+				charset = declared;
+			}
+		}
+		return new ByteArrayCCDADocument(name, ccdaFile.getBytes(charset));
+	}
+
+	/**
+	 * Opens a new stream positioned at the start of the document. The caller is responsible for closing it.
+	 */
+	public abstract InputStream openStream() throws IOException;
+
+	/**
+	 * @return the size of the document in bytes
+	 */
+	public abstract long getSize();
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return the encoding of the document as detected from its byte order mark or XML declaration, UTF-8 by default
+	 */
+	public Charset getCharset() throws IOException {
+		return detectEncoding().charset;
+	}
+
+	/**
+	 * @return the document decoded with {@link #getCharset()}, without any byte order mark
+	 */
+	public String asString() throws IOException {
+		if (contents == null) {
+			EncodingDetection detected = detectEncoding();
+			try (InputStream in = openStream()) {
+				IOUtils.skipFully(in, detected.byteOrderMarkLength);
+				contents = IOUtils.toString(in, detected.charset.name());
+			}
+		}
+		return contents;
+	}
+
+	private EncodingDetection detectEncoding() throws IOException {
+		if (encoding == null) {
+			byte[] prolog = new byte[PROLOG_LENGTH];
+			int length;
+			try (InputStream in = openStream()) {
+				length = IOUtils.read(in, prolog, 0, prolog.length);
+			}
+			encoding = detectEncoding(prolog, length);
+		}
+		return encoding;
+	}
+
+	static EncodingDetection detectEncoding(byte[] prolog, int length) {
+		int b0 = length > 0 ? prolog[0] & 0xFF : -1;
+		int b1 = length > 1 ? prolog[1] & 0xFF : -1;
+		int b2 = length > 2 ? prolog[2] & 0xFF : -1;
+		int b3 = length > 3 ? prolog[3] & 0xFF : -1;
+		if (b0 == 0xEF && b1 == 0xBB && b2 == 0xBF) {
+			return new EncodingDetection(UTF_8, 3);
+		} else if (b0 == 0xFE && b1 == 0xFF) {
+			return new EncodingDetection(UTF_16BE, 2);
+		} else if (b0 == 0xFF && b1 == 0xFE) {
+			return new EncodingDetection(UTF_16LE, 2);
+		} else if (b0 == 0x00 && b1 == 0x3C && b2 == 0x00 && b3 == 0x3F) {
+			return new EncodingDetection(UTF_16BE, 0);
+		} else if (b0 == 0x3C && b1 == 0x00 && b2 == 0x3F && b3 == 0x00) {
+			return new EncodingDetection(UTF_16LE, 0);
+		} else if (b0 == 0x3C && b1 == 0x3F && b2 == 0x78 && b3 == 0x6D) {
+			// ASCII compatible encoding - the XML declaration names the actual encoding
+			Matcher declaration = XML_DECLARATION_ENCODING.matcher(new String(prolog, 0, length, ISO_8859_1));
+			if (declaration.find()) {
+				Charset declared = lookupCharset(declaration.group(1));
+				if (declared != null) {
+					return new EncodingDetection(declared, 0);
+				}
+			}
+		}
+		return new EncodingDetection(UTF_8, 0);
+	}
+
+	private static Charset lookupCharset(String encodingName) {
+		try {
+			return Charset.forName(encodingName);
+		} catch (IllegalCharsetNameException | UnsupportedCharsetException e) {
+			return null;
+		}
+	}
+
+	static class EncodingDetection {
+		final Charset charset;
+		final int byteOrderMarkLength;
+
+		EncodingDetection(Charset charset, int byteOrderMarkLength) {
+			this.charset = charset;
+			this.byteOrderMarkLength = byteOrderMarkLength;
+		}
+	}
+
+	private static class MultipartFileCCDADocument extends CCDADocument {
+		private final MultipartFile ccdaFile;
+
+		MultipartFileCCDADocument(MultipartFile ccdaFile) {
+			super(ccdaFile.getName());
+			this.ccdaFile = ccdaFile;
+		}
+
+		@Override
+		public InputStream openStream() throws IOException {
+			return ccdaFile.getInputStream();
+		}
+
+		@Override
+		public long getSize() {
+			return ccdaFile.getSize();
+		}
+	}
+
+	private static class PathCCDADocument extends CCDADocument {
+		private final Path ccdaFile;
+		private final long size;
+
+		PathCCDADocument(Path ccdaFile) throws IOException {
+			super(ccdaFile.getFileName().toString());
+			this.ccdaFile = ccdaFile;
+			this.size = Files.size(ccdaFile);
+		}
+
+		@Override
+		public InputStream openStream() throws IOException {
+			return Files.newInputStream(ccdaFile);
+		}
+
+		@Override
+		public long getSize() {
+			return size;
+		}
+	}
+
+	private static class ByteBufferCCDADocument extends CCDADocument {
+		private final ByteBuffer ccdaFile;
+
+		ByteBufferCCDADocument(String name, ByteBuffer ccdaFile) {
+			super(name);
+			this.ccdaFile = ccdaFile;
+		}
+
+		@Override
+		public InputStream openStream() {
+			// each stream reads its own view of the buffer, so the document can be read by several parsers at once
+			final ByteBuffer buffer = ccdaFile.duplicate();
+			return new InputStream() {
+				@Override
+				public int read() {
+					return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+				}
+
+				@Override
+				public int read(byte[] b, int off, int len) {
+					if (len == 0) {
+						return 0;
+					}
+					if (!buffer.hasRemaining()) {
+						return -1;
+					}
+					int read = Math.min(len, buffer.remaining());
+					buffer.get(b, off, read);
+					return read;
+				}
+
+				@Override
+				public int available() {
+					return buffer.remaining();
+				}
+			};
+		}
+
+		@Override
+		public long getSize() {
+			return ccdaFile.remaining();
+		}
+	}
+
+	private static class ByteArrayCCDADocument extends CCDADocument {
+		private final byte[] ccdaFile;
+
+		ByteArrayCCDADocument(String name, byte[] ccdaFile) {
+			super(name);
+			this.ccdaFile = ccdaFile;
+		}
+
+		@Override
+		public InputStream openStream() {
+			return new ByteArrayInputStream(ccdaFile);
+		}
+
+		@Override
+		public long getSize() {
+			return ccdaFile.length;
+		}
+	}
+}
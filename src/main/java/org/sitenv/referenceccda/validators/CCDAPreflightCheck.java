@@ -0,0 +1,166 @@
+package org.sitenv.referenceccda.validators;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.apache.log4j.Logger;
+import org.xml.sax.SAXException;
+
+/**
+ * Streaming pre-flight check which reads only the prolog and the start of the root element of a document and rejects
+ * input which cannot be a C-CDA document (an empty file, HTML, a section snippet, a document outside the v3 namespace
+ * or without a document level templateId) before any expensive work, such as line number indexing or the MDHT load,
+ * is done.
+ */
+public final class CCDAPreflightCheck {
+	private static Logger logger = Logger.getLogger(CCDAPreflightCheck.class);
+
+	public static final String HL7_V3_NAMESPACE = "urn:hl7-org:v3";
+	private static final String CLINICAL_DOCUMENT = "ClinicalDocument";
+	private static final String TEMPLATE_ID = "templateId";
+	// header elements which may precede the document level templateId(s)
+	private static final Set<String> ELEMENTS_BEFORE_TEMPLATE_ID = new HashSet<String>(Arrays.asList("realmCode", "typeId"));
+
+	private static final String ERROR_POSTFIX = " Please ensure that the XML document sent is a complete C-CDA R1.1 or R2.1 document.";
+	private static final String ERROR_EMPTY_DOCUMENT = "The document sent is empty." + ERROR_POSTFIX;
+	private static final String ERROR_NO_ROOT_ELEMENT = "The document sent does not contain a root element." + ERROR_POSTFIX;
+
+	private CCDAPreflightCheck() {
+	}
+
+	/**
+	 * Checks the root element of the given document.
+	 *
+	 * @return the document level templateIds, in document order
+	 * @throws SAXException if the document is empty or its prolog cannot be parsed
+	 * @throws Exception if the document is not a ClinicalDocument in the v3 namespace with a document level templateId
+	 */
+	public static List<TemplateId> check(CCDADocument ccdaFile) throws SAXException, Exception {
+		if (ccdaFile.getSize() == 0) {
+			logAndThrowException(ERROR_EMPTY_DOCUMENT);
+		}
+		try (InputStream in = ccdaFile.openStream()) {
+			XMLStreamReader reader = XMLParserProvider.createXMLStreamReader(in);
+			try {
+				return readDocumentTemplateIds(reader);
+			} finally {
+				reader.close();
+			}
+		} catch (XMLStreamException e) {
+			logger.error("Pre-flight check could not parse the document: " + e.getMessage());
+			throw new SAXException(e.getMessage(), e);
+		} catch (IOException e) {
+			throw new SAXException("The document could not be read: " + e.getMessage(), e);
+		}
+	}
+
+	private static List<TemplateId> readDocumentTemplateIds(XMLStreamReader reader) throws Exception {
+		if (!advanceToNextStartElement(reader)) {
+			logAndThrowException(ERROR_NO_ROOT_ELEMENT);
+		}
+		String rootName = reader.getLocalName();
+		String rootNamespace = reader.getNamespaceURI() != null ? reader.getNamespaceURI() : "";
+		if (!CLINICAL_DOCUMENT.equals(rootName)) {
+			logAndThrowException("The root element of the document sent is <" + rootName + ">, but a C-CDA document must have a <"
+					+ CLINICAL_DOCUMENT + "> root element. Note: non C-CDA files and C-CDA snippets, such as a single section, are not supported."
+					+ ERROR_POSTFIX);
+		}
+		if (!HL7_V3_NAMESPACE.equals(rootNamespace)) {
+			logAndThrowException("The <" + CLINICAL_DOCUMENT + "> root element of the document sent is in the namespace '"
+					+ rootNamespace + "', but it must be in the '" + HL7_V3_NAMESPACE + "' namespace."
+					+ ERROR_POSTFIX);
+		}
+
+		List<TemplateId> templateIds = new ArrayList<TemplateId>();
+		while (advanceToNextStartElement(reader) && isHeaderElementBeforeOrAtTemplateId(reader)) {
+			if (TEMPLATE_ID.equals(reader.getLocalName())) {
+				templateIds.add(new TemplateId(reader.getAttributeValue(null, "root"),
+						reader.getAttributeValue(null, "extension")));
+			}
+			skipElement(reader);
+		}
+		if (templateIds.isEmpty()) {
+			logAndThrowException("The <" + CLINICAL_DOCUMENT + "> of the document sent does not contain a document level "
+					+ "<" + TEMPLATE_ID + ">, so its document type cannot be determined." + ERROR_POSTFIX);
+		}
+		return Collections.unmodifiableList(templateIds);
+	}
+
+	private static boolean isHeaderElementBeforeOrAtTemplateId(XMLStreamReader reader) {
+		return HL7_V3_NAMESPACE.equals(reader.getNamespaceURI())
+				&& (TEMPLATE_ID.equals(reader.getLocalName()) || ELEMENTS_BEFORE_TEMPLATE_ID.contains(reader.getLocalName()));
+	}
+
+	/**
+	 * Advances to the next START_ELEMENT at the current or a deeper level.
+	 *
+	 * @return false if the end of the current element or of the document was reached first
+	 */
+	private static boolean advanceToNextStartElement(XMLStreamReader reader) throws XMLStreamException {
+		while (reader.hasNext()) {
+			int event = reader.next();
+			if (event == XMLStreamConstants.START_ELEMENT) {
+				return true;
+			} else if (event == XMLStreamConstants.END_ELEMENT) {
+				return false;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Skips the element the reader is positioned on, leaving the reader on its END_ELEMENT.
+	 */
+	private static void skipElement(XMLStreamReader reader) throws XMLStreamException {
+		int depth = 1;
+		while (depth > 0 && reader.hasNext()) {
+			int event = reader.next();
+			if (event == XMLStreamConstants.START_ELEMENT) {
+				depth++;
+			} else if (event == XMLStreamConstants.END_ELEMENT) {
+				depth--;
+			}
+		}
+	}
+
+	private static void logAndThrowException(String errorMessage) throws Exception {
+		logger.error(errorMessage);
+		throw new Exception(errorMessage);
+	}
+
+	/**
+	 * A document level templateId as found in the pre-flight check.
+	 */
+	public static final class TemplateId {
+		private final String root;
+		private final String extension;
+
+		public TemplateId(String root, String extension) {
+			this.root = root;
+			this.extension = extension;
+		}
+
+		public String getRoot() {
+			return root;
+		}
+
+		public String getExtension() {
+			return extension;
+		}
+
+		@Override
+		public String toString() {
+			return "templateId[@root='" + root + "'" + (extension != null ? " and @extension='" + extension + "'" : "") + "]";
+		}
+	}
+}
@@ -10,4 +10,10 @@ import java.util.ArrayList;
 public interface CCDAValidator {
 	ArrayList<RefCCDAValidationResult> validateFile(String validationObjective,
 			String referenceFileName, String ccdaFile) throws SAXException, Exception;
+
+	ArrayList<RefCCDAValidationResult> validateFile(String validationObjective,
+			String referenceFileName, CCDADocument ccdaFile) throws SAXException, Exception;
+
+	ArrayList<RefCCDAValidationResult> validateFile(String validationObjective,
+			String referenceFileName, CCDADocument ccdaFile, ValidationResultFilter resultFilter) throws SAXException, Exception;
 }
@@ -3,14 +3,26 @@ package org.sitenv.referenceccda.validators;
 import org.sitenv.referenceccda.validators.enums.ValidationResultType;
 import org.sitenv.referenceccda.validators.schema.MDHTResultDetails;
 
+import com.fasterxml.jackson.annotation.JsonPropertyOrder;
+
+/**
+ * A single finding of a validator. Results are kept compact as a document can have tens of thousands of them: the
+ * MDHT flags are a shared {@link MDHTResultDetails} instance and the line number is an int. The flags have no field
+ * of their own, so their JSON order is fixed here rather than left to the order reflection returns the getters in.
+ */
+@JsonPropertyOrder({ "description", "type", "xPath", "validatorConfiguredXpath", "documentLineNumber", "actualCode",
+		"actualCodeSystem", "actualCodeSystemName", "actualDisplayName", "schemaError", "dataTypeSchemaError", "igissue",
+		"muissue" })
 public class RefCCDAValidationResult {
+	public static final int LINE_NUMBER_NOT_AVAILABLE = -1;
+	private static final String LINE_NUMBER_NOT_AVAILABLE_TEXT = "Line number not available";
 
 	// Common Error information
 	private final String description;
 	private final ValidationResultType type;
 	private final String xPath;
     private final String validatorConfiguredXpath;
-	private final String documentLineNumber;
+	private final int documentLineNumber;
 	
     // Only required for MDHT
     private final MDHTResultDetails mdhtResultDetails;
@@ -34,7 +46,7 @@ public class RefCCDAValidationResult {
         if(builder.mdhtResultDetails != null) {
         	this.mdhtResultDetails = builder.mdhtResultDetails;
         } else {
-        	this.mdhtResultDetails = new MDHTResultDetails(false, false, false, false);
+        	this.mdhtResultDetails = MDHTResultDetails.NONE;
         }
     }
 
@@ -55,7 +67,8 @@ public class RefCCDAValidationResult {
     }
 
     public String getDocumentLineNumber() {
-        return documentLineNumber;
+        return documentLineNumber != LINE_NUMBER_NOT_AVAILABLE ? Integer.toString(documentLineNumber)
+        		: LINE_NUMBER_NOT_AVAILABLE_TEXT;
     }
     
     public boolean isSchemaError() {
@@ -97,7 +110,7 @@ public class RefCCDAValidationResult {
         private final ValidationResultType type;
         private final String xPath;
         private final String validatorConfiguredXpath;
-        private final String documentLineNumber;
+        private final int documentLineNumber;
         
         // Only required for MDHT
         private MDHTResultDetails mdhtResultDetails;
@@ -109,7 +122,7 @@ public class RefCCDAValidationResult {
         private String actualCodeSystemName;
 
 		public RefCCDAValidationResultBuilder(String description, String xPath,
-				String validatorConfiguredXpath, ValidationResultType type, String documentLineNumber) {
+				String validatorConfiguredXpath, ValidationResultType type, int documentLineNumber) {
 			this.description = description;
 			this.validatorConfiguredXpath = validatorConfiguredXpath;
 			this.type = type;
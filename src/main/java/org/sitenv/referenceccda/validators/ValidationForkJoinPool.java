@@ -0,0 +1,92 @@
+package org.sitenv.referenceccda.validators;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Future;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.apache.log4j.Logger;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.xml.sax.SAXException;
+
+/**
+ * The fork-join pool shared by the validators for the parts of a validation which can run in parallel.
+ * <p>
+ * Its threads run in addition to the request threads of the container, so referenceccda.parallelism (default: the
+ * number of available processors) bounds how many of them validate at once on behalf of all the requests. The pool is
+ * shut down with the application context, so that no thread outlives the application once it is undeployed.
+ * Validators created without Spring are not given a pool and run sequentially.
+ */
+@Component
+public class ValidationForkJoinPool {
+	private static Logger logger = Logger.getLogger(ValidationForkJoinPool.class);
+
+	@Value("${referenceccda.parallelism:0}")
+	private int parallelism;
+
+	private ForkJoinPool pool;
+
+	public ValidationForkJoinPool() {
+	}
+
+	public ValidationForkJoinPool(int parallelism) {
+		this.parallelism = parallelism;
+		init();
+	}
+
+	@PostConstruct
+	public void init() {
+		if (parallelism <= 0) {
+			parallelism = Runtime.getRuntime().availableProcessors();
+		}
+		pool = new ForkJoinPool(parallelism);
+		logger.info("Validation fork-join pool: parallelism=" + parallelism);
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		pool.shutdownNow();
+	}
+
+	/**
+	 * Runs the given task in the pool, the calling thread waiting for it.
+	 */
+	public <T> T invoke(ForkJoinTask<T> task) {
+		return pool.invoke(task);
+	}
+
+	public <T> Future<T> submit(Callable<T> task) {
+		return pool.submit(task);
+	}
+
+	/**
+	 * Waits for the given task, rethrowing a SAXException or unchecked exception thrown by it as is. The pool wraps the
+	 * checked exceptions of a Callable in RuntimeExceptions, which are unwrapped down to a SAXException they hold.
+	 */
+	public static <T> T join(Future<T> task) throws SAXException {
+		try {
+			return task.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SAXException("Interrupted while waiting for a parallel validation task", e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			for (Throwable wrapped = cause; wrapped != null; wrapped = wrapped.getCause()) {
+				if (wrapped instanceof SAXException) {
+					throw (SAXException) wrapped;
+				}
+			}
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			} else if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new SAXException(cause.getMessage(), cause instanceof Exception ? (Exception) cause : e);
+		}
+	}
+}
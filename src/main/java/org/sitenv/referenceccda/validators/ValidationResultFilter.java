@@ -0,0 +1,211 @@
+package org.sitenv.referenceccda.validators;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+import org.sitenv.referenceccda.validators.enums.ValidationResultSeverity;
+import org.sitenv.referenceccda.validators.enums.ValidationResultType;
+
+/**
+ * The per request options which limit the results built by the validators, and the record of what they left out.
+ * <p>
+ * Validators ask {@link #accept(ValidationResultType, int)} how many of the results they found should be built before
+ * doing any per result work (diagnostic wrapping, path generation, line number lookup). The rest are recorded as
+ * suppressed (below the minimum severity) or truncated (over the maxResults or per type cap), so they can still be
+ * counted in the response metadata. Once {@link #isFull()} validators stop building results and, where the
+ * underlying API allows it, stop running further checks. A filter is created for a single request and is not
+ * thread-safe.
+ */
+public class ValidationResultFilter {
+	private static final int UNLIMITED = Integer.MAX_VALUE;
+
+	private final ValidationResultSeverity minSeverity;
+	private final int maxResults;
+	private final int maxResultsPerType;
+	private final Map<ValidationResultType, Integer> returnedCounts = new EnumMap<ValidationResultType, Integer>(
+			ValidationResultType.class);
+	private final Map<ValidationResultType, Integer> suppressedCounts = new EnumMap<ValidationResultType, Integer>(
+			ValidationResultType.class);
+	private final Map<ValidationResultType, Integer> truncatedCounts = new EnumMap<ValidationResultType, Integer>(
+			ValidationResultType.class);
+	private int returnedTotal;
+	private boolean truncated;
+	private boolean schemaError;
+
+	private ValidationResultFilter(ValidationResultFilterBuilder builder) {
+		this.minSeverity = builder.minSeverity;
+		this.maxResults = builder.maxResults;
+		this.maxResultsPerType = builder.maxResultsPerType;
+	}
+
+	/**
+	 * @return a new filter which accepts every result
+	 */
+	public static ValidationResultFilter acceptAll() {
+		return new ValidationResultFilterBuilder().build();
+	}
+
+	public ValidationResultSeverity getMinSeverity() {
+		return minSeverity;
+	}
+
+	/**
+	 * @return the maximum number of results returned for the whole request, or null if unlimited
+	 */
+	public Integer getMaxResults() {
+		return maxResults != UNLIMITED ? maxResults : null;
+	}
+
+	/**
+	 * @return the maximum number of results returned for each result type, or null if unlimited
+	 */
+	public Integer getMaxResultsPerType() {
+		return maxResultsPerType != UNLIMITED ? maxResultsPerType : null;
+	}
+
+	/**
+	 * @return true if results of the given type are at or above the minimum severity, regardless of the caps
+	 */
+	public boolean accepts(ValidationResultType type) {
+		return type.getSeverity().isAtLeast(minSeverity);
+	}
+
+	/**
+	 * Decides how many of the given number of results of the given type, found by a validator, should be built. Those
+	 * accepted are counted as returned and the remainder as suppressed or truncated.
+	 *
+	 * @return the number of results to build, from 0 to count
+	 */
+	public int accept(ValidationResultType type, int count) {
+		if (count <= 0) {
+			return 0;
+		}
+		if (!accepts(type)) {
+			add(suppressedCounts, type, count);
+			return 0;
+		}
+		int accepted = Math.min(count, Math.min(maxResults - returnedTotal, maxResultsPerType - get(returnedCounts, type)));
+		if (accepted < count) {
+			add(truncatedCounts, type, count - accepted);
+			truncated = true;
+		}
+		if (accepted > 0) {
+			add(returnedCounts, type, accepted);
+			returnedTotal += accepted;
+		}
+		return accepted;
+	}
+
+	/**
+	 * @return true if a single result of the given type should be built, see {@link #accept(ValidationResultType, int)}
+	 */
+	public boolean accept(ValidationResultType type) {
+		return accept(type, 1) == 1;
+	}
+
+	/**
+	 * @return true once maxResults results have been accepted, after which no further result will be
+	 */
+	public boolean isFull() {
+		return returnedTotal >= maxResults;
+	}
+
+	/**
+	 * Records that checks were skipped because the filter was full, so the number of results they would have found is
+	 * not known.
+	 */
+	public void markTruncated() {
+		truncated = true;
+	}
+
+	/**
+	 * @return true if results were left out because of maxResults or the per type cap
+	 */
+	public boolean isTruncated() {
+		return truncated;
+	}
+
+	/**
+	 * Records that the document has a schema error, whether or not its result was accepted. Validators call this before
+	 * the caps are applied, so that a schema error left out of the results still stops the validations which require a
+	 * schema valid document.
+	 */
+	public void markSchemaError() {
+		schemaError = true;
+	}
+
+	/**
+	 * @return true if a validator found a schema error, see {@link #markSchemaError()}
+	 */
+	public boolean hasSchemaError() {
+		return schemaError;
+	}
+
+	/**
+	 * @return the number of results suppressed by type, containing only the types which had results suppressed
+	 */
+	public Map<ValidationResultType, Integer> getSuppressedCounts() {
+		return suppressedCounts;
+	}
+
+	/**
+	 * @return the number of results found but left out because of the caps by type, containing only the types which
+	 *         had results truncated. Checks skipped once the filter was full are not included.
+	 */
+	public Map<ValidationResultType, Integer> getTruncatedCounts() {
+		return truncatedCounts;
+	}
+
+	private static int get(Map<ValidationResultType, Integer> counts, ValidationResultType type) {
+		Integer count = counts.get(type);
+		return count != null ? count : 0;
+	}
+
+	private static void add(Map<ValidationResultType, Integer> counts, ValidationResultType type, int count) {
+		counts.put(type, get(counts, type) + count);
+	}
+
+	public static class ValidationResultFilterBuilder {
+		private ValidationResultSeverity minSeverity = ValidationResultSeverity.INFO;
+		private int maxResults = UNLIMITED;
+		private int maxResultsPerType = UNLIMITED;
+
+		public ValidationResultFilterBuilder minSeverity(ValidationResultSeverity minSeverity) {
+			if (minSeverity != null) {
+				this.minSeverity = minSeverity;
+			}
+			return this;
+		}
+
+		/**
+		 * @throws IllegalArgumentException if maxResults is less than 1
+		 */
+		public ValidationResultFilterBuilder maxResults(Integer maxResults) {
+			if (maxResults != null) {
+				this.maxResults = requirePositive("maxResults", maxResults);
+			}
+			return this;
+		}
+
+		/**
+		 * @throws IllegalArgumentException if maxResultsPerType is less than 1
+		 */
+		public ValidationResultFilterBuilder maxResultsPerType(Integer maxResultsPerType) {
+			if (maxResultsPerType != null) {
+				this.maxResultsPerType = requirePositive("maxResultsPerType", maxResultsPerType);
+			}
+			return this;
+		}
+
+		private static int requirePositive(String name, int value) {
+			if (value < 1) {
+				throw new IllegalArgumentException("The " + name + " given (" + value + ") is invalid. It must be 1 or more.");
+			}
+			return value;
+		}
+
+		public ValidationResultFilter build() {
+			return new ValidationResultFilter(this);
+		}
+	}
+}
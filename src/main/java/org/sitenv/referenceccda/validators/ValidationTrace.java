@@ -0,0 +1,232 @@
+package org.sitenv.referenceccda.validators;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Times the stages of a single validation, which run one after the other on the request thread, and measures the bytes
+ * allocated by each of them and the garbage collections of the whole JVM while it runs.
+ * <p>
+ * The trace of the validation running on a thread is made current by the service, so that the validators can split
+ * their own work into stages with {@link #startCurrentStage(String)}. Work forked to other threads adds its allocations
+ * with {@link #addAllocatedBytes(String, long)}.
+ */
+public class ValidationTrace {
+	public static final String SCHEMA_STAGE = "schema";
+	public static final String MDHT_STAGE = "mdht";
+	public static final String XPATH_INDEXING_STAGE = "xpathIndexing";
+	public static final String MDHT_LOAD_STAGE = "mdhtLoad";
+	public static final String DIAGNOSTIC_CONVERSION_STAGE = "diagnosticConversion";
+	public static final String VOCABULARY_STAGE = "vocabulary";
+	public static final String CONTENT_STAGE = "content";
+	public static final String STRING_CONVERSION_STAGE = "stringConversion";
+	public static final String SERIALIZATION_STAGE = "serialization";
+
+	private static final ThreadLocal<ValidationTrace> CURRENT = new ThreadLocal<ValidationTrace>();
+
+	private final Thread thread = Thread.currentThread();
+	private final long startMillis = System.currentTimeMillis();
+	private final long startNanos = System.nanoTime();
+	private final long gcCountAtStart;
+	private final long gcMillisAtStart;
+	private final Map<String, Long> stageNanos = new LinkedHashMap<String, Long>();
+	private final Map<String, Long> stageAllocatedBytes = new LinkedHashMap<String, Long>();
+	private String currentStage;
+	private long currentStageStartNanos;
+	private long currentStageStartAllocatedBytes;
+	private long endNanos = -1;
+	private long endAllocatedBytes = -1;
+	private long gcCount;
+	private long gcMillis;
+
+	public ValidationTrace() {
+		long[] gcTotals = gcTotals();
+		gcCountAtStart = gcTotals[0];
+		gcMillisAtStart = gcTotals[1];
+	}
+
+	/**
+	 * @return the trace of the validation running on the current thread, or null if there is none
+	 */
+	public static ValidationTrace current() {
+		return CURRENT.get();
+	}
+
+	/**
+	 * Makes the given trace the one of the current thread, or clears it if null.
+	 */
+	public static void setCurrent(ValidationTrace trace) {
+		if (trace != null) {
+			CURRENT.set(trace);
+		} else {
+			CURRENT.remove();
+		}
+	}
+
+	/**
+	 * Starts the given stage of the validation running on the current thread, if it is traced.
+	 */
+	public static void startCurrentStage(String stage) {
+		ValidationTrace trace = CURRENT.get();
+		if (trace != null) {
+			trace.startStage(stage);
+		}
+	}
+
+	/**
+	 * @return the bytes allocated so far by the current thread, or -1 if the JVM does not measure it
+	 */
+	public static long currentThreadAllocatedBytes() {
+		ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+		if (threadMXBean instanceof com.sun.management.ThreadMXBean) {
+			com.sun.management.ThreadMXBean hotSpotThreadMXBean = (com.sun.management.ThreadMXBean) threadMXBean;
+			if (hotSpotThreadMXBean.isThreadAllocatedMemoryEnabled()) {
+				return hotSpotThreadMXBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Ends the current stage, if any, and starts the given one.
+	 */
+	public void startStage(String stage) {
+		endStage();
+		currentStage = stage;
+		currentStageStartNanos = System.nanoTime();
+		currentStageStartAllocatedBytes = currentThreadAllocatedBytes();
+	}
+
+	public void endStage() {
+		if (currentStage != null) {
+			long allocatedBytes = currentThreadAllocatedBytes();
+			synchronized (this) {
+				add(stageNanos, currentStage, System.nanoTime() - currentStageStartNanos);
+				if (allocatedBytes >= 0 && currentStageStartAllocatedBytes >= 0) {
+					add(stageAllocatedBytes, currentStage, allocatedBytes - currentStageStartAllocatedBytes);
+				}
+			}
+			currentStage = null;
+		}
+	}
+
+	/**
+	 * Ends the current stage and the validation.
+	 */
+	public void end() {
+		endStage();
+		if (endNanos < 0) {
+			endNanos = System.nanoTime();
+			endAllocatedBytes = currentThreadAllocatedBytes();
+			long[] gcTotals = gcTotals();
+			gcCount = gcTotals[0] - gcCountAtStart;
+			gcMillis = gcTotals[1] - gcMillisAtStart;
+		}
+	}
+
+	/**
+	 * Adds the bytes allocated for a stage by work forked from the validation, when it ran on another thread than the
+	 * validation, whose own allocations are already measured.
+	 */
+	public void addAllocatedBytes(String stage, long allocatedBytes) {
+		if (Thread.currentThread() != thread && allocatedBytes > 0) {
+			synchronized (this) {
+				add(stageAllocatedBytes, stage, allocatedBytes);
+			}
+		}
+	}
+
+	/**
+	 * Adds the bytes allocated by the current thread since it measured the given total, see
+	 * {@link #addAllocatedBytes(String, long)}.
+	 */
+	public void addAllocatedBytesSince(String stage, long allocatedBytesAtStart) {
+		long allocatedBytes = currentThreadAllocatedBytes();
+		if (allocatedBytesAtStart >= 0 && allocatedBytes >= 0) {
+			addAllocatedBytes(stage, allocatedBytes - allocatedBytesAtStart);
+		}
+	}
+
+	private static void add(Map<String, Long> totals, String stage, long value) {
+		Long previous = totals.get(stage);
+		totals.put(stage, previous != null ? previous + value : value);
+	}
+
+	public long getStartMillis() {
+		return startMillis;
+	}
+
+	public long getElapsedMillis() {
+		return TimeUnit.NANOSECONDS.toMillis((endNanos >= 0 ? endNanos : System.nanoTime()) - startNanos);
+	}
+
+	/**
+	 * @return the milliseconds spent in each stage which was run, in the order they were first run
+	 */
+	public synchronized Map<String, Long> getStageMillis() {
+		Map<String, Long> stageMillis = new LinkedHashMap<String, Long>();
+		for (Map.Entry<String, Long> stage : stageNanos.entrySet()) {
+			stageMillis.put(stage.getKey(), TimeUnit.NANOSECONDS.toMillis(stage.getValue()));
+		}
+		return Collections.unmodifiableMap(stageMillis);
+	}
+
+	/**
+	 * @return the bytes allocated by each stage which was run, empty if the JVM does not measure allocations
+	 */
+	public synchronized Map<String, Long> getStageAllocatedBytes() {
+		return Collections.unmodifiableMap(new LinkedHashMap<String, Long>(stageAllocatedBytes));
+	}
+
+	/**
+	 * @return the bytes allocated by all the stages, including the work they forked to other threads, or -1 if the JVM
+	 *         does not measure allocations
+	 */
+	public synchronized long getAllocatedBytes() {
+		if (stageAllocatedBytes.isEmpty()) {
+			return -1;
+		}
+		long allocatedBytes = 0;
+		for (Long stageBytes : stageAllocatedBytes.values()) {
+			allocatedBytes += stageBytes;
+		}
+		return allocatedBytes;
+	}
+
+	/**
+	 * @return the bytes allocated by the validation thread when the validation ended, to measure the work done after
+	 *         it, or -1 if it has not ended or the JVM does not measure allocations
+	 */
+	public long getEndAllocatedBytes() {
+		return endAllocatedBytes;
+	}
+
+	/**
+	 * @return the number of garbage collections, of any thread, between the start and the end of the validation
+	 */
+	public long getGcCount() {
+		return gcCount;
+	}
+
+	/**
+	 * @return the approximate time spent in garbage collections between the start and the end of the validation
+	 */
+	public long getGcMillis() {
+		return gcMillis;
+	}
+
+	private static long[] gcTotals() {
+		long count = 0;
+		long millis = 0;
+		for (GarbageCollectorMXBean garbageCollector : ManagementFactory.getGarbageCollectorMXBeans()) {
+			count += Math.max(garbageCollector.getCollectionCount(), 0);
+			millis += Math.max(garbageCollector.getCollectionTime(), 0);
+		}
+		return new long[] { count, millis };
+	}
+}
@@ -0,0 +1,234 @@
+package org.sitenv.referenceccda.validators;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.util.StreamReaderDelegate;
+
+import org.apache.log4j.Logger;
+import org.xml.sax.Attributes;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXNotRecognizedException;
+import org.xml.sax.SAXNotSupportedException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.XMLFilterImpl;
+
+/**
+ * The SAX and StAX parsers used by the validators for the documents sent to the service.
+ * <p>
+ * Factories are looked up and configured once. SAX parsers are reset after each use and kept in a bounded pool shared
+ * by all threads, rather than in thread locals, so that no container thread holds on to the classes of the application
+ * once it is undeployed. Every parser has secure processing enabled, which limits entity expansion, does not load
+ * external DTDs or entities, and rejects documents nested deeper than the maximum element depth or with an attribute
+ * value longer than the maximum attribute size.
+ * <p>
+ * The StAX implementation is found with the standard {@link XMLInputFactory#newInstance()} lookup, so a faster
+ * implementation such as Woodstox or Aalto is used by adding it to the classpath or by setting the
+ * javax.xml.stream.XMLInputFactory system property.
+ */
+public final class XMLParserProvider {
+	private static Logger logger = Logger.getLogger(XMLParserProvider.class);
+
+	private static final String FEATURE_EXTERNAL_GENERAL_ENTITIES = "http://xml.org/sax/features/external-general-entities";
+	private static final String FEATURE_EXTERNAL_PARAMETER_ENTITIES = "http://xml.org/sax/features/external-parameter-entities";
+	private static final String FEATURE_LOAD_EXTERNAL_DTD = "http://apache.org/xml/features/nonvalidating/load-external-dtd";
+
+	private static volatile int maxElementDepth = 1000;
+	private static volatile int maxAttributeSize = 1024 * 1024;
+
+	private static final SAXParserFactory SAX_PARSER_FACTORY = createSAXParserFactory();
+	private static final XMLInputFactory XML_INPUT_FACTORY = createXMLInputFactory();
+
+	private static final BlockingQueue<SAXParser> SAX_PARSERS = new ArrayBlockingQueue<SAXParser>(
+			Runtime.getRuntime().availableProcessors() * 2);
+
+	private XMLParserProvider() {
+	}
+
+	/**
+	 * Sets the maximum element depth and attribute value length accepted by the SAX and StAX parsers, called once on
+	 * startup.
+	 */
+	public static void configureLimits(int maxElementDepth, int maxAttributeSize) {
+		XMLParserProvider.maxElementDepth = maxElementDepth;
+		XMLParserProvider.maxAttributeSize = maxAttributeSize;
+		logger.info("XML parser limits: maxElementDepth=" + maxElementDepth + ", maxAttributeSize=" + maxAttributeSize);
+	}
+
+	/**
+	 * Parses the given stream with a pooled SAX parser, reporting the document to the given handler.
+	 */
+	public static void parse(InputStream in, ContentHandler handler) throws SAXException, IOException {
+		XMLReader reader = borrowXMLReader();
+		try {
+			reader.setContentHandler(handler);
+			reader.parse(new InputSource(in));
+		} finally {
+			releaseXMLReader(reader);
+		}
+	}
+
+	/**
+	 * @return a hardened SAX reader over a pooled parser, for APIs which take an XMLReader such as a SAXSource, to be
+	 *         given back with {@link #releaseXMLReader(XMLReader)} once the document is parsed
+	 */
+	public static XMLReader borrowXMLReader() throws SAXException {
+		SAXParser parser = SAX_PARSERS.poll();
+		if (parser == null) {
+			parser = newSAXParser();
+		}
+		return new LimitingXMLFilter(parser);
+	}
+
+	/**
+	 * Resets the parser of a reader from {@link #borrowXMLReader()}, dropping the handlers of the caller, and returns
+	 * it to the pool.
+	 */
+	public static void releaseXMLReader(XMLReader reader) {
+		SAXParser parser = ((LimitingXMLFilter) reader).parser;
+		parser.reset();
+		SAX_PARSERS.offer(parser);
+	}
+
+	/**
+	 * @return a StAX reader for the given stream, which the caller must close
+	 */
+	public static XMLStreamReader createXMLStreamReader(InputStream in) throws XMLStreamException {
+		return new LimitingXMLStreamReader(XML_INPUT_FACTORY.createXMLStreamReader(in));
+	}
+
+	private static SAXParser newSAXParser() throws SAXException {
+		try {
+			return SAX_PARSER_FACTORY.newSAXParser();
+		} catch (ParserConfigurationException e) {
+			throw new SAXException(e.getMessage(), e);
+		}
+	}
+
+	private static SAXParserFactory createSAXParserFactory() {
+		SAXParserFactory factory = SAXParserFactory.newInstance();
+		factory.setNamespaceAware(true);
+		factory.setValidating(false);
+		factory.setXIncludeAware(false);
+		setFeature(factory, XMLConstants.FEATURE_SECURE_PROCESSING, true);
+		setFeature(factory, FEATURE_EXTERNAL_GENERAL_ENTITIES, false);
+		setFeature(factory, FEATURE_EXTERNAL_PARAMETER_ENTITIES, false);
+		setFeature(factory, FEATURE_LOAD_EXTERNAL_DTD, false);
+		logger.info("Using SAXParserFactory " + factory.getClass().getName());
+		return factory;
+	}
+
+	private static void setFeature(SAXParserFactory factory, String feature, boolean value) {
+		try {
+			factory.setFeature(feature, value);
+		} catch (ParserConfigurationException | SAXNotRecognizedException | SAXNotSupportedException e) {
+			logger.warn("The SAX parser does not support the feature " + feature + ": " + e.getMessage());
+		}
+	}
+
+	private static XMLInputFactory createXMLInputFactory() {
+		XMLInputFactory factory = XMLInputFactory.newInstance();
+		factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+		factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+		factory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.FALSE);
+		logger.info("Using XMLInputFactory " + factory.getClass().getName());
+		return factory;
+	}
+
+	/**
+	 * Rejects documents nested deeper than maxElementDepth or with an attribute value longer than maxAttributeSize,
+	 * which the standard parser limits do not cover.
+	 */
+	private static class LimitingXMLFilter extends XMLFilterImpl {
+		private final SAXParser parser;
+		private final int elementDepthLimit = maxElementDepth;
+		private final int attributeSizeLimit = maxAttributeSize;
+		private int depth;
+
+		LimitingXMLFilter(SAXParser parser) throws SAXException {
+			super(parser.getXMLReader());
+			this.parser = parser;
+		}
+
+		@Override
+		public void startElement(String uri, String localName, String qName, Attributes atts) throws SAXException {
+			if (++depth > elementDepthLimit) {
+				throw new SAXException("The document exceeds the maximum element depth of " + elementDepthLimit
+						+ " at <" + qName + ">");
+			}
+			for (int i = 0; i < atts.getLength(); i++) {
+				if (atts.getValue(i).length() > attributeSizeLimit) {
+					throw new SAXException("The value of the " + atts.getQName(i) + " attribute of <" + qName
+							+ "> exceeds the maximum attribute size of " + attributeSizeLimit + " characters");
+				}
+			}
+			super.startElement(uri, localName, qName, atts);
+		}
+
+		@Override
+		public void endElement(String uri, String localName, String qName) throws SAXException {
+			depth--;
+			super.endElement(uri, localName, qName);
+		}
+	}
+
+	/**
+	 * Applies the limits of {@link LimitingXMLFilter} to a StAX reader, as each element is reached.
+	 */
+	private static class LimitingXMLStreamReader extends StreamReaderDelegate {
+		private final int elementDepthLimit = maxElementDepth;
+		private final int attributeSizeLimit = maxAttributeSize;
+		private int depth;
+
+		LimitingXMLStreamReader(XMLStreamReader parent) {
+			super(parent);
+		}
+
+		@Override
+		public int next() throws XMLStreamException {
+			return checkLimits(super.next());
+		}
+
+		@Override
+		public int nextTag() throws XMLStreamException {
+			return checkLimits(super.nextTag());
+		}
+
+		@Override
+		public String getElementText() throws XMLStreamException {
+			String text = super.getElementText();
+			// the parent has read up to the end of the element
+			depth--;
+			return text;
+		}
+
+		private int checkLimits(int event) throws XMLStreamException {
+			if (event == START_ELEMENT) {
+				if (++depth > elementDepthLimit) {
+					throw new XMLStreamException("The document exceeds the maximum element depth of " + elementDepthLimit
+							+ " at <" + getName() + ">", getLocation());
+				}
+				for (int i = 0; i < getAttributeCount(); i++) {
+					if (getAttributeValue(i).length() > attributeSizeLimit) {
+						throw new XMLStreamException("The value of the " + getAttributeName(i) + " attribute of <" + getName()
+								+ "> exceeds the maximum attribute size of " + attributeSizeLimit + " characters", getLocation());
+					}
+				}
+			} else if (event == END_ELEMENT) {
+				depth--;
+			}
+			return event;
+		}
+	}
+}
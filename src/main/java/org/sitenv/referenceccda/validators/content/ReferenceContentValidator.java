@@ -1,13 +1,16 @@
 package org.sitenv.referenceccda.validators.content;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
 import org.sitenv.contentvalidator.dto.ContentValidationResult;
 import org.sitenv.contentvalidator.service.ContentValidatorService;
 import org.sitenv.referenceccda.validators.BaseCCDAValidator;
+import org.sitenv.referenceccda.validators.CCDADocument;
 import org.sitenv.referenceccda.validators.CCDAValidator;
 import org.sitenv.referenceccda.validators.RefCCDAValidationResult;
+import org.sitenv.referenceccda.validators.ValidationResultFilter;
 import org.sitenv.referenceccda.validators.enums.ValidationResultType;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
@@ -27,35 +30,38 @@ public class ReferenceContentValidator extends BaseCCDAValidator implements CCDA
     }
 
     @Override
-    public ArrayList<RefCCDAValidationResult> validateFile(String validationObjective, String referenceFileName, String ccdaFile) throws SAXException {
+    public ArrayList<RefCCDAValidationResult> validateFile(String validationObjective, String referenceFileName, CCDADocument ccdaFile,
+            ValidationResultFilter resultFilter) throws SAXException, IOException {
         ArrayList<RefCCDAValidationResult> results = null;
         if (ccdaFile != null) {
-            results = doValidation(validationObjective, referenceFileName, ccdaFile);
+            results = doValidation(validationObjective, referenceFileName, ccdaFile.asString(), resultFilter);
         }
         return results;
     }
 
-    private ArrayList<RefCCDAValidationResult> doValidation(String validationObjective, String referenceFileName, String ccdaFile) throws SAXException {
+    private ArrayList<RefCCDAValidationResult> doValidation(String validationObjective, String referenceFileName, String ccdaFile,
+            ValidationResultFilter resultFilter) throws SAXException {
         List<ContentValidationResult> validationResults = contentValidatorService.validate(validationObjective, referenceFileName, ccdaFile);
         ArrayList<RefCCDAValidationResult> results = new ArrayList<>();
         for (ContentValidationResult result : validationResults) {
-            results.add(createValidationResult(result));
+            ValidationResultType type = getValidationResultType(result);
+            if (resultFilter.accept(type)) {
+                results.add(createValidationResult(result, type));
+            }
         }
         return results;
     }
 
-    private RefCCDAValidationResult createValidationResult(ContentValidationResult result) {
-        ValidationResultType type;
+    private static ValidationResultType getValidationResultType(ContentValidationResult result) {
         switch(result.getContentValidationResultLevel()){
-            case ERROR: type = ValidationResultType.REF_CCDA_ERROR;
-                break;
-            case WARNING: type = ValidationResultType.REF_CCDA_WARN;
-                break;
-            default: type = ValidationResultType.REF_CCDA_INFO;
-                break;
+            case ERROR: return ValidationResultType.REF_CCDA_ERROR;
+            case WARNING: return ValidationResultType.REF_CCDA_WARN;
+            default: return ValidationResultType.REF_CCDA_INFO;
         }
-        
-        return new RefCCDAValidationResult.RefCCDAValidationResultBuilder(result.getMessage(), null, null, type, "0")
+    }
+
+    private RefCCDAValidationResult createValidationResult(ContentValidationResult result, ValidationResultType type) {
+        return new RefCCDAValidationResult.RefCCDAValidationResultBuilder(result.getMessage(), null, null, type, 0)
                 .build();
     }
 }
@@ -0,0 +1,34 @@
+package org.sitenv.referenceccda.validators.enums;
+
+/**
+ * The severity shared by the error, warning and info result types of every validator, ordered from most to least
+ * severe.
+ */
+public enum ValidationResultSeverity {
+	ERROR, WARN, INFO;
+
+	/**
+	 * @return true if this severity is the same as or more severe than the given severity
+	 */
+	public boolean isAtLeast(ValidationResultSeverity severity) {
+		return ordinal() <= severity.ordinal();
+	}
+
+	/**
+	 * Parses a severity request parameter, ignoring case and accepting "warning" for {@link #WARN}.
+	 *
+	 * @throws IllegalArgumentException if the value is not a known severity
+	 */
+	public static ValidationResultSeverity fromString(String severity) {
+		for (ValidationResultSeverity value : values()) {
+			if (value.name().equalsIgnoreCase(severity)) {
+				return value;
+			}
+		}
+		if ("warning".equalsIgnoreCase(severity)) {
+			return WARN;
+		}
+		throw new IllegalArgumentException("The severity given (" + severity + ") is invalid. Please try one of the following "
+				+ "valid Strings instead: ERROR, WARN, INFO");
+	}
+}
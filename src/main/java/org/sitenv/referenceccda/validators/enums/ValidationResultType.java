@@ -3,14 +3,16 @@ package org.sitenv.referenceccda.validators.enums;
 import com.fasterxml.jackson.annotation.JsonValue;
 
 public enum ValidationResultType {
-	CCDA_MDHT_CONFORMANCE_ERROR("C-CDA MDHT Conformance Error"), CCDA_MDHT_CONFORMANCE_WARN("C-CDA MDHT Conformance Warning"), CCDA_MDHT_CONFORMANCE_INFO("C-CDA MDHT Conformance Info"), CCDA_VOCAB_CONFORMANCE_ERROR(
-			"ONC 2015 S&CC Vocabulary Validation Conformance Error"), CCDA_VOCAB_CONFORMANCE_WARN("ONC 2015 S&CC Vocabulary Validation Conformance Warning"), CCDA_VOCAB_CONFORMANCE_INFO("ONC 2015 S&CC Vocabulary Validation Conformance Info"), REF_CCDA_ERROR(
-			"ONC 2015 S&CC Reference C-CDA Validation Error"), REF_CCDA_WARN("ONC 2015 S&CC Reference C-CDA Validation Warning"), REF_CCDA_INFO("ONC 2015 S&CC Reference C-CDA Validation Info");
+	CCDA_MDHT_CONFORMANCE_ERROR("C-CDA MDHT Conformance Error", ValidationResultSeverity.ERROR), CCDA_MDHT_CONFORMANCE_WARN("C-CDA MDHT Conformance Warning", ValidationResultSeverity.WARN), CCDA_MDHT_CONFORMANCE_INFO("C-CDA MDHT Conformance Info", ValidationResultSeverity.INFO), CCDA_VOCAB_CONFORMANCE_ERROR(
+			"ONC 2015 S&CC Vocabulary Validation Conformance Error", ValidationResultSeverity.ERROR), CCDA_VOCAB_CONFORMANCE_WARN("ONC 2015 S&CC Vocabulary Validation Conformance Warning", ValidationResultSeverity.WARN), CCDA_VOCAB_CONFORMANCE_INFO("ONC 2015 S&CC Vocabulary Validation Conformance Info", ValidationResultSeverity.INFO), REF_CCDA_ERROR(
+			"ONC 2015 S&CC Reference C-CDA Validation Error", ValidationResultSeverity.ERROR), REF_CCDA_WARN("ONC 2015 S&CC Reference C-CDA Validation Warning", ValidationResultSeverity.WARN), REF_CCDA_INFO("ONC 2015 S&CC Reference C-CDA Validation Info", ValidationResultSeverity.INFO);
 
 	private String errorTypePrettyName;
+	private ValidationResultSeverity severity;
 
-	private ValidationResultType(String type) {
+	private ValidationResultType(String type, ValidationResultSeverity severity) {
 		errorTypePrettyName = type;
+		this.severity = severity;
 	}
 
 	@JsonValue
@@ -22,4 +24,8 @@ public enum ValidationResultType {
 		return name();
 	}
 
+	public ValidationResultSeverity getSeverity() {
+		return severity;
+	}
+
 }
\ No newline at end of file
@@ -16,6 +16,12 @@ public final class CCDATypes {
 	public static final List<String> NON_SPECIFIC_CCDA_TYPES = new ArrayList<String>(
 			Arrays.asList(NON_SPECIFIC_CCDA, NON_SPECIFIC_CCDAR2));
 
+	// consol2 document type detected from the document level templateId
+	public static final String AUTO_DETECT = "Auto";
+
+	// CDA XML schema validation only, no MDHT, Vocabulary or Content validation
+	public static final String SCHEMA_ONLY = "SchemaOnly";
+
 	// most common mu2
 	public static final String TRANSITIONS_OF_CARE_AMBULATORY_SUMMARY = "TransitionsOfCareAmbulatorySummary";
 	// other mu2
@@ -45,6 +51,11 @@ public final class CCDATypes {
 		ValidationObjectives.appendObjectivesData(NON_SPECIFIC_CCDA_TYPES, "LEGACY (same result as 'C-CDA_IG_Plus_Vocab')", sb);
 		sb.append(" ");
 		ValidationObjectives.appendObjectivesData(MU2_TYPES, "C-CDA R1.1 WITH MU2", sb);
+		sb.append(" ");
+		ValidationObjectives.appendObjectivesData(Arrays.asList(AUTO_DETECT),
+				"DOCUMENT TYPE DETECTED FROM templateId (same result as 'C-CDA_IG_Plus_Vocab')", sb);
+		sb.append(" ");
+		ValidationObjectives.appendObjectivesData(Arrays.asList(SCHEMA_ONLY), "CDA SCHEMA ONLY", sb);
 		return sb.toString();
 	}
 	
@@ -0,0 +1,176 @@
+package org.sitenv.referenceccda.validators.schema;
+
+import java.io.File;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import javax.xml.XMLConstants;
+import javax.xml.transform.sax.SAXSource;
+import javax.xml.validation.Schema;
+import javax.xml.validation.SchemaFactory;
+import javax.xml.validation.Validator;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.log4j.Logger;
+import org.sitenv.referenceccda.validators.BaseCCDAValidator;
+import org.sitenv.referenceccda.validators.CCDADocument;
+import org.sitenv.referenceccda.validators.CCDAPreflightCheck;
+import org.sitenv.referenceccda.validators.CCDAValidator;
+import org.sitenv.referenceccda.validators.RefCCDAValidationResult;
+import org.sitenv.referenceccda.validators.ValidationResultFilter;
+import org.sitenv.referenceccda.validators.XMLParserProvider;
+import org.sitenv.referenceccda.validators.enums.ValidationResultType;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.xml.sax.ErrorHandler;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXParseException;
+import org.xml.sax.XMLReader;
+
+/**
+ * Validates a document against the CDA XML schema only, for the {@link CCDATypes#SCHEMA_ONLY} objective.
+ * <p>
+ * The schema configured by referenceccda.schemaFile is compiled once and shared; each validation borrows a
+ * thread-confined {@link Validator} from a bounded pool and streams the document through it, so no MDHT model is
+ * loaded and no OCL constraints are evaluated. The document is read by a SAX reader borrowed from the
+ * {@link XMLParserProvider} pool.
+ * <p>
+ * Every finding is returned as a schema error, with the CCDA_MDHT_CONFORMANCE_ERROR or CCDA_MDHT_CONFORMANCE_WARN type
+ * and the schemaError flag set. This is deliberate: it is how the schema errors found while MDHT loads a document are
+ * reported by the other objectives, so clients tell them apart from the MDHT constraints by the schemaError flag rather
+ * than by the type, for every objective.
+ */
+@Component
+public class CDASchemaValidator extends BaseCCDAValidator implements CCDAValidator {
+	private static Logger logger = Logger.getLogger(CDASchemaValidator.class);
+
+	private static final MDHTResultDetails SCHEMA_ERROR_DETAILS = MDHTResultDetails.valueOf(true, false, false, false);
+
+	@Value("${referenceccda.schemaFile:}")
+	private String schemaFile;
+	@Value("${referenceccda.schemaOnly.validatorPoolSize:0}")
+	private int validatorPoolSize;
+
+	private volatile Schema schema;
+	private BlockingQueue<Validator> validatorPool;
+
+	public CDASchemaValidator() {
+	}
+
+	public CDASchemaValidator(String schemaFile, int validatorPoolSize) {
+		this.schemaFile = schemaFile;
+		this.validatorPoolSize = validatorPoolSize;
+	}
+
+	@Override
+	public ArrayList<RefCCDAValidationResult> validateFile(String validationObjective, String referenceFileName,
+			CCDADocument ccdaFile, ValidationResultFilter resultFilter) throws SAXException, Exception {
+		CCDAPreflightCheck.check(ccdaFile);
+		SchemaValidationResultsHandler resultsHandler = new SchemaValidationResultsHandler(resultFilter);
+		Validator validator = borrowValidator();
+		XMLReader reader = XMLParserProvider.borrowXMLReader();
+		try (InputStream in = ccdaFile.openStream()) {
+			validator.setErrorHandler(resultsHandler);
+			validator.validate(new SAXSource(reader, new InputSource(in)));
+		} catch (ResultLimitReachedException limitReached) {
+			logger.info("Schema validation stopped as the maximum number of results was reached");
+		} catch (SAXParseException fatalError) {
+			// already recorded by the handler, the document is not well-formed so validation cannot continue
+			logger.info("Schema validation stopped at a fatal error: " + fatalError.getMessage());
+		} finally {
+			XMLParserProvider.releaseXMLReader(reader);
+			releaseValidator(validator);
+		}
+		logger.info("Processing and returning schema validation results");
+		return resultsHandler.results;
+	}
+
+	private Validator borrowValidator() throws Exception {
+		Validator validator = getValidatorPool().poll();
+		if (validator == null) {
+			validator = schema.newValidator();
+			validator.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+		}
+		return validator;
+	}
+
+	private void releaseValidator(Validator validator) {
+		// not reset, as the JDK validator then fails on the next SAXSource, and each validate starts a new document
+		validator.setErrorHandler(null);
+		validatorPool.offer(validator);
+	}
+
+	private BlockingQueue<Validator> getValidatorPool() throws Exception {
+		if (schema == null) {
+			synchronized (this) {
+				if (schema == null) {
+					if (StringUtils.isEmpty(schemaFile)) {
+						logger.error("referenceccda.schemaFile is not configured");
+						throw new Exception("Schema only validation is not available as the CDA schema has not been configured "
+								+ "(referenceccda.schemaFile). Please try one of the other validation objectives instead.");
+					}
+					int poolSize = validatorPoolSize > 0 ? validatorPoolSize : Runtime.getRuntime().availableProcessors() * 2;
+					logger.info("Compiling CDA schema " + schemaFile + " for a pool of " + poolSize + " schema validators");
+					validatorPool = new ArrayBlockingQueue<Validator>(poolSize);
+					schema = SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI).newSchema(new File(schemaFile));
+				}
+			}
+		}
+		return validatorPool;
+	}
+
+	/**
+	 * Thrown by the handler to stop the validator once no further result can be returned.
+	 */
+	private static class ResultLimitReachedException extends SAXException {
+		private static final long serialVersionUID = 1L;
+	}
+
+	private static class SchemaValidationResultsHandler implements ErrorHandler {
+		private final ArrayList<RefCCDAValidationResult> results = new ArrayList<RefCCDAValidationResult>();
+		private final ValidationResultFilter resultFilter;
+
+		SchemaValidationResultsHandler(ValidationResultFilter resultFilter) {
+			this.resultFilter = resultFilter;
+		}
+
+		@Override
+		public void warning(SAXParseException exception) throws SAXException {
+			addValidationResult(exception, ValidationResultType.CCDA_MDHT_CONFORMANCE_WARN);
+		}
+
+		@Override
+		public void error(SAXParseException exception) throws SAXException {
+			addValidationResult(exception, ValidationResultType.CCDA_MDHT_CONFORMANCE_ERROR);
+		}
+
+		@Override
+		public void fatalError(SAXParseException exception) throws SAXException {
+			addValidationResult(exception, ValidationResultType.CCDA_MDHT_CONFORMANCE_ERROR);
+			throw exception;
+		}
+
+		private void addValidationResult(SAXParseException exception, ValidationResultType type) throws SAXException {
+			if (type == ValidationResultType.CCDA_MDHT_CONFORMANCE_ERROR) {
+				resultFilter.markSchemaError();
+			}
+			if (resultFilter.accept(type)) {
+				results.add(createValidationResult(exception, type));
+			}
+			if (resultFilter.isFull()) {
+				throw new ResultLimitReachedException();
+			}
+		}
+
+		private static RefCCDAValidationResult createValidationResult(SAXParseException exception, ValidationResultType type) {
+			int lineNumber = exception.getLineNumber() > 0 ? exception.getLineNumber()
+					: RefCCDAValidationResult.LINE_NUMBER_NOT_AVAILABLE;
+			return new RefCCDAValidationResult.RefCCDAValidationResultBuilder(exception.getMessage(), null, null, type, lineNumber)
+					.mdhtResultDetails(SCHEMA_ERROR_DETAILS)
+					.build();
+		}
+	}
+}
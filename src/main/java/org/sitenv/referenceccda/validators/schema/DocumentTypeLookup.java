@@ -0,0 +1,77 @@
+package org.sitenv.referenceccda.validators.schema;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.eclipse.emf.ecore.EClass;
+import org.openhealthtools.mdht.uml.cda.consol.ConsolPackage;
+import org.sitenv.referenceccda.validators.CCDAPreflightCheck.TemplateId;
+
+/**
+ * Precomputed lookup from a document level templateId (root and extension) to the most specific consol2 MDHT document
+ * EClass, used by the {@link CCDATypes#AUTO_DETECT} objective to load a document directly as its own type.
+ * <p>
+ * Only C-CDA R1.1 (no extension) and R2.1 (extension 2015-08-01) templates are mapped, as R2.0 is not supported by the
+ * validator. The MU2 document types share the CCD templateId and therefore cannot be detected from the document; they
+ * remain explicit objectives.
+ */
+public final class DocumentTypeLookup {
+	private static final String CCDA_DOCUMENT_TEMPLATE_ROOT = "2.16.840.1.113883.10.20.22.1.";
+	private static final String US_REALM_HEADER_ROOT = CCDA_DOCUMENT_TEMPLATE_ROOT + "1";
+	private static final String R21_EXTENSION = "2015-08-01";
+
+	private static final Map<String, EClass> DOCUMENT_TYPES_BY_TEMPLATE_ID;
+	static {
+		ConsolPackage consol = ConsolPackage.eINSTANCE;
+		Map<String, EClass> types = new HashMap<String, EClass>();
+		put(types, "1", consol.getGeneralHeaderConstraints(), consol.getUSRealmHeader2());
+		put(types, "2", consol.getContinuityOfCareDocument(), consol.getContinuityOfCareDocument2());
+		put(types, "3", consol.getHistoryAndPhysicalNote(), consol.getHistoryAndPhysicalNote2());
+		put(types, "4", consol.getConsultationNote(), consol.getConsultationNote2());
+		put(types, "5", consol.getDiagnosticImagingReport(), consol.getDiagnosticImagingReport2());
+		put(types, "6", consol.getProcedureNote(), consol.getProcedureNote2());
+		put(types, "7", consol.getOperativeNote(), consol.getOperativeNote2());
+		put(types, "8", consol.getDischargeSummary(), consol.getDischargeSummary2());
+		put(types, "9", consol.getProgressNote(), consol.getProgressNote2());
+		put(types, "10", consol.getUnstructuredDocument(), consol.getUnstructuredDocument2());
+		put(types, "13", null, consol.getTransferSummary());
+		put(types, "14", null, consol.getReferralNote());
+		put(types, "15", null, consol.getCarePlan());
+		DOCUMENT_TYPES_BY_TEMPLATE_ID = Collections.unmodifiableMap(types);
+	}
+
+	private DocumentTypeLookup() {
+	}
+
+	private static void put(Map<String, EClass> types, String templateSuffix, EClass r11Type, EClass r21Type) {
+		if (r11Type != null) {
+			types.put(key(CCDA_DOCUMENT_TEMPLATE_ROOT + templateSuffix, null), r11Type);
+		}
+		types.put(key(CCDA_DOCUMENT_TEMPLATE_ROOT + templateSuffix, R21_EXTENSION), r21Type);
+	}
+
+	private static String key(String root, String extension) {
+		return root + "|" + (extension != null ? extension : "");
+	}
+
+	/**
+	 * @return the EClass of the most specific known document template among the given document level templateIds,
+	 *         the US Realm Header type if that is the only known template, or null if none is known
+	 */
+	public static EClass findDocumentType(List<TemplateId> documentTemplateIds) {
+		EClass headerType = null;
+		for (TemplateId templateId : documentTemplateIds) {
+			EClass type = DOCUMENT_TYPES_BY_TEMPLATE_ID.get(key(templateId.getRoot(), templateId.getExtension()));
+			if (type != null) {
+				if (!US_REALM_HEADER_ROOT.equals(templateId.getRoot())) {
+					return type;
+				} else if (headerType == null) {
+					headerType = type;
+				}
+			}
+		}
+		return headerType;
+	}
+}
@@ -0,0 +1,94 @@
+package org.sitenv.referenceccda.validators.schema;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import org.eclipse.emf.common.util.URI;
+import org.eclipse.emf.ecore.resource.Resource;
+import org.eclipse.emf.ecore.resource.ResourceSet;
+import org.eclipse.emf.ecore.resource.impl.ResourceSetImpl;
+import org.eclipse.emf.ecore.xmi.XMLParserPool;
+import org.eclipse.emf.ecore.xmi.XMLResource;
+import org.eclipse.emf.ecore.xmi.impl.XMLParserPoolImpl;
+import org.sitenv.referenceccda.validators.schema.ValidationPlan.MdhtModel;
+
+/**
+ * Pool of the EMF resource sets the MDHT API loads the documents into, configured once instead of per document as
+ * CDAUtil does by default:
+ * <ul>
+ * <li>the SAX parsers are taken from an {@link XMLParserPool} shared by all the resource sets,</li>
+ * <li>each resource set keeps its own cache of the XML names resolved to features, reused by every document it loads
+ * (the cache is not thread safe, and a resource set is only used by one validation at a time),</li>
+ * <li>IDREFs are resolved once at the end of the document rather than each time one is met.</li>
+ * </ul>
+ * CDAUtil loads a document with {@link Resource#load(java.io.InputStream, Map)}, which only merges the default load
+ * options of the resource, so the options are copied to each resource the resource set creates. The load options of
+ * the resource set itself only apply to the resources it loads on demand.
+ * Resource sets are pooled per MDHT model, as the MU2 model reloads its package, and are returned empty so that the
+ * loaded documents can be collected as soon as their diagnostics are converted.
+ */
+final class MDHTResourceSetPool {
+	private static final XMLParserPool PARSER_POOL = new XMLParserPoolImpl();
+
+	private final Map<MdhtModel, BlockingQueue<ResourceSet>> idleResourceSets = new EnumMap<MdhtModel, BlockingQueue<ResourceSet>>(MdhtModel.class);
+
+	/**
+	 * @param maxIdleResourceSets the number of resource sets kept for each model, usually the number of validations run
+	 *                            at once
+	 */
+	MDHTResourceSetPool(int maxIdleResourceSets) {
+		for (MdhtModel mdhtModel : MdhtModel.values()) {
+			idleResourceSets.put(mdhtModel, new ArrayBlockingQueue<ResourceSet>(Math.max(maxIdleResourceSets, 1)));
+		}
+	}
+
+	/**
+	 * @return an empty resource set for the given model, to be given back with {@link #release(MdhtModel, ResourceSet)}
+	 */
+	ResourceSet acquire(MdhtModel mdhtModel) {
+		ResourceSet resourceSet = idleResourceSets.get(mdhtModel).poll();
+		return resourceSet != null ? resourceSet : createResourceSet();
+	}
+
+	/**
+	 * Unloads the documents loaded into the given resource set and keeps it for the next validation of the model, unless
+	 * enough are kept already.
+	 */
+	void release(MdhtModel mdhtModel, ResourceSet resourceSet) {
+		List<Resource> resources = new ArrayList<Resource>(resourceSet.getResources());
+		for (Resource resource : resources) {
+			resource.unload();
+		}
+		resourceSet.getResources().clear();
+		idleResourceSets.get(mdhtModel).offer(resourceSet);
+	}
+
+	private static ResourceSet createResourceSet() {
+		ResourceSet resourceSet = new PreconfiguredResourceSet();
+		Map<Object, Object> loadOptions = resourceSet.getLoadOptions();
+		loadOptions.put(XMLResource.OPTION_USE_PARSER_POOL, PARSER_POOL);
+		loadOptions.put(XMLResource.OPTION_USE_XML_NAME_TO_FEATURE_MAP, new HashMap<Object, Object>());
+		loadOptions.put(XMLResource.OPTION_DEFER_IDREF_RESOLUTION, Boolean.TRUE);
+		loadOptions.put(XMLResource.OPTION_USE_DEPRECATED_METHODS, Boolean.FALSE);
+		return resourceSet;
+	}
+
+	/**
+	 * Resource set whose XML resources load with its load options even when given a stream.
+	 */
+	static class PreconfiguredResourceSet extends ResourceSetImpl {
+		@Override
+		public Resource createResource(URI uri, String contentType) {
+			Resource resource = super.createResource(uri, contentType);
+			if (resource instanceof XMLResource) {
+				((XMLResource) resource).getDefaultLoadOptions().putAll(getLoadOptions());
+			}
+			return resource;
+		}
+	}
+}
@@ -1,45 +1,45 @@
 package org.sitenv.referenceccda.validators.schema;
 
-public class MDHTResultDetails {
-	private boolean isSchemaError, isDataTypeSchemaError, isIGIssue, isMUIssue;
-	
-	public MDHTResultDetails(boolean isSchemaError, boolean isDataTypeSchemaError, 
-			boolean isIGIssue, boolean isMUIssue) {
-		this.isSchemaError = isSchemaError;
-		this.isDataTypeSchemaError = isDataTypeSchemaError;
-		this.isIGIssue = isIGIssue;
-		this.isMUIssue = isMUIssue;
+/**
+ * The MDHT specific flags of a result. Instances are immutable and shared: there is one canonical instance per
+ * combination of flags, obtained through {@link #valueOf(boolean, boolean, boolean, boolean)}.
+ */
+public final class MDHTResultDetails {
+	private static final int SCHEMA_ERROR = 1, DATA_TYPE_SCHEMA_ERROR = 2, IG_ISSUE = 4, MU_ISSUE = 8;
+	private static final MDHTResultDetails[] INSTANCES = new MDHTResultDetails[16];
+	static {
+		for (int flags = 0; flags < INSTANCES.length; flags++) {
+			INSTANCES[flags] = new MDHTResultDetails(flags);
+		}
 	}
 
-	public boolean isSchemaError() {
-		return isSchemaError;
-	}
+	public static final MDHTResultDetails NONE = INSTANCES[0];
 
-	public void setSchemaError(boolean isSchemaError) {
-		this.isSchemaError = isSchemaError;
-	}
+	private final int flags;
 
-	public boolean isDataTypeSchemaError() {
-		return isDataTypeSchemaError;
+	private MDHTResultDetails(int flags) {
+		this.flags = flags;
 	}
 
-	public void setDataTypeSchemaError(boolean isDataTypeSchemaError) {
-		this.isDataTypeSchemaError = isDataTypeSchemaError;
+	public static MDHTResultDetails valueOf(boolean isSchemaError, boolean isDataTypeSchemaError,
+			boolean isIGIssue, boolean isMUIssue) {
+		return INSTANCES[(isSchemaError ? SCHEMA_ERROR : 0) | (isDataTypeSchemaError ? DATA_TYPE_SCHEMA_ERROR : 0)
+				| (isIGIssue ? IG_ISSUE : 0) | (isMUIssue ? MU_ISSUE : 0)];
 	}
 
-	public boolean isIGIssue() {
-		return isIGIssue;
+	public boolean isSchemaError() {
+		return (flags & SCHEMA_ERROR) != 0;
 	}
 
-	public void setIGIssue(boolean isIGIssue) {
-		this.isIGIssue = isIGIssue;
+	public boolean isDataTypeSchemaError() {
+		return (flags & DATA_TYPE_SCHEMA_ERROR) != 0;
 	}
 
-	public boolean isMUIssue() {
-		return isMUIssue;
+	public boolean isIGIssue() {
+		return (flags & IG_ISSUE) != 0;
 	}
 
-	public void setMUIssue(boolean isMUIssue) {
-		this.isMUIssue = isMUIssue;
+	public boolean isMUIssue() {
+		return (flags & MU_ISSUE) != 0;
 	}
 }
@@ -3,16 +3,18 @@ package org.sitenv.referenceccda.validators.schema;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
-import java.util.Collection;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RecursiveAction;
 
-import org.apache.commons.io.IOUtils;
-import org.apache.commons.lang3.StringUtils;
 import org.apache.log4j.Logger;
 import org.eclipse.emf.common.util.Diagnostic;
 import org.eclipse.emf.ecore.EClass;
 import org.eclipse.emf.ecore.EObject;
 import org.eclipse.emf.ecore.EStructuralFeature;
+import org.eclipse.emf.ecore.resource.ResourceSet;
 import org.eclipse.mdht.uml.cda.DocumentRoot;
 import org.eclipse.mdht.uml.cda.util.CDADiagnostic;
 import org.eclipse.mdht.uml.cda.util.CDAUtil;
@@ -20,10 +22,18 @@ import org.eclipse.mdht.uml.cda.util.ValidationResult;
 import org.openhealthtools.mdht.uml.cda.consol.ConsolPackage;
 import org.openhealthtools.mdht.uml.cda.mu2consol.Mu2consolPackage;
 import org.sitenv.referenceccda.validators.BaseCCDAValidator;
+import org.sitenv.referenceccda.validators.CCDADocument;
+import org.sitenv.referenceccda.validators.CCDAPreflightCheck;
+import org.sitenv.referenceccda.validators.CCDAPreflightCheck.TemplateId;
 import org.sitenv.referenceccda.validators.CCDAValidator;
 import org.sitenv.referenceccda.validators.RefCCDAValidationResult;
+import org.sitenv.referenceccda.validators.ValidationForkJoinPool;
+import org.sitenv.referenceccda.validators.ValidationResultFilter;
+import org.sitenv.referenceccda.validators.ValidationTrace;
 import org.sitenv.referenceccda.validators.XPathIndexer;
 import org.sitenv.referenceccda.validators.enums.ValidationResultType;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 import org.xml.sax.SAXException;
 
@@ -32,113 +42,127 @@ public class ReferenceCCDAValidator extends BaseCCDAValidator implements CCDAVal
 	private static Logger logger = Logger.getLogger(ReferenceCCDAValidator.class);
 	
 	private static final String IG_ISSUE_ID = "a.consol", MU_ISSUE_ID = "a.mu2con";
-	private boolean isValidationObjectiveMu2Type = false;
-	
-	public boolean isValidationObjectiveMu2Type() {
-		return isValidationObjectiveMu2Type;
+	private static final int DIAGNOSTIC_CONVERSION_CHUNK_SIZE = 128;
+	// number of diagnostics of one severity from which they are converted in parallel chunks
+	@Value("${referenceccda.mdht.parallelConversionThreshold:1000}")
+	private int parallelConversionThreshold = 1000;
+	private static final int DEFAULT_POOLED_RESOURCE_SETS = 16;
+	private MDHTResourceSetPool resourceSetPool;
+	private ValidationForkJoinPool validationForkJoinPool;
+
+	/**
+	 * @param pooledResourceSets the number of loaded resource sets kept for each MDHT model
+	 */
+	@Value("${referenceccda.mdht.pooledResourceSets:16}")
+	public synchronized void setPooledResourceSets(int pooledResourceSets) {
+		resourceSetPool = new MDHTResourceSetPool(pooledResourceSets);
+	}
+
+	/**
+	 * @param validationForkJoinPool the pool large diagnostic lists are converted in, which are converted sequentially
+	 *                               without one
+	 */
+	@Autowired(required = false)
+	public void setValidationForkJoinPool(ValidationForkJoinPool validationForkJoinPool) {
+		this.validationForkJoinPool = validationForkJoinPool;
 	}
 
+	private synchronized MDHTResourceSetPool getResourceSetPool() {
+		// validators created directly, without Spring, are not configured
+		if (resourceSetPool == null) {
+			resourceSetPool = new MDHTResourceSetPool(DEFAULT_POOLED_RESOURCE_SETS);
+		}
+		return resourceSetPool;
+	}
+	
+	@Override
 	public ArrayList<RefCCDAValidationResult> validateFile(String validationObjective,
-			String referenceFileName, String ccdaFile) throws SAXException, Exception {
+			String referenceFileName, CCDADocument ccdaFile, ValidationResultFilter resultFilter) throws SAXException, Exception {
+		// reject input which cannot be a C-CDA document before indexing and loading it
+		List<TemplateId> documentTemplateIds = CCDAPreflightCheck.check(ccdaFile);
+		ValidationPlan plan = ValidationPlans.getPlan(validationObjective);
 		final XPathIndexer xpathIndexer = new XPathIndexer();
 		ValidationResult result = new ValidationResult();
 		InputStream in = null;
+		ValidationTrace.startCurrentStage(ValidationTrace.XPATH_INDEXING_STAGE);
 		trackXPathsInXML(xpathIndexer, ccdaFile);
+		MDHTResourceSetPool resourceSetPool = getResourceSetPool();
+		ResourceSet resourceSet = resourceSetPool.acquire(plan.getMdhtModel());
 		try {
-			in = IOUtils.toInputStream(ccdaFile, "UTF-8");
-			validateDocumentByTypeUsingMDHTApi(in, validationObjective, result);
-		} catch (IOException e) {
-			e.printStackTrace();
-		} finally {
-			if (in != null) {
-				try {
-					in.close();
-				} catch (IOException e) {
-					e.printStackTrace();
+			try {
+				in = ccdaFile.openStream();
+				ValidationTrace.startCurrentStage(ValidationTrace.MDHT_LOAD_STAGE);
+				validateDocumentByTypeUsingMDHTApi(resourceSet, in, validationObjective, plan, documentTemplateIds, result);
+			} catch (IOException e) {
+				e.printStackTrace();
+			} finally {
+				if (in != null) {
+					try {
+						in.close();
+					} catch (IOException e) {
+						e.printStackTrace();
+					}
 				}
 			}
+			if(result.getAllDiagnostics().isEmpty()) {
+				logAndThrowException("The MDHT ValidationResult object was not populated for an unknown reason. "
+						+ "Please ensure that the XML document sent is a valid C-CDA R1.0, R1.1, or R2.1 file. "
+						+ "This error may be related to but is not limited to: "
+						+ "An invalid document type templateId/@root, an invalid templateId/@extension, "
+						+ "or invalid combination of the two. Note: C-CDA R2.0 is not supported by the validator.");
+			}
+			logger.info("Processing and returning MDHT validation results");
+			ValidationTrace.startCurrentStage(ValidationTrace.DIAGNOSTIC_CONVERSION_STAGE);
+			return processValidationResults(xpathIndexer, result, resultFilter, plan);
+		} finally {
+			// the diagnostics refer to the loaded document until they are converted
+			resourceSetPool.release(plan.getMdhtModel(), resourceSet);
 		}
-		if(result.getAllDiagnostics().isEmpty()) {
-			logAndThrowException("The MDHT ValidationResult object was not populated for an unknown reason. "
-					+ "Please ensure that the XML document sent is a valid C-CDA R1.0, R1.1, or R2.1 file. "
-					+ "This error may be related to but is not limited to: "
-					+ "An invalid document type templateId/@root, an invalid templateId/@extension, "
-					+ "or invalid combination of the two. Note: C-CDA R2.0 is not supported by the validator.");
-		}
-		logger.info("Processing and returning MDHT validation results");
-		return processValidationResults(xpathIndexer, result);
 	}
 
-	private void validateDocumentByTypeUsingMDHTApi(InputStream in, String validationObjective, 
-			ValidationResult result) throws Exception {
-		if(StringUtils.isEmpty(validationObjective)) {
-			logAndThrowException("The validationObjective given is " + (validationObjective == null ? "null" : "empty"),
-					"The validationObjective given was null or empty. Please try one of the following valid Strings instead: "
-					+ ValidationObjectives.getObjectives() + " " + CCDATypes.getTypes());
-		}
-		
-		String mdhtValidationObjective = mapMdhtValidationObjective(validationObjective);		
-		//implementing a temporary work-around to allow invalid objectives to apply a default for the ETT
-		if(mdhtValidationObjective == null) {
-			validationObjective = ValidationObjectives.Sender.C_CDA_IG_PLUS_VOCAB;
-			mdhtValidationObjective = CCDATypes.NON_SPECIFIC_CCDAR2;
-		}		
+	private void validateDocumentByTypeUsingMDHTApi(ResourceSet resourceSet, InputStream in, String validationObjective, ValidationPlan plan,
+			List<TemplateId> documentTemplateIds, ValidationResult result) throws Exception {
+		String mdhtValidationObjective = plan.getMdhtValidationObjective();
 		logger.info("Mapped mdhtValidationObjective: " + (mdhtValidationObjective != null ? mdhtValidationObjective : "null objective"));
-		
-		if(mdhtValidationObjective != null) {
-			//populate the field for reuse
-			isValidationObjectiveMu2Type = isValidationObjectiveMu2Type(mdhtValidationObjective);
-			if (isValidationObjectiveCCDAType(mdhtValidationObjective)) {
-				Mu2consolPackage.eINSTANCE.unload();
-				ConsolPackage.eINSTANCE.eClass();
-				logger.info("Loading mdhtValidationObjective: " + mdhtValidationObjective
-						+ " mapped from valdationObjective: " + validationObjective);
-				CDAUtil.load(in, result);
-			} else if (isValidationObjectiveMu2Type) {
-				Mu2consolPackage.eINSTANCE.reload();
-				Mu2consolPackage.eINSTANCE.eClass();
-				EClass docType = null;
-				if (mdhtValidationObjective.equalsIgnoreCase(CCDATypes.CLINICAL_OFFICE_VISIT_SUMMARY)) {
-					docType = Mu2consolPackage.eINSTANCE.getClinicalOfficeVisitSummary();
-				} else if (mdhtValidationObjective.equalsIgnoreCase(CCDATypes.TRANSITIONS_OF_CARE_AMBULATORY_SUMMARY)) {
-					docType = Mu2consolPackage.eINSTANCE.getTransitionOfCareAmbulatorySummary();
-				} else if (mdhtValidationObjective.equalsIgnoreCase(CCDATypes.TRANSITIONS_OF_CARE_INPATIENT_SUMMARY)) {
-					docType = Mu2consolPackage.eINSTANCE.getTransitionOfCareInpatientSummary();
-				} else if (mdhtValidationObjective.equalsIgnoreCase(CCDATypes.VDT_AMBULATORY_SUMMARY)) {
-					docType = Mu2consolPackage.eINSTANCE.getVDTAmbulatorySummary();
-				} else if (mdhtValidationObjective.equalsIgnoreCase(CCDATypes.VDT_INPATIENT_SUMMARY)) {
-					docType = Mu2consolPackage.eINSTANCE.getVDTInpatientSummary();
-				}
-				boolean isDocTypeNull = docType == null || docType.getName() == null;
-				logger.info("Loading mdhtValidationObjective: " + mdhtValidationObjective
-						+ " as MU2 docType: " + (!isDocTypeNull ? docType : "null docType")
-						+ " mapped from valdationObjective: " + validationObjective);
-				if(!isDocTypeNull) {
-					CDAUtil.loadAs(in, docType, result);
-				} else {
-					logAndThrowException("docType == null", "The MU2 docType EClass could not be assigned "
-							+ "from mdhtValidationObjective: " + mdhtValidationObjective);
-				}
+		switch (plan.getMdhtModel()) {
+		case CONSOL:
+			Mu2consolPackage.eINSTANCE.unload();
+			ConsolPackage.eINSTANCE.eClass();
+			logger.info("Loading mdhtValidationObjective: " + mdhtValidationObjective
+					+ " mapped from valdationObjective: " + validationObjective);
+			CDAUtil.load(resourceSet, in, result);
+			break;
+		case CONSOL_AUTO_DETECT:
+			Mu2consolPackage.eINSTANCE.unload();
+			ConsolPackage.eINSTANCE.eClass();
+			EClass detectedDocType = DocumentTypeLookup.findDocumentType(documentTemplateIds);
+			logger.info("Loading mdhtValidationObjective: " + mdhtValidationObjective
+					+ " as docType: " + (detectedDocType != null ? detectedDocType.getName() : "generic C-CDA (no known document templateId in "
+					+ documentTemplateIds + ")"));
+			if (detectedDocType != null) {
+				CDAUtil.loadAs(resourceSet, in, detectedDocType, result);
+			} else {
+				CDAUtil.load(resourceSet, in, result);
 			}
-		} else {
-			//Note: This is dead code for now as null values are populated to a default
-			logAndThrowException("The validationObjective given is invalid", 
-					"The validationObjective given was invalid. Please try one of the following valid Strings instead: "
-					+ ValidationObjectives.getObjectives() + " " + CCDATypes.getTypes());
-		}
-	}
-	
-	private static String mapMdhtValidationObjective(String validationObjectivePOSTed) throws Exception {
-		if (isValidationObjectiveACertainType(validationObjectivePOSTed, CCDATypes.NON_SPECIFIC_CCDA_TYPES) || 
-				isValidationObjectiveACertainType(validationObjectivePOSTed, CCDATypes.MU2_TYPES)) {
-			// we already have a *specific* MDHT objective (it was sent directly so no re-mapping required)
-			return validationObjectivePOSTed;
-		} else if (isValidationObjectiveACertainType(validationObjectivePOSTed, ValidationObjectives.ALL_UNIQUE)) {
-			// convert to a *generic* MDHT objective (runs R2.1 or R1.1 MDHT validation using the consol2 model)
-			return CCDATypes.NON_SPECIFIC_CCDAR2;
+			break;
+		case MU2:
+			Mu2consolPackage.eINSTANCE.reload();
+			Mu2consolPackage.eINSTANCE.eClass();
+			EClass docType = plan.getMu2DocumentType().getEClass();
+			boolean isDocTypeNull = docType == null || docType.getName() == null;
+			logger.info("Loading mdhtValidationObjective: " + mdhtValidationObjective
+					+ " as MU2 docType: " + (!isDocTypeNull ? docType : "null docType")
+					+ " mapped from valdationObjective: " + validationObjective);
+			if(!isDocTypeNull) {
+				CDAUtil.loadAs(resourceSet, in, docType, result);
+			} else {
+				logAndThrowException("docType == null", "The MU2 docType EClass could not be assigned "
+						+ "from mdhtValidationObjective: " + mdhtValidationObjective);
+			}
+			break;
+		default:
+			logAndThrowException("The validationObjective " + validationObjective + " does not run MDHT validation");
 		}
-		logger.warn("An invalid validationObjective was POSTed");
-		return null;
 	}
 	
 	private static void logAndThrowException(String dualErrorMessage) throws Exception {
@@ -150,87 +174,141 @@ public class ReferenceCCDAValidator extends BaseCCDAValidator implements CCDAVal
 		throw new Exception(userErrorMessage);
 	}
 	
-	public static boolean isValidationObjectiveACertainType(String validationObjective, Collection<String> types) {
-		for(String type: types) {
-			if(validationObjective.equalsIgnoreCase(type)) {
+	private ArrayList<RefCCDAValidationResult> processValidationResults(final XPathIndexer xpathIndexer,
+			ValidationResult result, ValidationResultFilter resultFilter, ValidationPlan plan) {
+		ArrayList<RefCCDAValidationResult> results = new ArrayList<RefCCDAValidationResult>();
+		// the same constraint messages repeat for each entry, they share one instance within this document only
+		ConcurrentMap<String, String> descriptions = new ConcurrentHashMap<String, String>();
+		boolean muIssuesFlagged = plan.isMuIssuesFlagged();
+		// looked for in all the errors, as those left out by the caps still make the document schema invalid
+		if (hasSchemaError(result.getErrorDiagnostics(), muIssuesFlagged)) {
+			resultFilter.markSchemaError();
+		}
+		addValidationResults(results, ValidationResultType.CCDA_MDHT_CONFORMANCE_ERROR, result.getErrorDiagnostics(), xpathIndexer, resultFilter, muIssuesFlagged, descriptions);
+		addValidationResults(results, ValidationResultType.CCDA_MDHT_CONFORMANCE_WARN, result.getWarningDiagnostics(), xpathIndexer, resultFilter, muIssuesFlagged, descriptions);
+		addValidationResults(results, ValidationResultType.CCDA_MDHT_CONFORMANCE_INFO, result.getInfoDiagnostics(), xpathIndexer, resultFilter, muIssuesFlagged, descriptions);
+		return results;
+	}
+	
+	private static boolean hasSchemaError(List<Diagnostic> errorDiagnostics, boolean muIssuesFlagged) {
+		for (Diagnostic diagnostic : errorDiagnostics) {
+			if (populateMDHTResultDetails(new CDADiagnostic(diagnostic), ValidationResultType.CCDA_MDHT_CONFORMANCE_ERROR,
+					muIssuesFlagged).isSchemaError()) {
 				return true;
 			}
 		}
 		return false;
 	}
 	
-	private static boolean isValidationObjectiveMu2Type(String validationObjective) {
-		return isValidationObjectiveACertainType(validationObjective, CCDATypes.MU2_TYPES);
-	}
-	
-	private static boolean isValidationObjectiveCCDAType(String validationObjective) {
-		return isValidationObjectiveACertainType(validationObjective, CCDATypes.NON_SPECIFIC_CCDA_TYPES);
+	private void addValidationResults(ArrayList<RefCCDAValidationResult> results, ValidationResultType currentValidationResultType,
+			List<Diagnostic> diagnosticsOfCurrentSeverity, final XPathIndexer xpathIndexer, ValidationResultFilter resultFilter,
+			boolean muIssuesFlagged, ConcurrentMap<String, String> descriptions) {
+		// only the accepted diagnostics are wrapped and located, the size of the rest is reported
+		int accepted = resultFilter.accept(currentValidationResultType, diagnosticsOfCurrentSeverity.size());
+		if (accepted >= parallelConversionThreshold && validationForkJoinPool != null) {
+			// the loaded document is only read from here on, so the diagnostics can be converted concurrently
+			Diagnostic[] diagnostics = diagnosticsOfCurrentSeverity.subList(0, accepted).toArray(new Diagnostic[accepted]);
+			RefCCDAValidationResult[] convertedResults = new RefCCDAValidationResult[accepted];
+			validationForkJoinPool.invoke(new ConvertDiagnosticsTask(diagnostics, convertedResults, 0, accepted,
+					xpathIndexer, currentValidationResultType, muIssuesFlagged, descriptions, ValidationTrace.current()));
+			results.addAll(Arrays.asList(convertedResults));
+		} else {
+			for (Diagnostic diagnostic : diagnosticsOfCurrentSeverity.subList(0, accepted)) {
+				results.add(buildValidationResult(diagnostic, xpathIndexer, currentValidationResultType, muIssuesFlagged, descriptions));
+			}
+		}
 	}
 
-	private ArrayList<RefCCDAValidationResult> processValidationResults(final XPathIndexer xpathIndexer,
-			ValidationResult result) {
-		ArrayList<RefCCDAValidationResult> results = new ArrayList<RefCCDAValidationResult>();
-		addValidationResults(results, ValidationResultType.CCDA_MDHT_CONFORMANCE_ERROR, result.getErrorDiagnostics(), xpathIndexer);
-		addValidationResults(results, ValidationResultType.CCDA_MDHT_CONFORMANCE_WARN, result.getWarningDiagnostics(), xpathIndexer);
-		addValidationResults(results, ValidationResultType.CCDA_MDHT_CONFORMANCE_INFO, result.getInfoDiagnostics(), xpathIndexer);		
-		return results;
-	}
-	
-	private void addValidationResults(ArrayList<RefCCDAValidationResult> results, ValidationResultType currentValidationResultType,
-			List<Diagnostic> diagnosticsOfCurrentSeverity, final XPathIndexer xpathIndexer) {
-		for (Diagnostic diagnostic : diagnosticsOfCurrentSeverity) {
-			results.add(buildValidationResult(diagnostic, xpathIndexer, currentValidationResultType));
+	/**
+	 * Converts a range of diagnostics, splitting it in halves down to DIAGNOSTIC_CONVERSION_CHUNK_SIZE. Each result
+	 * is written at the index of its diagnostic, so the order is the same as a sequential conversion.
+	 */
+	private class ConvertDiagnosticsTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final Diagnostic[] diagnostics;
+		private final RefCCDAValidationResult[] convertedResults;
+		private final int from, to;
+		private final XPathIndexer xpathIndexer;
+		private final ValidationResultType resultType;
+		private final boolean muIssuesFlagged;
+		private final ConcurrentMap<String, String> descriptions;
+		private final ValidationTrace trace;
+
+		ConvertDiagnosticsTask(Diagnostic[] diagnostics, RefCCDAValidationResult[] convertedResults, int from, int to,
+				XPathIndexer xpathIndexer, ValidationResultType resultType, boolean muIssuesFlagged,
+				ConcurrentMap<String, String> descriptions, ValidationTrace trace) {
+			this.diagnostics = diagnostics;
+			this.convertedResults = convertedResults;
+			this.from = from;
+			this.to = to;
+			this.xpathIndexer = xpathIndexer;
+			this.resultType = resultType;
+			this.muIssuesFlagged = muIssuesFlagged;
+			this.descriptions = descriptions;
+			this.trace = trace;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from <= DIAGNOSTIC_CONVERSION_CHUNK_SIZE) {
+				long allocatedBytesAtStart = trace != null ? ValidationTrace.currentThreadAllocatedBytes() : -1;
+				for (int i = from; i < to; i++) {
+					convertedResults[i] = buildValidationResult(diagnostics[i], xpathIndexer, resultType, muIssuesFlagged, descriptions);
+				}
+				if (trace != null) {
+					trace.addAllocatedBytesSince(ValidationTrace.DIAGNOSTIC_CONVERSION_STAGE, allocatedBytesAtStart);
+				}
+			} else {
+				int middle = (from + to) >>> 1;
+				invokeAll(new ConvertDiagnosticsTask(diagnostics, convertedResults, from, middle, xpathIndexer, resultType, muIssuesFlagged, descriptions, trace),
+						new ConvertDiagnosticsTask(diagnostics, convertedResults, middle, to, xpathIndexer, resultType, muIssuesFlagged, descriptions, trace));
+			}
 		}
 	}
 
 	private RefCCDAValidationResult buildValidationResult(Diagnostic diagnostic, XPathIndexer xPathIndexer,
-			ValidationResultType resultType) {
+			ValidationResultType resultType, boolean muIssuesFlagged, ConcurrentMap<String, String> descriptions) {
 		CDADiagnostic diag = new CDADiagnostic(diagnostic);
-		String lineNumber = getLineNumberInXMLUsingXpath(xPathIndexer, diagnostic);
-		MDHTResultDetails mdhtResultDetails = populateMDHTResultDetails(diag, resultType);
-		return createNewValidationResult(diag, resultType, lineNumber, mdhtResultDetails);
+		int lineNumber = getLineNumberInXMLUsingXpath(xPathIndexer, diagnostic);
+		MDHTResultDetails mdhtResultDetails = populateMDHTResultDetails(diag, resultType, muIssuesFlagged);
+		return createNewValidationResult(diag, resultType, lineNumber, mdhtResultDetails, descriptions);
 	}
 	
-	private MDHTResultDetails populateMDHTResultDetails(CDADiagnostic diag, ValidationResultType resultType) {
-		MDHTResultDetails mdhtResultDetails = new MDHTResultDetails(false, false, false, false);
+	private static MDHTResultDetails populateMDHTResultDetails(CDADiagnostic diag, ValidationResultType resultType,
+			boolean muIssuesFlagged) {
 		if (diag.getSource() != null) {
 			boolean isIGIssue = diag.getSource().contains(IG_ISSUE_ID);
-			boolean isMUIssue = isValidationObjectiveMu2Type ? diag.getSource().contains(MU_ISSUE_ID) : false;
+			boolean isMUIssue = muIssuesFlagged ? diag.getSource().contains(MU_ISSUE_ID) : false;
 			//IG/MU2 - all severities
 			if(resultType == ValidationResultType.CCDA_MDHT_CONFORMANCE_ERROR || 
 					resultType == ValidationResultType.CCDA_MDHT_CONFORMANCE_WARN || 
 					resultType == ValidationResultType.CCDA_MDHT_CONFORMANCE_INFO) {
 				if (isIGIssue) {
-					mdhtResultDetails.setIGIssue(true);
-					return mdhtResultDetails;
+					return MDHTResultDetails.valueOf(false, false, true, false);
 				} else if (isMUIssue) {
-					mdhtResultDetails.setMUIssue(true);
-					return mdhtResultDetails;
+					return MDHTResultDetails.valueOf(false, false, false, true);
 				} else {
 					//schema - errors only
 					if(resultType == ValidationResultType.CCDA_MDHT_CONFORMANCE_ERROR) {
 						// javax.xml.validation.Validator, org.eclipse.emf.ecore, etc.
-						mdhtResultDetails.setSchemaError(true);
-						if (diag.getPath() != null && diag.getCode() > 0) {
-							// org.eclipse.emf.ecore, etc.
-							mdhtResultDetails.setDataTypeSchemaError(true);
-							return mdhtResultDetails;
-						}
+						// org.eclipse.emf.ecore, etc. when the diagnostic has a path and a code
+						boolean isDataTypeSchemaError = diag.getPath() != null && diag.getCode() > 0;
+						return MDHTResultDetails.valueOf(true, isDataTypeSchemaError, false, false);
 					}					
 				}
 			}
 		}
-		return mdhtResultDetails;
+		return MDHTResultDetails.NONE;
 	}
 
-	private String getLineNumberInXMLUsingXpath(final XPathIndexer xpathIndexer, Diagnostic diagnostic) {
+	private int getLineNumberInXMLUsingXpath(final XPathIndexer xpathIndexer, Diagnostic diagnostic) {
 		String generatedPath = "";
 		if (diagnostic.getData().size() > 0 && diagnostic.getData().get(0) instanceof EObject) {
 			generatedPath = getPath((EObject) diagnostic.getData().get(0));
 		}
 		XPathIndexer.ElementLocationData eld = xpathIndexer.getElementLocationByPath(generatedPath.toUpperCase());
-		String lineNumber = eld != null ? Integer.toString(eld.line) : "Line number not available";
-		return lineNumber;
+		return eld != null ? eld.line : RefCCDAValidationResult.LINE_NUMBER_NOT_AVAILABLE;
 	}
 
 	public String getPath(EObject eObject) {
@@ -252,9 +330,16 @@ public class ReferenceCCDAValidator extends BaseCCDAValidator implements CCDAVal
 	}
 
 	private RefCCDAValidationResult createNewValidationResult(CDADiagnostic cdaDiag, ValidationResultType resultType,
-			String resultLineNumber, MDHTResultDetails mdhtResultDetails) {
+			int resultLineNumber, MDHTResultDetails mdhtResultDetails, ConcurrentMap<String, String> descriptions) {
+		String description = cdaDiag.getMessage();
+		if (description != null) {
+			String sharedDescription = descriptions.putIfAbsent(description, description);
+			if (sharedDescription != null) {
+				description = sharedDescription;
+			}
+		}
 		return new RefCCDAValidationResult.RefCCDAValidationResultBuilder(
-				cdaDiag.getMessage(), cdaDiag.getPath(), null, resultType, resultLineNumber)
+				description, cdaDiag.getPath(), null, resultType, resultLineNumber)
 				.mdhtResultDetails(mdhtResultDetails)
 				.build();
 	}
@@ -0,0 +1,126 @@
+package org.sitenv.referenceccda.validators.schema;
+
+import org.eclipse.emf.ecore.EClass;
+import org.openhealthtools.mdht.uml.cda.mu2consol.Mu2consolPackage;
+
+/**
+ * What is run for one validation objective: the MDHT model and document type the document is loaded as, which of the
+ * vocabulary and content stages follow, and how MDHT results are classified. Plans are compiled once by
+ * {@link ValidationPlans} and are immutable.
+ */
+public final class ValidationPlan {
+	public enum MdhtModel {
+		/** no MDHT validation, the document is only validated against the CDA schema */
+		NONE,
+		/** consol2 model, as a generic C-CDA document */
+		CONSOL,
+		/** consol2 model, as the document type detected from the document level templateId */
+		CONSOL_AUTO_DETECT,
+		/** mu2consol model, as the MU2 document type of the objective */
+		MU2
+	}
+
+	public enum Mu2DocumentType {
+		CLINICAL_OFFICE_VISIT_SUMMARY {
+			@Override
+			public EClass getEClass() {
+				return Mu2consolPackage.eINSTANCE.getClinicalOfficeVisitSummary();
+			}
+		},
+		TRANSITIONS_OF_CARE_AMBULATORY_SUMMARY {
+			@Override
+			public EClass getEClass() {
+				return Mu2consolPackage.eINSTANCE.getTransitionOfCareAmbulatorySummary();
+			}
+		},
+		TRANSITIONS_OF_CARE_INPATIENT_SUMMARY {
+			@Override
+			public EClass getEClass() {
+				return Mu2consolPackage.eINSTANCE.getTransitionOfCareInpatientSummary();
+			}
+		},
+		VDT_AMBULATORY_SUMMARY {
+			@Override
+			public EClass getEClass() {
+				return Mu2consolPackage.eINSTANCE.getVDTAmbulatorySummary();
+			}
+		},
+		VDT_INPATIENT_SUMMARY {
+			@Override
+			public EClass getEClass() {
+				return Mu2consolPackage.eINSTANCE.getVDTInpatientSummary();
+			}
+		};
+
+		/**
+		 * @return the document type, looked up once the mu2consol package has been reloaded for the validation
+		 */
+		public abstract EClass getEClass();
+	}
+
+	private final String validationObjective;
+	private final String mdhtValidationObjective;
+	private final MdhtModel mdhtModel;
+	private final Mu2DocumentType mu2DocumentType;
+	private final boolean vocabularyValidation;
+	private final boolean contentValidation;
+	private final boolean muIssuesFlagged;
+
+	ValidationPlan(String validationObjective, String mdhtValidationObjective, MdhtModel mdhtModel,
+			Mu2DocumentType mu2DocumentType, boolean vocabularyValidation, boolean contentValidation) {
+		this.validationObjective = validationObjective;
+		this.mdhtValidationObjective = mdhtValidationObjective;
+		this.mdhtModel = mdhtModel;
+		this.mu2DocumentType = mu2DocumentType;
+		this.vocabularyValidation = vocabularyValidation;
+		this.contentValidation = contentValidation;
+		this.muIssuesFlagged = mdhtModel == MdhtModel.MU2;
+	}
+
+	public String getValidationObjective() {
+		return validationObjective;
+	}
+
+	/**
+	 * @return the MDHT objective the validation objective is mapped to, null when MDHT validation is not run
+	 */
+	public String getMdhtValidationObjective() {
+		return mdhtValidationObjective;
+	}
+
+	public MdhtModel getMdhtModel() {
+		return mdhtModel;
+	}
+
+	/**
+	 * @return the MU2 document type of an MU2 plan, null otherwise
+	 */
+	public Mu2DocumentType getMu2DocumentType() {
+		return mu2DocumentType;
+	}
+
+	public boolean isSchemaOnly() {
+		return mdhtModel == MdhtModel.NONE;
+	}
+
+	/**
+	 * @return true if vocabulary validation follows MDHT validation when the document has no schema error
+	 */
+	public boolean isVocabularyValidation() {
+		return vocabularyValidation;
+	}
+
+	/**
+	 * @return true if content validation follows vocabulary validation
+	 */
+	public boolean isContentValidation() {
+		return contentValidation;
+	}
+
+	/**
+	 * @return true if MDHT results from the mu2consol constraints are flagged as MU issues
+	 */
+	public boolean isMuIssuesFlagged() {
+		return muIssuesFlagged;
+	}
+}
@@ -0,0 +1,99 @@
+package org.sitenv.referenceccda.validators.schema;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.log4j.Logger;
+import org.sitenv.referenceccda.validators.schema.ValidationPlan.MdhtModel;
+import org.sitenv.referenceccda.validators.schema.ValidationPlan.Mu2DocumentType;
+
+/**
+ * The {@link ValidationPlan} of every validation objective, compiled once from the objectives listed in
+ * {@link ValidationObjectives} and {@link CCDATypes} and looked up case-insensitively. An objective added to those
+ * lists gets a plan without any change to the validators.
+ */
+public final class ValidationPlans {
+	private static Logger logger = Logger.getLogger(ValidationPlans.class);
+
+	private static final Map<String, ValidationPlan> PLANS = compilePlans();
+
+	// temporary work-around to allow invalid objectives to apply a default for the ETT
+	private static final ValidationPlan DEFAULT_PLAN = new ValidationPlan(ValidationObjectives.Sender.C_CDA_IG_PLUS_VOCAB,
+			CCDATypes.NON_SPECIFIC_CCDAR2, MdhtModel.CONSOL, null, true, false);
+
+	private ValidationPlans() {
+	}
+
+	private static Map<String, ValidationPlan> compilePlans() {
+		Map<String, ValidationPlan> plans = new TreeMap<String, ValidationPlan>(String.CASE_INSENSITIVE_ORDER);
+		// we already have a *specific* MDHT objective (it was sent directly so no re-mapping required)
+		for (String objective : CCDATypes.NON_SPECIFIC_CCDA_TYPES) {
+			add(plans, new ValidationPlan(objective, objective, MdhtModel.CONSOL, null,
+					!objective.equals(CCDATypes.NON_SPECIFIC_CCDA), false));
+		}
+		add(plans, new ValidationPlan(CCDATypes.TRANSITIONS_OF_CARE_AMBULATORY_SUMMARY,
+				CCDATypes.TRANSITIONS_OF_CARE_AMBULATORY_SUMMARY, MdhtModel.MU2,
+				Mu2DocumentType.TRANSITIONS_OF_CARE_AMBULATORY_SUMMARY, false, false));
+		add(plans, new ValidationPlan(CCDATypes.CLINICAL_OFFICE_VISIT_SUMMARY, CCDATypes.CLINICAL_OFFICE_VISIT_SUMMARY,
+				MdhtModel.MU2, Mu2DocumentType.CLINICAL_OFFICE_VISIT_SUMMARY, false, false));
+		add(plans, new ValidationPlan(CCDATypes.TRANSITIONS_OF_CARE_INPATIENT_SUMMARY,
+				CCDATypes.TRANSITIONS_OF_CARE_INPATIENT_SUMMARY, MdhtModel.MU2,
+				Mu2DocumentType.TRANSITIONS_OF_CARE_INPATIENT_SUMMARY, false, false));
+		add(plans, new ValidationPlan(CCDATypes.VDT_AMBULATORY_SUMMARY, CCDATypes.VDT_AMBULATORY_SUMMARY, MdhtModel.MU2,
+				Mu2DocumentType.VDT_AMBULATORY_SUMMARY, false, false));
+		add(plans, new ValidationPlan(CCDATypes.VDT_INPATIENT_SUMMARY, CCDATypes.VDT_INPATIENT_SUMMARY, MdhtModel.MU2,
+				Mu2DocumentType.VDT_INPATIENT_SUMMARY, false, false));
+		add(plans, new ValidationPlan(CCDATypes.AUTO_DETECT, CCDATypes.AUTO_DETECT, MdhtModel.CONSOL_AUTO_DETECT, null,
+				true, false));
+		add(plans, new ValidationPlan(CCDATypes.SCHEMA_ONLY, null, MdhtModel.NONE, null, false, false));
+		// convert to a *generic* MDHT objective (runs R2.1 or R1.1 MDHT validation using the consol2 model)
+		for (String objective : ValidationObjectives.ALL_UNIQUE) {
+			add(plans, new ValidationPlan(objective, CCDATypes.NON_SPECIFIC_CCDAR2, MdhtModel.CONSOL, null,
+					!objective.equals(ValidationObjectives.Sender.C_CDA_IG_ONLY),
+					ValidationObjectives.ALL_UNIQUE_CONTENT_ONLY.contains(objective)));
+		}
+		for (String objective : CCDATypes.MU2_TYPES) {
+			if (!plans.containsKey(objective)) {
+				throw new IllegalStateException("The MU2 objective " + objective + " has no MU2 document type");
+			}
+		}
+		return Collections.unmodifiableMap(plans);
+	}
+
+	private static void add(Map<String, ValidationPlan> plans, ValidationPlan plan) {
+		if (plans.put(plan.getValidationObjective(), plan) != null) {
+			throw new IllegalStateException("The validation objective " + plan.getValidationObjective()
+					+ " is defined more than once");
+		}
+	}
+
+	/**
+	 * @return the plan of the given objective, or the plan of C-CDA_IG_Plus_Vocab if the objective is not known
+	 * @throws Exception if the objective is null or empty
+	 */
+	public static ValidationPlan getPlan(String validationObjective) throws Exception {
+		if (StringUtils.isEmpty(validationObjective)) {
+			String internalErrorMessage = "The validationObjective given is " + (validationObjective == null ? "null" : "empty");
+			logger.error(internalErrorMessage);
+			throw new Exception("The validationObjective given was null or empty. Please try one of the following valid Strings instead: "
+					+ ValidationObjectives.getObjectives() + " " + CCDATypes.getTypes());
+		}
+		ValidationPlan plan = PLANS.get(validationObjective);
+		if (plan == null) {
+			logger.warn("An invalid validationObjective was POSTed");
+			return DEFAULT_PLAN;
+		}
+		return plan;
+	}
+
+	/**
+	 * @return the plans of all the known objectives, in case-insensitive order of objective
+	 */
+	public static Collection<ValidationPlan> getPlans() {
+		return new ArrayList<ValidationPlan>(PLANS.values());
+	}
+}
@@ -1,13 +1,19 @@
 package org.sitenv.referenceccda.validators.vocabulary;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
 
-import org.apache.commons.io.IOUtils;
 import org.sitenv.referenceccda.validators.BaseCCDAValidator;
+import org.sitenv.referenceccda.validators.CCDADocument;
 import org.sitenv.referenceccda.validators.CCDAValidator;
 import org.sitenv.referenceccda.validators.RefCCDAValidationResult;
+import org.sitenv.referenceccda.validators.ValidationForkJoinPool;
+import org.sitenv.referenceccda.validators.ValidationResultFilter;
+import org.sitenv.referenceccda.validators.ValidationTrace;
 import org.sitenv.referenceccda.validators.XPathIndexer;
 import org.sitenv.referenceccda.validators.enums.ValidationResultType;
 import org.sitenv.vocabularies.validation.dto.VocabularyValidationResult;
@@ -21,20 +27,40 @@ import org.xml.sax.SAXException;
 public class VocabularyCCDAValidator extends BaseCCDAValidator implements CCDAValidator {
     @Value("${referenceccda.configFile}")
     private String vocabularyXpathExpressionConfiguration;
+    // index line numbers on the shared fork-join pool while the vocabulary service validates the document
+    @Value("${referenceccda.vocabulary.parallel:false}")
+    private boolean parallel;
     private VocabularyValidationService vocabularyValidationService;
+    private ValidationForkJoinPool validationForkJoinPool;
 
     @Autowired
     public VocabularyCCDAValidator(VocabularyValidationService vocabularyValidationService) {
         this.vocabularyValidationService = vocabularyValidationService;
     }
 
-    public ArrayList<RefCCDAValidationResult> validateFile(String validationObjective, String referenceFileName, String ccdaFile) throws SAXException {
+    /**
+     * @param validationForkJoinPool the pool line numbers are indexed in by the parallel mode, which is sequential
+     *                               without one
+     */
+    @Autowired(required = false)
+    public void setValidationForkJoinPool(ValidationForkJoinPool validationForkJoinPool) {
+        this.validationForkJoinPool = validationForkJoinPool;
+    }
+
+    @Override
+    public ArrayList<RefCCDAValidationResult> validateFile(String validationObjective, String referenceFileName, CCDADocument ccdaFile,
+            ValidationResultFilter resultFilter) throws SAXException {
         ArrayList<RefCCDAValidationResult> results = null;
         if (ccdaFile != null) {
             final XPathIndexer xpathIndexer = new XPathIndexer();
-            trackXPathsInXML(xpathIndexer, ccdaFile);
+            Future<Void> indexing = null;
+            if (parallel && validationForkJoinPool != null) {
+                indexing = submitTrackXPathsInXML(xpathIndexer, ccdaFile);
+            } else {
+                trackXPathsInXML(xpathIndexer, ccdaFile);
+            }
             try {
-                results = doValidation(ccdaFile, xpathIndexer);
+                results = doValidation(ccdaFile, xpathIndexer, indexing, resultFilter);
             } catch (IOException e) {
                 e.printStackTrace();
             }
@@ -42,26 +68,65 @@ public class VocabularyCCDAValidator extends BaseCCDAValidator implements CCDAVa
         return results;
     }
 
-    private ArrayList<RefCCDAValidationResult> doValidation(String ccdaFile, XPathIndexer xpathIndexer) throws IOException, SAXException {
-        List<VocabularyValidationResult> validationResults = vocabularyValidationService.validate(IOUtils.toInputStream(ccdaFile, "UTF-8"));
+    private Future<Void> submitTrackXPathsInXML(final XPathIndexer xpathIndexer, final CCDADocument ccdaFile) {
+        final ValidationTrace trace = ValidationTrace.current();
+        return validationForkJoinPool.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws SAXException {
+                long allocatedBytesAtStart = trace != null ? ValidationTrace.currentThreadAllocatedBytes() : -1;
+                try {
+                    trackXPathsInXML(xpathIndexer, ccdaFile);
+                } finally {
+                    if (trace != null) {
+                        trace.addAllocatedBytesSince(ValidationTrace.VOCABULARY_STAGE, allocatedBytesAtStart);
+                    }
+                }
+                return null;
+            }
+        });
+    }
+
+    /**
+     * @param indexing the line number indexing running in parallel, or null if the xpathIndexer is already populated
+     */
+    private ArrayList<RefCCDAValidationResult> doValidation(CCDADocument ccdaFile, XPathIndexer xpathIndexer, Future<Void> indexing,
+            ValidationResultFilter resultFilter) throws IOException, SAXException {
+        List<VocabularyValidationResult> validationResults;
+        try (InputStream in = ccdaFile.openStream()) {
+            validationResults = vocabularyValidationService.validate(in);
+        } catch (IOException | SAXException e) {
+            // report an indexing parse error first, as the sequential mode does
+            if (indexing != null) {
+                ValidationForkJoinPool.join(indexing);
+            }
+            throw e;
+        }
+        if (indexing != null) {
+            ValidationForkJoinPool.join(indexing);
+        }
+        // converted in the order returned by the vocabulary service, as in the sequential mode
         ArrayList<RefCCDAValidationResult> results = new ArrayList<>();
         for (VocabularyValidationResult result : validationResults) {
-            results.add(createValidationResult(result, xpathIndexer));
+            ValidationResultType type = getValidationResultType(result);
+            // results over the caps are still counted, which is cheap as the vocabulary service returns them all
+            if (resultFilter.accept(type)) {
+                results.add(createValidationResult(result, type, xpathIndexer));
+            }
         }
         return results;
     }
 
-    private RefCCDAValidationResult createValidationResult(VocabularyValidationResult result, XPathIndexer xpathIndexer) {
-        ValidationResultType type;
+    private static ValidationResultType getValidationResultType(VocabularyValidationResult result) {
         switch(result.getVocabularyValidationResultLevel()){
-            case SHALL: type = ValidationResultType.CCDA_VOCAB_CONFORMANCE_ERROR;
-                break;
-            case SHOULD: type = ValidationResultType.CCDA_VOCAB_CONFORMANCE_WARN;
-                break;
-            default: type = ValidationResultType.CCDA_VOCAB_CONFORMANCE_INFO;
-                break;
+            case SHALL: return ValidationResultType.CCDA_VOCAB_CONFORMANCE_ERROR;
+            case SHOULD: return ValidationResultType.CCDA_VOCAB_CONFORMANCE_WARN;
+            default: return ValidationResultType.CCDA_VOCAB_CONFORMANCE_INFO;
         }
-        String lineNumber = getLineNumberInXMLUsingXpath(xpathIndexer, result.getNodeValidationResult().getValidatedDocumentXpathExpression());
+    }
+
+    private RefCCDAValidationResult createValidationResult(VocabularyValidationResult result, ValidationResultType type,
+            XPathIndexer xpathIndexer) {
+        int lineNumber = getLineNumberInXMLUsingXpath(xpathIndexer, result.getNodeValidationResult().getValidatedDocumentXpathExpression());
 
         return new RefCCDAValidationResult.RefCCDAValidationResultBuilder(result.getMessage(), 
         		result.getNodeValidationResult().getValidatedDocumentXpathExpression(), 
@@ -73,9 +138,8 @@ public class VocabularyCCDAValidator extends BaseCCDAValidator implements CCDAVa
                 .build();
     }
 
-    private String getLineNumberInXMLUsingXpath(final XPathIndexer xpathIndexer, String xpath) {
+    private int getLineNumberInXMLUsingXpath(final XPathIndexer xpathIndexer, String xpath) {
         XPathIndexer.ElementLocationData eld = xpathIndexer.getElementLocationByPath(xpath.toUpperCase());
-        String lineNumber = eld != null ? Integer.toString(eld.line) : "Line number not available";
-        return lineNumber;
+        return eld != null ? eld.line : RefCCDAValidationResult.LINE_NUMBER_NOT_AVAILABLE;
     }
 }
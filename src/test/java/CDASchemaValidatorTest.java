@@ -0,0 +1,123 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sitenv.referenceccda.dto.ValidationResultsDto;
+import org.sitenv.referenceccda.embedded.EmbeddedCCDAValidator;
+import org.sitenv.referenceccda.embedded.ValidationOptions;
+import org.sitenv.referenceccda.services.ReferenceCCDAValidationService;
+import org.sitenv.referenceccda.validators.CCDADocument;
+import org.sitenv.referenceccda.validators.RefCCDAValidationResult;
+import org.sitenv.referenceccda.validators.ValidationResultFilter;
+import org.sitenv.referenceccda.validators.ValidationTrace;
+import org.sitenv.referenceccda.validators.enums.ValidationResultType;
+import org.sitenv.referenceccda.validators.schema.CCDATypes;
+import org.sitenv.referenceccda.validators.schema.CDASchemaValidator;
+
+/**
+ * Validates against a small schema of the ClinicalDocument element instead of the CDA schema, which is not shipped.
+ */
+public class CDASchemaValidatorTest {
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	private static final String SCHEMA = "<xs:schema xmlns:xs=\"http://www.w3.org/2001/XMLSchema\""
+			+ " targetNamespace=\"urn:hl7-org:v3\" xmlns=\"urn:hl7-org:v3\" elementFormDefault=\"qualified\">"
+			+ "<xs:element name=\"ClinicalDocument\"><xs:complexType><xs:sequence>"
+			+ "<xs:element name=\"templateId\" maxOccurs=\"unbounded\"><xs:complexType>"
+			+ "<xs:attribute name=\"root\" type=\"xs:string\" use=\"required\"/></xs:complexType></xs:element>"
+			+ "<xs:element name=\"title\" type=\"xs:string\"/>"
+			+ "</xs:sequence></xs:complexType></xs:element></xs:schema>";
+
+	private Path schemaFile;
+	private CDASchemaValidator validator;
+
+	@Before
+	public void createValidator() throws IOException {
+		schemaFile = Files.createTempFile("cda", ".xsd");
+		Files.write(schemaFile, SCHEMA.getBytes(UTF_8));
+		validator = new CDASchemaValidator(schemaFile.toString(), 1);
+	}
+
+	@After
+	public void deleteSchema() throws IOException {
+		Files.delete(schemaFile);
+	}
+
+	@Test
+	public void validDocumentHasNoResultsTest() throws Exception {
+		assertTrue(validate("<title>Summary</title>").isEmpty());
+	}
+
+	@Test
+	public void schemaErrorsAreFlaggedAsSuchTest() throws Exception {
+		List<RefCCDAValidationResult> results = validate("<code/>");
+		assertTrue(!results.isEmpty());
+		for (RefCCDAValidationResult result : results) {
+			assertEquals(ValidationResultType.CCDA_MDHT_CONFORMANCE_ERROR, result.getType());
+			assertTrue(result.isSchemaError());
+			assertEquals("1", result.getDocumentLineNumber());
+		}
+	}
+
+	@Test
+	public void pooledValidatorsAndReadersAreReusedTest() throws Exception {
+		for (int i = 0; i < 5; i++) {
+			assertTrue(validate("<title>Summary</title>").isEmpty());
+			assertEquals(1, validate("<code/>").size());
+		}
+	}
+
+	@Test
+	public void serviceEchoesTheFileContentsUnlessToldNotToTest() throws Exception {
+		ReferenceCCDAValidationService validationService = new ReferenceCCDAValidationService(null, null, null, validator);
+		CCDADocument ccdaFile = document("<title>Summary</title>");
+		ValidationResultsDto echoed = validationService.validateCCDA(CCDATypes.SCHEMA_ONLY, "", ccdaFile,
+				new ValidationResultFilter.ValidationResultFilterBuilder().build());
+		assertFalse(echoed.getResultsMetaData().isServiceError());
+		assertEquals(ccdaFile.asString(), echoed.getResultsMetaData().getCcdaFileContents());
+
+		ValidationTrace trace = new ValidationTrace();
+		ValidationResultsDto notEchoed = validationService.validateCCDA(CCDATypes.SCHEMA_ONLY, "", document("<title>Summary</title>"),
+				new ValidationResultFilter.ValidationResultFilterBuilder().build(), trace, false);
+		assertFalse(notEchoed.getResultsMetaData().isServiceError());
+		assertEquals("ccdaFile.xml", notEchoed.getResultsMetaData().getCcdaFileName());
+		assertNull(notEchoed.getResultsMetaData().getCcdaFileContents());
+		assertFalse(trace.getStageAllocatedBytes().containsKey(ValidationTrace.STRING_CONVERSION_STAGE));
+	}
+
+	@Test
+	public void embeddedValidatorEchoesTheFileContentsUnlessToldNotToTest() throws Exception {
+		EmbeddedCCDAValidator embeddedValidator = new EmbeddedCCDAValidator(
+				new ReferenceCCDAValidationService(null, null, null, validator));
+		ValidationOptions options = new ValidationOptions.ValidationOptionsBuilder(CCDATypes.SCHEMA_ONLY).build();
+		CCDADocument ccdaFile = document("<title>Summary</title>");
+		assertEquals(ccdaFile.asString(), embeddedValidator.validate(ccdaFile, options).getResultsMetaData().getCcdaFileContents());
+
+		ValidationOptions withoutFileContents = new ValidationOptions.ValidationOptionsBuilder(options)
+				.echoFileContents(false).build();
+		assertEquals(CCDATypes.SCHEMA_ONLY, withoutFileContents.getValidationObjective());
+		ValidationResultsDto results = embeddedValidator.validate(document("<code/>"), withoutFileContents);
+		assertEquals(1, results.getCcdaValidationResults().size());
+		assertNull(results.getResultsMetaData().getCcdaFileContents());
+	}
+
+	private List<RefCCDAValidationResult> validate(String content) throws Exception {
+		return validator.validateFile(CCDATypes.SCHEMA_ONLY, "", document(content),
+				new ValidationResultFilter.ValidationResultFilterBuilder().build());
+	}
+
+	private static CCDADocument document(String content) {
+		String document = "<ClinicalDocument xmlns=\"urn:hl7-org:v3\"><templateId root=\"2.16.840.1.113883.10.20.22.1.1\"/>"
+				+ content + "</ClinicalDocument>";
+		return CCDADocument.fromBytes("ccdaFile.xml", document.getBytes(UTF_8));
+	}
+}
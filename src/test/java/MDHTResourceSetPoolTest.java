@@ -0,0 +1,82 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.nio.charset.Charset;
+import java.util.Map;
+
+import org.eclipse.emf.common.util.URI;
+import org.eclipse.emf.ecore.EcorePackage;
+import org.eclipse.emf.ecore.resource.Resource;
+import org.eclipse.emf.ecore.resource.ResourceSet;
+import org.eclipse.emf.ecore.xmi.XMLResource;
+import org.eclipse.emf.ecore.xmi.impl.XMIResourceFactoryImpl;
+import org.junit.Before;
+import org.junit.Test;
+import org.sitenv.referenceccda.validators.schema.ValidationPlan.MdhtModel;
+import org.springframework.test.util.ReflectionTestUtils;
+
+/**
+ * Loads a small Ecore model the way CDAUtil loads a document, from a stream into a resource created by the resource
+ * set, so that only the EMF runtime is needed.
+ */
+public class MDHTResourceSetPoolTest {
+	private static final String DOCUMENT = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+			+ "<ecore:EPackage xmi:version=\"2.0\" xmlns:xmi=\"http://www.omg.org/XMI\""
+			+ " xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\" xmlns:ecore=\"http://www.eclipse.org/emf/2002/Ecore\""
+			+ " name=\"sample\"><eClassifiers xsi:type=\"ecore:EClass\" name=\"Sample\"/></ecore:EPackage>";
+
+	private Object resourceSetPool;
+
+	@Before
+	public void createResourceSetPool() throws Exception {
+		EcorePackage.eINSTANCE.eClass();
+		Constructor<?> constructor = Class.forName("org.sitenv.referenceccda.validators.schema.MDHTResourceSetPool")
+				.getDeclaredConstructor(int.class);
+		constructor.setAccessible(true);
+		resourceSetPool = constructor.newInstance(1);
+	}
+
+	@Test
+	public void documentsLoadedFromAStreamUseThePooledLoadOptionsTest() throws IOException {
+		ResourceSet resourceSet = acquire();
+		Map<?, ?> nameToFeatureMap = (Map<?, ?>) resourceSet.getLoadOptions().get(XMLResource.OPTION_USE_XML_NAME_TO_FEATURE_MAP);
+		assertTrue(nameToFeatureMap.isEmpty());
+
+		Resource resource = load(resourceSet);
+		assertEquals(1, resource.getContents().size());
+		assertSame(resourceSet.getLoadOptions().get(XMLResource.OPTION_USE_PARSER_POOL),
+				((XMLResource) resource).getDefaultLoadOptions().get(XMLResource.OPTION_USE_PARSER_POOL));
+		assertFalse("The names resolved while loading the document were not cached", nameToFeatureMap.isEmpty());
+	}
+
+	@Test
+	public void releasedResourceSetIsReusedEmptyWithItsNameCacheTest() throws IOException {
+		ResourceSet resourceSet = acquire();
+		load(resourceSet);
+		Map<?, ?> nameToFeatureMap = (Map<?, ?>) resourceSet.getLoadOptions().get(XMLResource.OPTION_USE_XML_NAME_TO_FEATURE_MAP);
+		int cachedNames = nameToFeatureMap.size();
+		ReflectionTestUtils.invokeMethod(resourceSetPool, "release", MdhtModel.CONSOL, resourceSet);
+
+		assertSame(resourceSet, acquire());
+		assertTrue(resourceSet.getResources().isEmpty());
+		load(resourceSet);
+		assertEquals(cachedNames, nameToFeatureMap.size());
+	}
+
+	private ResourceSet acquire() {
+		ResourceSet resourceSet = ReflectionTestUtils.invokeMethod(resourceSetPool, "acquire", MdhtModel.CONSOL);
+		resourceSet.getResourceFactoryRegistry().getExtensionToFactoryMap().put("ecore", new XMIResourceFactoryImpl());
+		return resourceSet;
+	}
+
+	private static Resource load(ResourceSet resourceSet) throws IOException {
+		Resource resource = resourceSet.createResource(URI.createURI("sample.ecore"));
+		resource.load(new ByteArrayInputStream(DOCUMENT.getBytes(Charset.forName("UTF-8"))), null);
+		return resource;
+	}
+}
@@ -0,0 +1,418 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.io.IOUtils;
+import org.sitenv.contentvalidator.service.ContentValidatorService;
+import org.sitenv.referenceccda.dto.ValidationResultsDto;
+import org.sitenv.referenceccda.services.ReferenceCCDAValidationService;
+import org.sitenv.referenceccda.validators.RefCCDAValidationResult;
+import org.sitenv.referenceccda.validators.content.ReferenceContentValidator;
+import org.sitenv.referenceccda.validators.enums.ValidationResultType;
+import org.sitenv.referenceccda.validators.schema.CCDATypes;
+import org.sitenv.referenceccda.validators.schema.ReferenceCCDAValidator;
+import org.sitenv.referenceccda.validators.vocabulary.VocabularyCCDAValidator;
+import org.sitenv.vocabularies.validation.services.VocabularyValidationService;
+import org.springframework.mock.web.MockMultipartFile;
+
+/**
+ * In-process load test harness for ReferenceCCDAValidationService.
+ * <p>
+ * Drives the service directly from a fixed pool of threads using a weighted mix of validation objectives
+ * over a corpus of documents, then reports throughput, latency percentiles, error rate and the heap high-water mark.
+ * Every (document, objective) pair is first validated once on a single thread to warm up MDHT and to record
+ * a baseline result signature; any concurrent run that returns a different signature is reported as
+ * cross-request interference (e.g. state shared between requests on the singleton validators).
+ * <p>
+ * This is not a unit test and is not picked up by surefire. Run it after test-compile, for example:
+ * <pre>
+ * mvn test-compile org.codehaus.mojo:exec-maven-plugin:1.6.0:java -Dexec.classpathScope=test \
+ *     -Dexec.mainClass=RefCCDALoadTestHarness -Dharness.threads=8 -Dharness.requests=400
+ * </pre>
+ * Supported system properties:
+ * <ul>
+ * <li>harness.threads - number of concurrent client threads (default: available processors)</li>
+ * <li>harness.requests - number of measured validations (default: 200)</li>
+ * <li>harness.corpus - comma separated list of files and/or directories of .xml documents
+ * (default: the valid samples under src/test/resources)</li>
+ * <li>harness.objectives - comma separated objective:weight mix
+ * (default: NonSpecificCCDA:2,TransitionsOfCareAmbulatorySummary:1)</li>
+ * <li>harness.seed - random seed for the request mix (default: 42)</li>
+ * </ul>
+ * Note: the vocabulary and content validators are constructed without their Spring configuration here,
+ * so objectives which run vocabulary or content validation will be reported as service errors.
+ */
+public class RefCCDALoadTestHarness {
+	private static final String DEFAULT_OBJECTIVES = CCDATypes.NON_SPECIFIC_CCDA + ":2,"
+			+ CCDATypes.TRANSITIONS_OF_CARE_AMBULATORY_SUMMARY + ":1";
+	private static final String[] DEFAULT_CORPUS = { "/Sample.xml", "/Sample_CCDA_CCD_b1_Ambulatory_v2.xml" };
+	private static final long HEAP_SAMPLE_INTERVAL_MILLIS = 20;
+
+	private final ReferenceCCDAValidationService service;
+	private final List<CorpusDocument> corpus;
+	private final List<String> objectiveMix;
+	private final int threads;
+	private final int requests;
+	private final long seed;
+
+	private final Map<String, String> baselineSignatures = new ConcurrentHashMap<String, String>();
+	private final Map<String, AtomicInteger> interference = new ConcurrentHashMap<String, AtomicInteger>();
+	private final Map<String, AtomicInteger> errorMessages = new ConcurrentHashMap<String, AtomicInteger>();
+	private final AtomicInteger errors = new AtomicInteger();
+	private final AtomicLong heapHighWaterMark = new AtomicLong();
+
+	public RefCCDALoadTestHarness(ReferenceCCDAValidationService service, List<CorpusDocument> corpus,
+			List<String> objectiveMix, int threads, int requests, long seed) {
+		this.service = service;
+		this.corpus = corpus;
+		this.objectiveMix = objectiveMix;
+		this.threads = threads;
+		this.requests = requests;
+		this.seed = seed;
+	}
+
+	public static void main(String[] args) throws Exception {
+		int threads = Integer.getInteger("harness.threads", Runtime.getRuntime().availableProcessors());
+		int requests = Integer.getInteger("harness.requests", 200);
+		long seed = Long.getLong("harness.seed", 42L);
+		List<CorpusDocument> corpus = loadCorpus(System.getProperty("harness.corpus"));
+		List<String> objectiveMix = parseObjectiveMix(System.getProperty("harness.objectives", DEFAULT_OBJECTIVES));
+
+		ReferenceCCDAValidationService service = new ReferenceCCDAValidationService(
+				new ReferenceCCDAValidator(), new VocabularyCCDAValidator(new VocabularyValidationService()),
+				new ReferenceContentValidator(new ContentValidatorService()));
+
+		new RefCCDALoadTestHarness(service, corpus, objectiveMix, threads, requests, seed).run();
+	}
+
+	public void run() throws InterruptedException {
+		println("Corpus: " + corpus.size() + " document(s), objective mix: " + objectiveMix.size() + " weighted slot(s), "
+				+ "threads: " + threads + ", requests: " + requests);
+		establishBaselines();
+
+		List<Request> plan = buildRequestPlan();
+		long[] latenciesNanos = new long[plan.size()];
+		resetHeapPeaks();
+		ScheduledExecutorService heapSampler = startHeapSampler();
+		ExecutorService clients = Executors.newFixedThreadPool(threads);
+		CountDownLatch startGate = new CountDownLatch(1);
+		List<Future<Long>> futures = new ArrayList<Future<Long>>(plan.size());
+		for (Request request : plan) {
+			futures.add(clients.submit(new TimedValidation(request, startGate)));
+		}
+		long wallStart = System.nanoTime();
+		startGate.countDown();
+		for (int i = 0; i < futures.size(); i++) {
+			latenciesNanos[i] = waitFor(futures.get(i));
+		}
+		long wallNanos = System.nanoTime() - wallStart;
+		clients.shutdown();
+		heapSampler.shutdownNow();
+		sampleHeap();
+
+		report(latenciesNanos, wallNanos);
+	}
+
+	private void establishBaselines() {
+		println("Establishing single-threaded baselines (also warms up MDHT)...");
+		for (CorpusDocument document : corpus) {
+			for (String objective : new LinkedHashSet<String>(objectiveMix)) {
+				ValidationResultsDto results = validate(document, objective);
+				baselineSignatures.put(baselineKey(document, objective), signature(results));
+			}
+		}
+	}
+
+	private List<Request> buildRequestPlan() {
+		Random random = new Random(seed);
+		List<Request> plan = new ArrayList<Request>(requests);
+		for (int i = 0; i < requests; i++) {
+			plan.add(new Request(corpus.get(random.nextInt(corpus.size())),
+					objectiveMix.get(random.nextInt(objectiveMix.size()))));
+		}
+		return plan;
+	}
+
+	private ValidationResultsDto validate(CorpusDocument document, String objective) {
+		MockMultipartFile ccdaFile = new MockMultipartFile("ccdaFile", document.name, "text/xml", document.contents);
+		return service.validateCCDA(objective, "", ccdaFile);
+	}
+
+	private class TimedValidation implements Callable<Long> {
+		private final Request request;
+		private final CountDownLatch startGate;
+
+		TimedValidation(Request request, CountDownLatch startGate) {
+			this.request = request;
+			this.startGate = startGate;
+		}
+
+		@Override
+		public Long call() throws Exception {
+			startGate.await();
+			long start = System.nanoTime();
+			String signature;
+			try {
+				ValidationResultsDto results = validate(request.document, request.objective);
+				if (results.getResultsMetaData().isServiceError()) {
+					recordError(results.getResultsMetaData().getServiceErrorMessage());
+				}
+				signature = signature(results);
+			} catch (RuntimeException e) {
+				recordError(e.toString());
+				signature = "exception: " + e;
+			}
+			long elapsed = System.nanoTime() - start;
+			String key = baselineKey(request.document, request.objective);
+			if (!signature.equals(baselineSignatures.get(key))) {
+				increment(interference, key);
+			}
+			return elapsed;
+		}
+	}
+
+	private void recordError(String message) {
+		errors.incrementAndGet();
+		String key = message == null ? "null" : message.length() > 160 ? message.substring(0, 160) + "..." : message;
+		increment(errorMessages, key);
+	}
+
+	private static void increment(Map<String, AtomicInteger> counts, String key) {
+		AtomicInteger count = counts.get(key);
+		if (count == null) {
+			synchronized (counts) {
+				count = counts.get(key);
+				if (count == null) {
+					count = new AtomicInteger();
+					counts.put(key, count);
+				}
+			}
+		}
+		count.incrementAndGet();
+	}
+
+	/**
+	 * A compact, order independent summary of a response used to detect results which differ from the
+	 * single-threaded baseline for the same document and objective.
+	 */
+	private static String signature(ValidationResultsDto results) {
+		if (results.getResultsMetaData().isServiceError()) {
+			return "serviceError";
+		}
+		Map<ValidationResultType, Integer> typeCounts = new LinkedHashMap<ValidationResultType, Integer>();
+		for (ValidationResultType type : ValidationResultType.values()) {
+			typeCounts.put(type, 0);
+		}
+		int igIssues = 0, muIssues = 0, schemaErrors = 0;
+		for (RefCCDAValidationResult result : results.getCcdaValidationResults()) {
+			typeCounts.put(result.getType(), typeCounts.get(result.getType()) + 1);
+			igIssues += result.isIGIssue() ? 1 : 0;
+			muIssues += result.isMUIssue() ? 1 : 0;
+			schemaErrors += result.isSchemaError() ? 1 : 0;
+		}
+		return typeCounts.values() + " ig=" + igIssues + " mu=" + muIssues + " schema=" + schemaErrors;
+	}
+
+	private static String baselineKey(CorpusDocument document, String objective) {
+		return document.name + " @ " + objective;
+	}
+
+	private static long waitFor(Future<Long> future) throws InterruptedException {
+		try {
+			return future.get();
+		} catch (ExecutionException e) {
+			throw new IllegalStateException("Load test client failed", e.getCause());
+		}
+	}
+
+	private static void resetHeapPeaks() {
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP && pool.isValid()) {
+				pool.resetPeakUsage();
+			}
+		}
+	}
+
+	private ScheduledExecutorService startHeapSampler() {
+		ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor();
+		sampler.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				sampleHeap();
+			}
+		}, 0, HEAP_SAMPLE_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+		return sampler;
+	}
+
+	private void sampleHeap() {
+		MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+		long used = memory.getHeapMemoryUsage().getUsed();
+		long current;
+		while (used > (current = heapHighWaterMark.get())) {
+			if (heapHighWaterMark.compareAndSet(current, used)) {
+				break;
+			}
+		}
+	}
+
+	private static long sumOfHeapPoolPeaks() {
+		long peaks = 0;
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP && pool.isValid()) {
+				peaks += pool.getPeakUsage().getUsed();
+			}
+		}
+		return peaks;
+	}
+
+	private void report(long[] latenciesNanos, long wallNanos) {
+		long[] sorted = Arrays.copyOf(latenciesNanos, latenciesNanos.length);
+		Arrays.sort(sorted);
+		double wallSeconds = wallNanos / 1e9;
+		println("");
+		println("=== Reference C-CDA validation load test ===");
+		println(String.format("Completed:        %d requests in %.2f s", sorted.length, wallSeconds));
+		println(String.format("Throughput:       %.2f validations/s", sorted.length / wallSeconds));
+		println(String.format("Latency p50:      %.1f ms", millis(percentile(sorted, 50))));
+		println(String.format("Latency p95:      %.1f ms", millis(percentile(sorted, 95))));
+		println(String.format("Latency p99:      %.1f ms", millis(percentile(sorted, 99))));
+		println(String.format("Latency max:      %.1f ms", millis(sorted.length == 0 ? 0 : sorted[sorted.length - 1])));
+		println(String.format("Error rate:       %.2f%% (%d)", sorted.length == 0 ? 0 : 100.0 * errors.get() / sorted.length,
+				errors.get()));
+		println(String.format("Heap high-water:  %d MB sampled, %d MB sum of pool peaks",
+				heapHighWaterMark.get() / (1024 * 1024), sumOfHeapPoolPeaks() / (1024 * 1024)));
+		printCounts("Errors", errorMessages);
+		if (interference.isEmpty()) {
+			println("Interference:     none, every response matched its single-threaded baseline");
+		} else {
+			printCounts("Interference (responses differing from the single-threaded baseline)", interference);
+		}
+	}
+
+	private static void printCounts(String title, Map<String, AtomicInteger> counts) {
+		if (!counts.isEmpty()) {
+			println(title + ":");
+			List<String> keys = new ArrayList<String>(counts.keySet());
+			Collections.sort(keys);
+			for (String key : keys) {
+				println("  " + counts.get(key).get() + " x " + key);
+			}
+		}
+	}
+
+	static long percentile(long[] sorted, int percentile) {
+		if (sorted.length == 0) {
+			return 0;
+		}
+		int rank = (int) Math.ceil(percentile / 100.0 * sorted.length);
+		return sorted[Math.max(0, Math.min(sorted.length, rank) - 1)];
+	}
+
+	private static double millis(long nanos) {
+		return nanos / 1e6;
+	}
+
+	private static List<String> parseObjectiveMix(String mix) {
+		List<String> weighted = new ArrayList<String>();
+		for (String entry : mix.split(",")) {
+			String trimmed = entry.trim();
+			if (trimmed.isEmpty()) {
+				continue;
+			}
+			int separator = trimmed.lastIndexOf(':');
+			String objective = separator > 0 ? trimmed.substring(0, separator) : trimmed;
+			int weight = separator > 0 ? Integer.parseInt(trimmed.substring(separator + 1).trim()) : 1;
+			for (int i = 0; i < weight; i++) {
+				weighted.add(objective.trim());
+			}
+		}
+		if (weighted.isEmpty()) {
+			throw new IllegalArgumentException("harness.objectives did not contain any objective: " + mix);
+		}
+		return weighted;
+	}
+
+	private static List<CorpusDocument> loadCorpus(String corpusProperty) throws IOException, URISyntaxException {
+		List<File> files = new ArrayList<File>();
+		if (corpusProperty == null || corpusProperty.trim().isEmpty()) {
+			for (String resource : DEFAULT_CORPUS) {
+				files.add(new File(RefCCDALoadTestHarness.class.getResource(resource).toURI()));
+			}
+		} else {
+			for (String path : corpusProperty.split(",")) {
+				File file = new File(path.trim());
+				if (file.isDirectory()) {
+					File[] children = file.listFiles();
+					if (children != null) {
+						Arrays.sort(children);
+						for (File child : children) {
+							if (child.isFile() && child.getName().toLowerCase().endsWith(".xml")) {
+								files.add(child);
+							}
+						}
+					}
+				} else {
+					files.add(file);
+				}
+			}
+		}
+		List<CorpusDocument> corpus = new ArrayList<CorpusDocument>();
+		for (File file : files) {
+			try (FileInputStream in = new FileInputStream(file)) {
+				corpus.add(new CorpusDocument(file.getName(), IOUtils.toByteArray(in)));
+			}
+		}
+		if (corpus.isEmpty()) {
+			throw new IllegalArgumentException("harness.corpus did not contain any .xml document: " + corpusProperty);
+		}
+		return corpus;
+	}
+
+	private static void println(String message) {
+		System.out.println(message);
+	}
+
+	static class CorpusDocument {
+		final String name;
+		final byte[] contents;
+
+		CorpusDocument(String name, byte[] contents) {
+			this.name = name;
+			this.contents = contents;
+		}
+	}
+
+	private static class Request {
+		final CorpusDocument document;
+		final String objective;
+
+		Request(CorpusDocument document, String objective) {
+			this.document = document;
+			this.objective = objective;
+		}
+	}
+}
@@ -1,3 +1,4 @@
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
@@ -19,8 +20,12 @@ import org.junit.Test;
 import org.sitenv.contentvalidator.service.ContentValidatorService;
 import org.sitenv.referenceccda.dto.ValidationResultsDto;
 import org.sitenv.referenceccda.services.ReferenceCCDAValidationService;
+import org.sitenv.referenceccda.validators.CCDADocument;
 import org.sitenv.referenceccda.validators.RefCCDAValidationResult;
+import org.sitenv.referenceccda.validators.ValidationForkJoinPool;
+import org.sitenv.referenceccda.validators.ValidationResultFilter;
 import org.sitenv.referenceccda.validators.content.ReferenceContentValidator;
+import org.sitenv.referenceccda.validators.enums.ValidationResultSeverity;
 import org.sitenv.referenceccda.validators.enums.ValidationResultType;
 import org.sitenv.referenceccda.validators.schema.CCDATypes;
 import org.sitenv.referenceccda.validators.schema.ReferenceCCDAValidator;
@@ -28,6 +33,7 @@ import org.sitenv.referenceccda.validators.schema.ValidationObjectives;
 import org.sitenv.referenceccda.validators.vocabulary.VocabularyCCDAValidator;
 import org.sitenv.vocabularies.validation.services.VocabularyValidationService;
 import org.springframework.mock.web.MockMultipartFile;
+import org.springframework.test.util.ReflectionTestUtils;
 import org.springframework.web.multipart.MultipartFile;
 import org.xml.sax.SAXException;
 
@@ -259,6 +265,122 @@ public class RefCCDATest {
 		handleServiceErrorTest(results);
 	}
 	
+	@Test
+	public void preflightCheckRejectsNonClinicalDocumentRootServiceErrorTest() {
+		for (int xmlFileIndex : new int[] { INVALID_SNIPPET_ONLY_INDEX, NON_CCDA_XML_HTML_FILE_WITH_XML_EXTENSION_INDEX }) {
+			ValidationResultsDto results = runReferenceCCDAValidationServiceAndReturnResults(
+					CCDATypes.NON_SPECIFIC_CCDAR2, xmlFileIndex);
+			final String msg = handleServiceErrorTest(results);
+			final String match = "<ClinicalDocument> root element";
+			assertTrue("The service error returned did not contain: " + match, msg.contains(match));
+		}
+	}
+
+	@Test
+	public void schemaOnlyWithoutConfiguredSchemaServiceErrorTest() {
+		ValidationResultsDto results = runReferenceCCDAValidationServiceAndReturnResults(
+				CCDATypes.SCHEMA_ONLY, HAS_SCHEMA_ERROR_INDEX);
+		final String msg = handleServiceErrorTest(results);
+		final String match = "referenceccda.schemaFile";
+		assertTrue("The service error returned did not contain: " + match, msg.contains(match));
+	}
+
+	@Test
+	public void minSeverityErrorSuppressesAndCountsWarningsAndInfoTest() throws Exception {
+		String ccdaFileAsString = convertCCDAFileToString(CCDA_FILES[HAS_SCHEMA_ERROR_INDEX]);
+		List<RefCCDAValidationResult> allResults = validateDocumentAndReturnResults(ccdaFileAsString);
+		ValidationResultFilter errorsOnly = new ValidationResultFilter.ValidationResultFilterBuilder()
+				.minSeverity(ValidationResultSeverity.ERROR).build();
+		List<RefCCDAValidationResult> errorResults = new ReferenceCCDAValidator().validateFile(
+				CCDATypes.NON_SPECIFIC_CCDAR2, "Test", CCDADocument.fromString(null, ccdaFileAsString), errorsOnly);
+		int warnings = 0, errors = 0;
+		for (RefCCDAValidationResult result : allResults) {
+			if (result.getType() == ValidationResultType.CCDA_MDHT_CONFORMANCE_WARN) {
+				warnings++;
+			} else if (result.getType() == ValidationResultType.CCDA_MDHT_CONFORMANCE_ERROR) {
+				errors++;
+			}
+		}
+		assertEquals("All errors must still be returned", errors, errorResults.size());
+		for (RefCCDAValidationResult result : errorResults) {
+			assertEquals(ValidationResultType.CCDA_MDHT_CONFORMANCE_ERROR, result.getType());
+		}
+		Integer suppressedWarnings = errorsOnly.getSuppressedCounts().get(ValidationResultType.CCDA_MDHT_CONFORMANCE_WARN);
+		assertEquals("Suppressed warnings must be counted", warnings, suppressedWarnings != null ? suppressedWarnings.intValue() : 0);
+	}
+
+	@Test
+	public void maxResultsTruncatesAndCountsRemainingResultsTest() throws Exception {
+		String ccdaFileAsString = convertCCDAFileToString(CCDA_FILES[HAS_SCHEMA_ERROR_INDEX]);
+		int total = validateDocumentAndReturnResults(ccdaFileAsString).size();
+		ValidationResultFilter maxOneResult = new ValidationResultFilter.ValidationResultFilterBuilder()
+				.maxResults(1).build();
+		List<RefCCDAValidationResult> results = new ReferenceCCDAValidator().validateFile(
+				CCDATypes.NON_SPECIFIC_CCDAR2, "Test", CCDADocument.fromString(null, ccdaFileAsString), maxOneResult);
+		assertEquals(1, results.size());
+		assertTrue(maxOneResult.isFull() && maxOneResult.isTruncated());
+		int truncated = 0;
+		for (Integer count : maxOneResult.getTruncatedCounts().values()) {
+			truncated += count;
+		}
+		assertEquals("All remaining MDHT results must be counted as truncated", total - 1, truncated);
+	}
+
+	@Test
+	public void schemaErrorLeftOutByMaxResultsPerTypeStillSkipsVocabularyValidationTest() throws Exception {
+		String ccdaFileAsString = convertCCDAFileToString(CCDA_FILES[HAS_SCHEMA_ERROR_INDEX]);
+		ValidationResultFilter maxOneResultPerType = new ValidationResultFilter.ValidationResultFilterBuilder()
+				.maxResultsPerType(1).build();
+		List<RefCCDAValidationResult> mdhtResults = new ReferenceCCDAValidator().validateFile(
+				CCDATypes.NON_SPECIFIC_CCDAR2, "Test", CCDADocument.fromString(null, ccdaFileAsString), maxOneResultPerType);
+		assertTrue("At most one error, warning and info are returned", mdhtResults.size() <= 3);
+		assertTrue("The document has more than one error", maxOneResultPerType.isTruncated());
+		assertTrue("The schema error must be recorded even if its result was left out", maxOneResultPerType.hasSchemaError());
+
+		ValidationResultsDto results = runReferenceCCDAValidationServiceAndReturnResults(CCDATypes.NON_SPECIFIC_CCDAR2,
+				HAS_SCHEMA_ERROR_INDEX, new ValidationResultFilter.ValidationResultFilterBuilder().maxResultsPerType(1).build());
+		handleServiceErrorTest(results, false);
+		for (RefCCDAValidationResult result : results.getCcdaValidationResults()) {
+			assertTrue("Vocabulary validation must not run on a schema invalid document: " + result.getType(),
+					result.getType() == ValidationResultType.CCDA_MDHT_CONFORMANCE_ERROR
+					|| result.getType() == ValidationResultType.CCDA_MDHT_CONFORMANCE_WARN
+					|| result.getType() == ValidationResultType.CCDA_MDHT_CONFORMANCE_INFO);
+		}
+	}
+
+	@Test
+	public void parallelDiagnosticConversionGivesTheSequentialResultsTest() throws Exception {
+		ValidationForkJoinPool validationForkJoinPool = new ValidationForkJoinPool(4);
+		try {
+			for (int ccdaFileIndex : new int[] { HAS_SCHEMA_ERROR_INDEX, HAS_4_POSSIBLE_CONSOL_AND_1_POSSIBLE_MU2_ERROR }) {
+				String ccdaFileAsString = convertCCDAFileToString(CCDA_FILES[ccdaFileIndex]);
+				ReferenceCCDAValidator sequentialValidator = new ReferenceCCDAValidator();
+				// any number of diagnostics is converted in parallel
+				ReferenceCCDAValidator parallelValidator = new ReferenceCCDAValidator();
+				parallelValidator.setValidationForkJoinPool(validationForkJoinPool);
+				ReflectionTestUtils.setField(parallelValidator, "parallelConversionThreshold", 1);
+				List<String> sequentialResults = describeResults(sequentialValidator.validateFile(CCDATypes.NON_SPECIFIC_CCDAR2,
+						"Test", CCDADocument.fromString(null, ccdaFileAsString), ValidationResultFilter.acceptAll()));
+				List<String> parallelResults = describeResults(parallelValidator.validateFile(CCDATypes.NON_SPECIFIC_CCDAR2,
+						"Test", CCDADocument.fromString(null, ccdaFileAsString), ValidationResultFilter.acceptAll()));
+				assertFalse(sequentialResults.isEmpty());
+				assertEquals("The results must be the same, in the same order", sequentialResults, parallelResults);
+			}
+		} finally {
+			validationForkJoinPool.shutdown();
+		}
+	}
+
+	private static List<String> describeResults(List<RefCCDAValidationResult> results) {
+		List<String> descriptions = new ArrayList<String>();
+		for (RefCCDAValidationResult result : results) {
+			descriptions.add(result.getType() + " " + result.getDocumentLineNumber() + " " + result.getxPath() + " "
+					+ result.getDescription() + " " + result.isSchemaError() + " " + result.isDataTypeSchemaError() + " "
+					+ result.isIGIssue() + " " + result.isMUIssue());
+		}
+		return descriptions;
+	}
+
 	private String handleServiceErrorTest(ValidationResultsDto results) {
 		return handleServiceErrorTest(results, true);
 	}
@@ -400,6 +522,37 @@ public class RefCCDATest {
 		}
 	}
 	
+	@Test
+	public void documentEncodingIsDetectedFromXmlDeclarationAndByteOrderMarkTest() throws IOException {
+		final String text = "<?xml version=\"1.0\" encoding=\"ISO-8859-1\"?><ClinicalDocument>Gr\u00fcn</ClinicalDocument>";
+		CCDADocument latin1 = CCDADocument.fromBytes("latin1", text.getBytes("ISO-8859-1"));
+		assertEquals("ISO-8859-1", latin1.getCharset().name());
+		assertEquals("A non UTF-8 document must be decoded with its declared encoding", text, latin1.asString());
+
+		final String utf8Text = "<?xml version=\"1.0\"?><ClinicalDocument>Gr\u00fcn</ClinicalDocument>";
+		byte[] utf8Bytes = utf8Text.getBytes("UTF-8");
+		byte[] utf8BytesWithBom = new byte[utf8Bytes.length + 3];
+		utf8BytesWithBom[0] = (byte) 0xEF;
+		utf8BytesWithBom[1] = (byte) 0xBB;
+		utf8BytesWithBom[2] = (byte) 0xBF;
+		System.arraycopy(utf8Bytes, 0, utf8BytesWithBom, 3, utf8Bytes.length);
+		CCDADocument utf8WithBom = CCDADocument.fromBytes("utf8WithBom", utf8BytesWithBom);
+		assertEquals("UTF-8", utf8WithBom.getCharset().name());
+		assertEquals("The byte order mark must not be part of the decoded document", utf8Text, utf8WithBom.asString());
+	}
+
+	@Test
+	public void autoDetectedDocumentTypeValidationObjectiveSentTest() {
+		List<RefCCDAValidationResult> results = getMDHTErrorsFromResults(validateDocumentAndReturnResults(
+				convertCCDAFileToString(CCDA_FILES[HAS_4_POSSIBLE_CONSOL_AND_1_POSSIBLE_MU2_ERROR]), CCDATypes.AUTO_DETECT));
+		printResults(results, false, false, false);
+		assertTrue(results != null && !results.isEmpty());
+		assertTrue("ConsolPackage results SHOULD have been returned for a CCD loaded by its templateId",
+				mdhtErrorsHaveProvidedPackageResult(results, CCDATypes.CCDAR21_OR_CCDAR11));
+		assertFalse("Mu2consolPackage results should NOT have been returned for an auto detected document type",
+				mdhtErrorsHaveProvidedPackageResult(results, CCDATypes.CCDAR11_MU2));
+	}
+
 	@Ignore
 	@Test
 	public void basicNoExceptionServiceTest() {
@@ -463,6 +616,12 @@ public class RefCCDATest {
 	
 	private static ValidationResultsDto runReferenceCCDAValidationServiceAndReturnResults(
 			String validationObjective, final int XML_FILE_INDEX) {
+		return runReferenceCCDAValidationServiceAndReturnResults(validationObjective, XML_FILE_INDEX,
+				ValidationResultFilter.acceptAll());
+	}
+
+	private static ValidationResultsDto runReferenceCCDAValidationServiceAndReturnResults(
+			String validationObjective, final int XML_FILE_INDEX, ValidationResultFilter resultFilter) {
 //		MultipartFile mockSample = new MockMultipartFile("ccdaFileActualName", "ccdaFileOriginalName",
 //		"text/xml", convertCCDAFileToString(CCDA_FILES[XML_FILE_INDEX]).getBytes());
 		File file = new File(CCDA_FILES[XML_FILE_INDEX]);
@@ -484,7 +643,7 @@ public class RefCCDATest {
 					+ (referenceCcdaValidationService == null ? "null" : "not null")
 					+ ("mockSample is " + mockSample == null ? "null" : "not null"));
 		}
-		return referenceCcdaValidationService.validateCCDA(validationObjective, "", mockSample);
+		return referenceCcdaValidationService.validateCCDA(validationObjective, "", mockSample, resultFilter);
 	}
 
 	private static ArrayList<RefCCDAValidationResult> validateDocumentAndReturnResults(String ccdaFileAsString) {
@@ -0,0 +1,132 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+import org.sitenv.referenceccda.configuration.MvcConfiguration;
+import org.sitenv.referenceccda.controllers.ReferenceCCDAValidationControllerAdvice;
+import org.sitenv.referenceccda.dto.ValidationResultsDto;
+import org.sitenv.referenceccda.validators.CCDADocument;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.web.multipart.MaxUploadSizeExceededException;
+import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.multipart.MultipartHttpServletRequest;
+import org.springframework.web.multipart.commons.CommonsMultipartFile;
+import org.springframework.web.multipart.commons.CommonsMultipartResolver;
+
+public class RefCCDAUploadTest {
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	private static final String BOUNDARY = "----referenceccdaboundary";
+	private static final String CCDA_PREFIX = "<?xml version=\"1.0\" encoding=\"UTF-8\"?><ClinicalDocument xmlns=\"urn:hl7-org:v3\"><!--";
+	private static final String CCDA_SUFFIX = "--></ClinicalDocument>";
+
+	@Test
+	public void uploadSizeIsUnlimitedByDefaultTest() throws Exception {
+		// larger than the 25 MB limit which used to be applied by default
+		byte[] ccdaFile = buildCCDAFile(30 * 1024 * 1024);
+		MultipartHttpServletRequest request = createMultipartResolver(null).resolveMultipart(
+				buildMultipartRequest(ccdaFile));
+		assertEquals(ccdaFile.length, request.getFile("ccdaFile").getSize());
+	}
+
+	@Test
+	public void uploadAboveMaxSizeIsRejectedWith413Test() throws Exception {
+		CommonsMultipartResolver multipartResolver = createMultipartResolver(Long.valueOf(1024));
+		try {
+			multipartResolver.resolveMultipart(buildMultipartRequest(buildCCDAFile(4096)));
+			fail("The upload above the maximum size was accepted");
+		} catch (MaxUploadSizeExceededException e) {
+			ResponseEntity<ValidationResultsDto> response = new ReferenceCCDAValidationControllerAdvice()
+					.handleMaxUploadSizeExceeded(e);
+			assertEquals(HttpStatus.PAYLOAD_TOO_LARGE, response.getStatusCode());
+			assertTrue(response.getBody().getResultsMetaData().isServiceError());
+			assertTrue(response.getBody().getResultsMetaData().getServiceErrorMessage().contains("1024 bytes"));
+			assertTrue(response.getBody().getCcdaValidationResults().isEmpty());
+		}
+	}
+
+	@Test
+	public void uploadAboveMaxInMemorySizeIsStreamedFromDiskTest() throws Exception {
+		byte[] ccdaFile = buildCCDAFile(64 * 1024);
+		MultipartFile upload = createMultipartResolver(null).resolveMultipart(buildMultipartRequest(ccdaFile))
+				.getFile("ccdaFile");
+		assertFalse("The upload above the in memory threshold was not spilled to disk",
+				((CommonsMultipartFile) upload).getFileItem().isInMemory());
+
+		CCDADocument document = CCDADocument.fromMultipartFile(upload);
+		assertEquals(ccdaFile.length, document.getSize());
+		// each validator opens its own stream over the upload
+		try (InputStream first = document.openStream(); InputStream second = document.openStream()) {
+			assertTrue(Arrays.equals(ccdaFile, IOUtils.toByteArray(first)));
+			assertTrue(Arrays.equals(ccdaFile, IOUtils.toByteArray(second)));
+		}
+		assertEquals(new String(ccdaFile, UTF_8), document.asString());
+	}
+
+	@Test
+	public void byteOrderMarkIsDetectedAndSkippedTest() throws IOException {
+		String ccdaFile = "<?xml version=\"1.0\"?><ClinicalDocument xmlns=\"urn:hl7-org:v3\"/>";
+		byte[] withByteOrderMark = concat(new byte[] { (byte) 0xFF, (byte) 0xFE }, ccdaFile.getBytes("UTF-16LE"));
+		CCDADocument document = CCDADocument.fromBytes("ccdaFile", withByteOrderMark);
+		assertEquals(Charset.forName("UTF-16LE"), document.getCharset());
+		assertEquals(ccdaFile, document.asString());
+	}
+
+	@Test
+	public void declaredEncodingIsDetectedTest() throws IOException {
+		String ccdaFile = "<?xml version=\"1.0\" encoding=\"ISO-8859-1\"?><ClinicalDocument xmlns=\"urn:hl7-org:v3\">"
+				+ "<title>R\u00e9sum\u00e9</title></ClinicalDocument>";
+		CCDADocument document = CCDADocument.fromBytes("ccdaFile", ccdaFile.getBytes("ISO-8859-1"));
+		assertEquals(Charset.forName("ISO-8859-1"), document.getCharset());
+		assertEquals(ccdaFile, document.asString());
+	}
+
+	private static CommonsMultipartResolver createMultipartResolver(Long maxUploadSizeBytes) throws IOException {
+		MvcConfiguration configuration = new MvcConfiguration();
+		ReflectionTestUtils.setField(configuration, "maxUploadSizeBytes",
+				maxUploadSizeBytes != null ? maxUploadSizeBytes.longValue() : -1L);
+		ReflectionTestUtils.setField(configuration, "maxInMemorySizeBytes", 1024);
+		ReflectionTestUtils.setField(configuration, "uploadTempDir", "");
+		return (CommonsMultipartResolver) configuration.multipartResolver();
+	}
+
+	private static MockHttpServletRequest buildMultipartRequest(byte[] ccdaFile) throws IOException {
+		ByteArrayOutputStream body = new ByteArrayOutputStream(ccdaFile.length + 512);
+		body.write(("--" + BOUNDARY + "\r\n"
+				+ "Content-Disposition: form-data; name=\"ccdaFile\"; filename=\"ccdaFile.xml\"\r\n"
+				+ "Content-Type: text/xml\r\n\r\n").getBytes(UTF_8));
+		body.write(ccdaFile);
+		body.write(("\r\n--" + BOUNDARY + "--\r\n").getBytes(UTF_8));
+		MockHttpServletRequest request = new MockHttpServletRequest("POST", "/");
+		request.setContentType("multipart/form-data; boundary=" + BOUNDARY);
+		request.setContent(body.toByteArray());
+		return request;
+	}
+
+	private static byte[] buildCCDAFile(int size) {
+		byte[] prefix = CCDA_PREFIX.getBytes(UTF_8);
+		byte[] suffix = CCDA_SUFFIX.getBytes(UTF_8);
+		byte[] ccdaFile = new byte[size];
+		Arrays.fill(ccdaFile, (byte) 'x');
+		System.arraycopy(prefix, 0, ccdaFile, 0, prefix.length);
+		System.arraycopy(suffix, 0, ccdaFile, size - suffix.length, suffix.length);
+		return ccdaFile;
+	}
+
+	private static byte[] concat(byte[] first, byte[] second) {
+		byte[] concatenated = Arrays.copyOf(first, first.length + second.length);
+		System.arraycopy(second, 0, concatenated, first.length, second.length);
+		return concatenated;
+	}
+}
@@ -0,0 +1,105 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+import org.sitenv.referenceccda.dto.ValidationResultsMetaData;
+import org.sitenv.referenceccda.validators.RefCCDAValidationResult;
+import org.sitenv.referenceccda.validators.RefCCDAValidationResult.RefCCDAValidationResultBuilder;
+import org.sitenv.referenceccda.validators.enums.ValidationResultType;
+import org.sitenv.referenceccda.validators.schema.MDHTResultDetails;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Compares the JSON of the compact results and counts with the JSON the original classes produced for the same
+ * results, kept in the Baseline_*.json resources.
+ */
+public class RefCCDAValidationResultSerializationTest {
+	private static final ObjectMapper MAPPER = new ObjectMapper();
+
+	@Test
+	public void validationResultsMatchBaselineJsonTest() throws IOException {
+		assertEquals(readBaseline("Baseline_validationResults.json"), MAPPER.writeValueAsString(buildResults()));
+	}
+
+	@Test
+	public void resultMetaDataMatchesBaselineJsonTest() throws IOException {
+		ValidationResultsMetaData resultsMetaData = new ValidationResultsMetaData();
+		for (RefCCDAValidationResult result : buildResults()) {
+			resultsMetaData.addCount(result.getType());
+		}
+		assertEquals(readBaseline("Baseline_resultMetaData.json"), MAPPER.writeValueAsString(resultsMetaData.getResultMetaData()));
+	}
+
+	@Test
+	public void validationResultsMetaDataWithoutOptionsMatchesBaselineJsonTest() throws IOException {
+		assertEquals(readBaseline("Baseline_validationResultsMetaData.json"), MAPPER.writeValueAsString(buildResultsMetaData()));
+	}
+
+	@Test
+	public void validationResultsMetaDataListsTheOptionsWhenSetTest() throws IOException {
+		ValidationResultsMetaData resultsMetaData = buildResultsMetaData();
+		resultsMetaData.setMinSeverity("ERROR");
+		resultsMetaData.addSuppressedCount(ValidationResultType.CCDA_VOCAB_CONFORMANCE_WARN, 1);
+		resultsMetaData.setMaxResultsPerType(1);
+		resultsMetaData.setTruncated(true);
+		resultsMetaData.addTruncatedCount(ValidationResultType.CCDA_MDHT_CONFORMANCE_ERROR, 1);
+		JsonNode json = MAPPER.valueToTree(resultsMetaData);
+		assertEquals("ERROR", json.get("minSeverity").asText());
+		assertEquals(1, json.get("suppressedResultMetaData").get(0).get("count").asInt());
+		assertEquals(1, json.get("maxResultsPerType").asInt());
+		assertTrue(json.get("truncated").asBoolean());
+		assertEquals(1, json.get("truncatedResultMetaData").size());
+		assertTrue(!json.has("maxResults") && !json.has("reusedPreviousResults"));
+	}
+
+	@Test
+	public void mdhtResultDetailsAreSharedPerCombinationOfFlagsTest() {
+		assertSame(MDHTResultDetails.valueOf(true, false, true, false), MDHTResultDetails.valueOf(true, false, true, false));
+		assertSame(MDHTResultDetails.NONE, MDHTResultDetails.valueOf(false, false, false, false));
+	}
+
+	private static List<RefCCDAValidationResult> buildResults() {
+		List<RefCCDAValidationResult> results = new ArrayList<RefCCDAValidationResult>();
+		results.add(new RefCCDAValidationResultBuilder("Consolidated Problem Observation SHALL contain exactly one [1..1] code",
+				"/ClinicalDocument/component/structuredBody/component[3]/section/entry[1]/act/entryRelationship[1]/observation",
+				null, ValidationResultType.CCDA_MDHT_CONFORMANCE_ERROR, 42)
+				.mdhtResultDetails(MDHTResultDetails.valueOf(false, false, true, false)).build());
+		results.add(new RefCCDAValidationResultBuilder("Feature 'foo' not found.", "", null,
+				ValidationResultType.CCDA_MDHT_CONFORMANCE_ERROR, RefCCDAValidationResult.LINE_NUMBER_NOT_AVAILABLE)
+				.mdhtResultDetails(MDHTResultDetails.valueOf(true, false, false, false)).build());
+		results.add(new RefCCDAValidationResultBuilder("The code system name does not match the code system",
+				"/ClinicalDocument/code", "/v3:ClinicalDocument/v3:code", ValidationResultType.CCDA_VOCAB_CONFORMANCE_WARN, 7)
+				.actualCode("34133-9").actualCodeSystem("2.16.840.1.113883.6.1").actualCodeSystemName("SNOMED")
+				.actualDisplayName("Summarization of Episode Note").build());
+		return results;
+	}
+
+	private static ValidationResultsMetaData buildResultsMetaData() {
+		ValidationResultsMetaData resultsMetaData = new ValidationResultsMetaData();
+		resultsMetaData.setCcdaDocumentType("C-CDA_IG_Only");
+		resultsMetaData.setCcdaFileName("ccdaFile.xml");
+		resultsMetaData.setCcdaFileContents("<ClinicalDocument xmlns=\"urn:hl7-org:v3\"/>");
+		for (RefCCDAValidationResult result : buildResults()) {
+			resultsMetaData.addCount(result.getType());
+		}
+		return resultsMetaData;
+	}
+
+	private static String readBaseline(String resource) throws IOException {
+		InputStream in = RefCCDAValidationResultSerializationTest.class.getResourceAsStream("/" + resource);
+		try {
+			return IOUtils.toString(in, "UTF-8").trim();
+		} finally {
+			in.close();
+		}
+	}
+}
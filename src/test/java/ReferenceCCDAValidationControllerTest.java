@@ -0,0 +1,312 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.fileUpload;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sitenv.referenceccda.configuration.AllocationAccountingInterceptor;
+import org.sitenv.referenceccda.controllers.ReferenceCCDAValidationController;
+import org.sitenv.referenceccda.dto.StoredValidationResultsDto;
+import org.sitenv.referenceccda.dto.ValidationResultsDto;
+import org.sitenv.referenceccda.dto.ValidationResultsMetaData;
+import org.sitenv.referenceccda.services.ReferenceCCDAValidationService;
+import org.sitenv.referenceccda.services.SlowValidationRecorder;
+import org.sitenv.referenceccda.services.ValidationAdmissionController;
+import org.sitenv.referenceccda.services.ValidationAllocationStatistics;
+import org.sitenv.referenceccda.services.ValidationMemoryBudget;
+import org.sitenv.referenceccda.services.ValidationResultStore;
+import org.sitenv.referenceccda.validators.CCDADocument;
+import org.sitenv.referenceccda.validators.RefCCDAValidationResult;
+import org.sitenv.referenceccda.validators.ValidationResultFilter;
+import org.sitenv.referenceccda.validators.ValidationTrace;
+import org.sitenv.referenceccda.validators.schema.CCDATypes;
+import org.sitenv.referenceccda.validators.schema.ValidationObjectives;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.mock.web.MockMultipartFile;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+public class ReferenceCCDAValidationControllerTest {
+	private static final ObjectMapper MAPPER = new ObjectMapper();
+	private static final String ALLOCATED_BYTES_HEADER = "X-Validation-Allocated-Bytes";
+	private static final Pattern ALLOCATED_BYTES = Pattern.compile("schema=(\\d+), mdht=4096, total=(\\d+)");
+	private static final String OBJECTIVE = ValidationObjectives.Sender.C_CDA_IG_ONLY;
+
+	private Path storeDirectory;
+	private ValidationResultStore validationResultStore;
+	private ValidationAdmissionController validationAdmissionController;
+	private SlowValidationRecorder slowValidationRecorder;
+	private ValidationAllocationStatistics validationAllocationStatistics;
+	private ReferenceCCDAValidationController controller;
+	private MockMvc mockMvc;
+
+	@Before
+	public void setUp() throws IOException {
+		storeDirectory = Files.createTempDirectory("results");
+		validationResultStore = new ValidationResultStore();
+		ReflectionTestUtils.setField(validationResultStore, "storeDirectory", storeDirectory.toString());
+		validationResultStore.open();
+		slowValidationRecorder = new SlowValidationRecorder();
+		validationAllocationStatistics = new ValidationAllocationStatistics();
+		controller = new ReferenceCCDAValidationController();
+		ReflectionTestUtils.setField(controller, "referenceCcdaValidationService", new AllocatingValidationService());
+		validationAdmissionController = new ValidationAdmissionController(2, 2, 1000, 20000);
+		ReflectionTestUtils.setField(controller, "validationAdmissionController", validationAdmissionController);
+		ReflectionTestUtils.setField(controller, "validationMemoryBudget", new ValidationMemoryBudget(0, 40, 1000));
+		ReflectionTestUtils.setField(controller, "validationResultStore", validationResultStore);
+		ReflectionTestUtils.setField(controller, "slowValidationRecorder", slowValidationRecorder);
+		ReflectionTestUtils.setField(controller, "validationAllocationStatistics", validationAllocationStatistics);
+		mockMvc = MockMvcBuilders.standaloneSetup(controller)
+				.addInterceptors(new AllocationAccountingInterceptor(validationAllocationStatistics)).build();
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		validationResultStore.close();
+		FileUtils.deleteDirectory(storeDirectory.toFile());
+	}
+
+	@Test
+	public void storedResultsAreReturnedByIdTest() throws Exception {
+		ValidationResultsMetaData resultsMetaData = new ValidationResultsMetaData();
+		resultsMetaData.setCcdaFileName("ccdaFile.xml");
+		ValidationResultsDto results = new ValidationResultsDto();
+		results.setResultsMetaData(resultsMetaData);
+		validationResultStore.store("0123abcd", results);
+
+		JsonNode storedResults = getJson("/results/0123abcd");
+		assertEquals("ccdaFile.xml", storedResults.get("resultsMetaData").get("ccdaFileName").asText());
+		assertEquals(MAPPER.valueToTree(results), storedResults);
+	}
+
+	@Test
+	public void unknownResultIdIsNotFoundTest() throws Exception {
+		mockMvc.perform(get("/results/0123abcd")).andExpect(status().isNotFound());
+	}
+
+	@Test
+	public void storedResultsAreReturnedWithoutAdmissionTest() throws Exception {
+		String resultId = validate().getHeader(ValidationResultStore.RESULT_ID_HEADER);
+		assertEquals(resultId, validate().getHeader(ValidationResultStore.RESULT_ID_HEADER));
+		assertEquals(1, validationAdmissionController.getAdmittedCount());
+		assertEquals(0, validationAdmissionController.getInFlight());
+	}
+
+	@Test
+	public void requestWaitingForTheSameRequestHoldsNoSlotTest() throws Exception {
+		final BlockingValidationService validationService = new BlockingValidationService();
+		ReflectionTestUtils.setField(controller, "referenceCcdaValidationService", validationService);
+		final ValidationResultsDto[] results = new ValidationResultsDto[2];
+		Thread first = validateInThread(results, 0);
+		assertTrue(validationService.started.await(10, TimeUnit.SECONDS));
+		Thread second = validateInThread(results, 1);
+		long waitUntil = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+		while (second.getState() != Thread.State.TIMED_WAITING && System.nanoTime() < waitUntil) {
+			Thread.sleep(10);
+		}
+		assertEquals(Thread.State.TIMED_WAITING, second.getState());
+		assertEquals("Only the validation holds a slot", 1, validationAdmissionController.getInFlight());
+
+		validationService.completed.countDown();
+		first.join();
+		second.join();
+		assertSame(StoredValidationResultsDto.class, results[1].getClass());
+		assertEquals(1, validationAdmissionController.getAdmittedCount());
+		assertEquals(0, validationAdmissionController.getInFlight());
+	}
+
+	@Test
+	public void adminEndpointsAreDisabledByDefaultTest() throws Exception {
+		mockMvc.perform(get("/admin/slowvalidations")).andExpect(status().isNotFound());
+		mockMvc.perform(get("/admin/allocations")).andExpect(status().isNotFound());
+	}
+
+	@Test
+	public void allocatedBytesHeaderIsOmittedByDefaultTest() throws Exception {
+		assertNull(validate().getHeader(ALLOCATED_BYTES_HEADER));
+	}
+
+	@Test
+	public void allocatedBytesHeaderListsEachStageAndTheirTotalTest() throws Exception {
+		ReflectionTestUtils.setField(controller, "allocationResponseHeaders", true);
+		String header = validate().getHeader(ALLOCATED_BYTES_HEADER);
+		Matcher matcher = ALLOCATED_BYTES.matcher(header);
+		assertTrue(header, matcher.matches());
+		assertEquals(Long.parseLong(matcher.group(1)) + 4096, Long.parseLong(matcher.group(2)));
+	}
+
+	@Test
+	public void allocationsAreListedPerObjectiveAndStageTest() throws Exception {
+		ReflectionTestUtils.setField(controller, "adminEnabled", true);
+		validate("<ClinicalDocument xmlns=\"urn:hl7-org:v3\"/>");
+		validate("<ClinicalDocument xmlns=\"urn:hl7-org:v3\"><title/></ClinicalDocument>");
+		// results returned from the store are not validated again, so not counted
+		validate("<ClinicalDocument xmlns=\"urn:hl7-org:v3\"/>");
+		JsonNode stages = getJson("/admin/allocations").get(OBJECTIVE);
+		// the validation service records the other stages, the interceptor records writing the response
+		assertEquals(1, stages.size());
+		JsonNode serialization = stages.get(ValidationTrace.SERIALIZATION_STAGE);
+		assertEquals(2, serialization.get("count").asLong());
+		long bucketCounts = 0;
+		for (JsonNode bucketCount : serialization.get("buckets")) {
+			bucketCounts += bucketCount.asLong();
+		}
+		assertEquals(2, bucketCounts);
+	}
+
+	@Test
+	public void slowValidationsAreListedNewestFirstTest() throws Exception {
+		ReflectionTestUtils.setField(controller, "adminEnabled", true);
+		assertEquals(0, getJson("/admin/slowvalidations").size());
+
+		ReflectionTestUtils.setField(slowValidationRecorder, "thresholdMillis", 0L);
+		recordValidation("first.xml");
+		recordValidation("second.xml");
+		JsonNode records = getJson("/admin/slowvalidations");
+		assertEquals(2, records.size());
+		assertEquals("second.xml", records.get(0).get("ccdaFileName").asText());
+		assertEquals("first.xml", records.get(1).get("ccdaFileName").asText());
+		assertEquals(2, records.get(0).get("elementCount").asLong());
+		assertEquals("C-CDA_IG_Only", records.get(0).get("validationObjective").asText());
+	}
+
+	@Test
+	public void validationPlansListEveryObjectiveTest() throws Exception {
+		JsonNode plans = getJson("/validationplans");
+		Set<String> objectives = new HashSet<String>();
+		for (JsonNode plan : plans) {
+			objectives.add(plan.get("validationObjective").asText());
+			if (plan.get("validationObjective").asText().equals(CCDATypes.SCHEMA_ONLY)) {
+				assertTrue(plan.get("schemaOnly").asBoolean());
+				assertTrue(plan.get("mdhtValidationObjective").isNull());
+				assertFalse(plan.get("vocabularyValidation").asBoolean());
+			}
+		}
+		assertEquals(plans.size(), objectives.size());
+		assertTrue(objectives.contains(CCDATypes.SCHEMA_ONLY));
+		assertTrue(objectives.contains(CCDATypes.AUTO_DETECT));
+		assertTrue(objectives.containsAll(ValidationObjectives.ALL_UNIQUE));
+		assertTrue(objectives.containsAll(CCDATypes.MU2_TYPES));
+	}
+
+	private MockHttpServletResponse validate() throws Exception {
+		return validate("<ClinicalDocument xmlns=\"urn:hl7-org:v3\"/>");
+	}
+
+	private MockHttpServletResponse validate(String document) throws Exception {
+		MockMultipartFile ccdaFile = new MockMultipartFile("ccdaFile", "ccdaFile.xml", "text/xml",
+				document.getBytes(Charset.forName("UTF-8")));
+		return mockMvc.perform(fileUpload("/").file(ccdaFile).param("validationObjective", OBJECTIVE)
+				.param("referenceFileName", "")).andExpect(status().isOk()).andReturn().getResponse();
+	}
+
+	private Thread validateInThread(final ValidationResultsDto[] results, final int index) {
+		Thread thread = new Thread() {
+			@Override
+			public void run() {
+				MockMultipartFile ccdaFile = new MockMultipartFile("ccdaFile", "ccdaFile.xml", "text/xml",
+						"<ClinicalDocument xmlns=\"urn:hl7-org:v3\"/>".getBytes(Charset.forName("UTF-8")));
+				results[index] = controller.doValidation(OBJECTIVE, "", ccdaFile, null, null, null,
+						new MockHttpServletRequest(), new MockHttpServletResponse());
+			}
+		};
+		thread.start();
+		return thread;
+	}
+
+	private void recordValidation(String ccdaFileName) {
+		CCDADocument ccdaFile = CCDADocument.fromBytes(ccdaFileName,
+				"<ClinicalDocument xmlns=\"urn:hl7-org:v3\"><title/></ClinicalDocument>".getBytes(Charset.forName("UTF-8")));
+		slowValidationRecorder.record(new ValidationTrace(), "C-CDA_IG_Only", "", ccdaFile,
+				new ValidationResultFilter.ValidationResultFilterBuilder().build(), new ArrayList<RefCCDAValidationResult>(),
+				new ValidationResultsMetaData());
+	}
+
+	private JsonNode getJson(String path) throws Exception {
+		String body = mockMvc.perform(get(path)).andExpect(status().isOk()).andReturn().getResponse().getContentAsString();
+		return MAPPER.readTree(body);
+	}
+
+	/**
+	 * Allocates in a schema stage of its own thread and adds 4096 bytes of an mdht stage forked to another thread.
+	 */
+	private static class AllocatingValidationService extends ReferenceCCDAValidationService {
+		AllocatingValidationService() {
+			super(null, null, null, null);
+		}
+
+		@Override
+		public ValidationResultsDto validateCCDA(String validationObjective, String referenceFileName,
+				CCDADocument ccdaDocument, ValidationResultFilter resultFilter, final ValidationTrace trace) {
+			trace.startStage(ValidationTrace.SCHEMA_STAGE);
+			byte[][] allocated = new byte[64][];
+			for (int i = 0; i < allocated.length; i++) {
+				allocated[i] = new byte[1024];
+			}
+			trace.endStage();
+			Thread forked = new Thread() {
+				@Override
+				public void run() {
+					trace.addAllocatedBytes(ValidationTrace.MDHT_STAGE, 4096);
+				}
+			};
+			forked.start();
+			try {
+				forked.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			trace.end();
+			ValidationResultsMetaData resultsMetaData = new ValidationResultsMetaData();
+			resultsMetaData.setCcdaFileName(ccdaDocument.getName() + allocated.length);
+			ValidationResultsDto results = new ValidationResultsDto();
+			results.setResultsMetaData(resultsMetaData);
+			results.setCcdaValidationResults(new ArrayList<RefCCDAValidationResult>());
+			return results;
+		}
+	}
+
+	/**
+	 * Validates once the test lets it complete.
+	 */
+	private static class BlockingValidationService extends AllocatingValidationService {
+		private final CountDownLatch started = new CountDownLatch(1);
+		private final CountDownLatch completed = new CountDownLatch(1);
+
+		@Override
+		public ValidationResultsDto validateCCDA(String validationObjective, String referenceFileName,
+				CCDADocument ccdaDocument, ValidationResultFilter resultFilter, ValidationTrace trace) {
+			started.countDown();
+			try {
+				completed.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			return super.validateCCDA(validationObjective, referenceFileName, ccdaDocument, resultFilter, trace);
+		}
+	}
+}
@@ -0,0 +1,83 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sitenv.referenceccda.dto.SlowValidationRecord;
+import org.sitenv.referenceccda.dto.ValidationResultsMetaData;
+import org.sitenv.referenceccda.services.SlowValidationRecorder;
+import org.sitenv.referenceccda.validators.CCDADocument;
+import org.sitenv.referenceccda.validators.RefCCDAValidationResult;
+import org.sitenv.referenceccda.validators.ValidationResultFilter;
+import org.sitenv.referenceccda.validators.ValidationTrace;
+import org.springframework.test.util.ReflectionTestUtils;
+
+public class SlowValidationRecorderTest {
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private Path quarantineDirectory;
+	private SlowValidationRecorder slowValidationRecorder;
+
+	@Before
+	public void setUp() throws IOException {
+		quarantineDirectory = Files.createTempDirectory("quarantine");
+		slowValidationRecorder = new SlowValidationRecorder();
+		ReflectionTestUtils.setField(slowValidationRecorder, "thresholdMillis", 0L);
+		ReflectionTestUtils.setField(slowValidationRecorder, "quarantineDir", quarantineDirectory.toString());
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		FileUtils.deleteDirectory(quarantineDirectory.toFile());
+	}
+
+	@Test
+	public void documentsOfTheSameNameStartedTogetherAreQuarantinedApartTest() throws IOException {
+		// the same trace gives both records the same start time
+		ValidationTrace trace = new ValidationTrace();
+		record(trace, "<ClinicalDocument xmlns=\"urn:hl7-org:v3\"><title>First</title></ClinicalDocument>");
+		record(trace, "<ClinicalDocument xmlns=\"urn:hl7-org:v3\"><title>Second</title></ClinicalDocument>");
+
+		List<SlowValidationRecord> records = slowValidationRecorder.getRecords();
+		assertEquals(2, records.size());
+		Path second = Paths.get(records.get(0).getQuarantinedFile());
+		Path first = Paths.get(records.get(1).getQuarantinedFile());
+		assertNotEquals(first, second);
+		for (Path file : new Path[] { first, second }) {
+			assertEquals(quarantineDirectory, file.getParent());
+			assertTrue(file.getFileName().toString(), file.getFileName().toString().startsWith(trace.getStartMillis() + "-"));
+			assertTrue(file.getFileName().toString(), file.getFileName().toString().endsWith("-ccda_File.xml"));
+		}
+		assertTrue(new String(Files.readAllBytes(first), UTF_8).contains("First"));
+		assertTrue(new String(Files.readAllBytes(second), UTF_8).contains("Second"));
+	}
+
+	@Test
+	public void quarantinedDocumentIsDeletedWithItsRecordTest() throws IOException {
+		ReflectionTestUtils.setField(slowValidationRecorder, "maxRecords", 1);
+		record(new ValidationTrace(), "<ClinicalDocument xmlns=\"urn:hl7-org:v3\"/>");
+		Path evicted = Paths.get(slowValidationRecorder.getRecords().get(0).getQuarantinedFile());
+		record(new ValidationTrace(), "<ClinicalDocument xmlns=\"urn:hl7-org:v3\"/>");
+
+		assertFalse(Files.exists(evicted));
+		assertTrue(Files.exists(Paths.get(slowValidationRecorder.getRecords().get(0).getQuarantinedFile())));
+	}
+
+	private void record(ValidationTrace trace, String document) {
+		slowValidationRecorder.record(trace, "C-CDA_IG_Only", "", CCDADocument.fromBytes("ccda File.xml", document.getBytes(UTF_8)),
+				new ValidationResultFilter.ValidationResultFilterBuilder().build(), new ArrayList<RefCCDAValidationResult>(),
+				new ValidationResultsMetaData());
+	}
+}
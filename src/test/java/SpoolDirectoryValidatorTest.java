@@ -0,0 +1,119 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.channels.FileLock;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sitenv.referenceccda.batch.SpoolDirectoryValidator;
+import org.sitenv.referenceccda.embedded.ValidationOptions;
+import org.sitenv.referenceccda.validators.schema.CCDATypes;
+import org.springframework.test.util.ReflectionTestUtils;
+
+/**
+ * Covers how validators sharing a spool directory claim and recover documents, without validating them.
+ */
+public class SpoolDirectoryValidatorTest {
+	private static final String DOCUMENT = "<ClinicalDocument xmlns=\"urn:hl7-org:v3\"/>";
+
+	private Path spoolDirectory;
+	private final List<SpoolDirectoryValidator> validators = new ArrayList<SpoolDirectoryValidator>();
+
+	@Before
+	public void createSpoolDirectory() throws IOException {
+		spoolDirectory = Files.createTempDirectory("spool");
+	}
+
+	@After
+	public void deleteSpoolDirectory() throws IOException {
+		for (SpoolDirectoryValidator validator : validators) {
+			ReflectionTestUtils.invokeMethod(validator, "releaseProcessingDirectory");
+		}
+		FileUtils.deleteDirectory(spoolDirectory.toFile());
+	}
+
+	@Test
+	public void eachValidatorClaimsIntoItsOwnProcessingDirectoryTest() throws IOException {
+		Path first = startValidator();
+		Path second = startValidator();
+		assertNotEquals(first, second);
+		assertEquals(spoolDirectory.resolve("processing"), first.getParent());
+		assertEquals(spoolDirectory.resolve("processing"), second.getParent());
+	}
+
+	@Test
+	public void resultsAreValidatedWithoutTheFileContentsTest() throws IOException {
+		ValidationOptions options = (ValidationOptions) ReflectionTestUtils.getField(createValidator(), "options");
+		assertEquals(CCDATypes.SCHEMA_ONLY, options.getValidationObjective());
+		assertFalse(options.isEchoFileContents());
+	}
+
+	@Test
+	public void documentsOfRunningValidatorsAreNotReturnedTest() throws IOException {
+		Path running = startValidator();
+		Files.write(running.resolve("claimed.xml"), DOCUMENT.getBytes(Charset.forName("UTF-8")));
+		startValidator();
+		assertTrue(Files.exists(running.resolve("claimed.xml")));
+		assertFalse(Files.exists(inbox().resolve("claimed.xml")));
+	}
+
+	@Test
+	public void documentsOfKilledValidatorsAreReturnedTest() throws IOException {
+		SpoolDirectoryValidator killed = createValidator();
+		Path killedProcessing = lockProcessingDirectory(killed);
+		Files.write(killedProcessing.resolve("interrupted.xml"), DOCUMENT.getBytes(Charset.forName("UTF-8")));
+		// the lock of a killed process is released by the operating system
+		((FileLock) ReflectionTestUtils.getField(killed, "processingLock")).release();
+		validators.remove(killed);
+
+		startValidator();
+		assertTrue(Files.exists(inbox().resolve("interrupted.xml")));
+		assertFalse(Files.exists(killedProcessing));
+	}
+
+	@Test
+	public void processingDirectoryIsDeletedWhenTheValidatorStopsTest() throws IOException {
+		SpoolDirectoryValidator validator = createValidator();
+		Path processing = lockProcessingDirectory(validator);
+		ReflectionTestUtils.invokeMethod(validator, "releaseProcessingDirectory");
+		assertFalse(Files.exists(processing));
+	}
+
+	/**
+	 * Runs the start of {@link SpoolDirectoryValidator#run()}, before the inbox is watched.
+	 *
+	 * @return the processing directory of the validator
+	 */
+	private Path startValidator() throws IOException {
+		SpoolDirectoryValidator validator = createValidator();
+		Path processing = lockProcessingDirectory(validator);
+		ReflectionTestUtils.invokeMethod(validator, "returnClaimedDocuments");
+		return processing;
+	}
+
+	private SpoolDirectoryValidator createValidator() throws IOException {
+		SpoolDirectoryValidator validator = new SpoolDirectoryValidator(null,
+				new ValidationOptions.ValidationOptionsBuilder(CCDATypes.SCHEMA_ONLY).build(), 1, 1000, spoolDirectory);
+		validators.add(validator);
+		return validator;
+	}
+
+	private static Path lockProcessingDirectory(SpoolDirectoryValidator validator) {
+		ReflectionTestUtils.invokeMethod(validator, "lockProcessingDirectory");
+		return (Path) ReflectionTestUtils.getField(validator, "processing");
+	}
+
+	private Path inbox() {
+		return spoolDirectory.resolve("inbox");
+	}
+}
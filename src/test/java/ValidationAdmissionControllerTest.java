@@ -0,0 +1,132 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+import org.sitenv.referenceccda.services.ValidationAdmissionController;
+import org.sitenv.referenceccda.services.ValidationRejectedException;
+
+public class ValidationAdmissionControllerTest {
+	private static final int LATENCY_WINDOW_SIZE = 50;
+	private static final long SLOW_NANOS = TimeUnit.SECONDS.toNanos(2);
+	private static final long FAST_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+	private final ExecutorService executor = Executors.newCachedThreadPool();
+
+	@After
+	public void shutdownExecutor() {
+		executor.shutdownNow();
+	}
+	@Test
+	public void requestOverLimitIsRejectedWhenQueueIsFullTest() {
+		ValidationAdmissionController admission = new ValidationAdmissionController(2, 0, 1000, 1000);
+		admission.acquire();
+		admission.acquire();
+		try {
+			admission.acquire();
+			fail("The request over the limit was admitted without a queue");
+		} catch (ValidationRejectedException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("queue is full"));
+			assertTrue(e.getRetryAfterSeconds() >= 1);
+		}
+		assertEquals(2, admission.getInFlight());
+		assertEquals(2, admission.getAdmittedCount());
+		assertEquals(1, admission.getRejectedCount());
+	}
+
+	@Test
+	public void queuedRequestIsRejectedAfterQueueTimeoutTest() {
+		ValidationAdmissionController admission = new ValidationAdmissionController(1, 1, 50, 1000);
+		admission.acquire();
+		long start = System.nanoTime();
+		try {
+			admission.acquire();
+			fail("The queued request was admitted while the slot was held");
+		} catch (ValidationRejectedException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("within 50 ms"));
+		}
+		assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+		assertEquals(0, admission.getQueueDepth());
+	}
+
+	@Test
+	public void queuedRequestIsAdmittedWhenSlotIsReleasedTest() throws Exception {
+		final ValidationAdmissionController admission = new ValidationAdmissionController(1, 1, 10000, 1000);
+		admission.acquire();
+		Future<Boolean> queued = executor.submit(new Callable<Boolean>() {
+			@Override
+			public Boolean call() {
+				admission.acquire();
+				return true;
+			}
+		});
+		waitForQueueDepth(admission, 1);
+		admission.release(FAST_NANOS);
+		assertTrue(queued.get(5, TimeUnit.SECONDS));
+		assertEquals(1, admission.getInFlight());
+		assertEquals(0, admission.getRejectedCount());
+	}
+
+	@Test
+	public void limitIsCutByAQuarterWhenP95LatencyIsOverTargetTest() {
+		ValidationAdmissionController admission = new ValidationAdmissionController(8, 0, 1000, 1000);
+		runWindow(admission, SLOW_NANOS);
+		assertEquals(6, admission.getCurrentLimit());
+		assertEquals(TimeUnit.NANOSECONDS.toMillis(SLOW_NANOS), admission.getP95LatencyMillis());
+		runWindow(admission, SLOW_NANOS);
+		assertEquals(5, admission.getCurrentLimit());
+		for (int i = 0; i < 10; i++) {
+			runWindow(admission, SLOW_NANOS);
+		}
+		assertEquals("The limit must not go below 1", 1, admission.getCurrentLimit());
+	}
+
+	@Test
+	public void limitIsRaisedOnlyWhenReachedDuringAFastWindowTest() {
+		ValidationAdmissionController admission = new ValidationAdmissionController(8, 0, 1000, 1000);
+		runWindow(admission, SLOW_NANOS);
+		assertEquals(6, admission.getCurrentLimit());
+		runWindow(admission, FAST_NANOS);
+		assertEquals("The limit must not be raised when it was not reached", 6, admission.getCurrentLimit());
+
+		for (int i = 0; i < 6; i++) {
+			admission.acquire();
+		}
+		try {
+			admission.acquire();
+			fail("The request over the limit was admitted");
+		} catch (ValidationRejectedException e) {
+			// the limit was reached during the window
+		}
+		for (int i = 0; i < 6; i++) {
+			admission.release(FAST_NANOS);
+		}
+		for (int i = 6; i < LATENCY_WINDOW_SIZE; i++) {
+			admission.acquire();
+			admission.release(FAST_NANOS);
+		}
+		assertEquals(7, admission.getCurrentLimit());
+	}
+
+	private static void runWindow(ValidationAdmissionController admission, long latencyNanos) {
+		for (int i = 0; i < LATENCY_WINDOW_SIZE; i++) {
+			admission.acquire();
+			admission.release(latencyNanos);
+		}
+	}
+
+	private static void waitForQueueDepth(ValidationAdmissionController admission, int queueDepth) throws InterruptedException {
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (admission.getQueueDepth() != queueDepth && System.nanoTime() < deadline) {
+			Thread.sleep(5);
+		}
+		assertEquals(queueDepth, admission.getQueueDepth());
+	}
+}
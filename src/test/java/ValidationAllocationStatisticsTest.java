@@ -0,0 +1,95 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import org.junit.Test;
+import org.sitenv.referenceccda.services.ValidationAllocationStatistics;
+import org.sitenv.referenceccda.services.ValidationAllocationStatistics.AllocationHistogram;
+import org.sitenv.referenceccda.validators.schema.CCDATypes;
+import org.sitenv.referenceccda.validators.schema.ValidationObjectives;
+
+public class ValidationAllocationStatisticsTest {
+	private static final String OBJECTIVE = ValidationObjectives.Sender.C_CDA_IG_ONLY;
+
+	@Test
+	public void allocationsAreCountedInPowerOfTwoBucketsTest() {
+		ValidationAllocationStatistics statistics = new ValidationAllocationStatistics();
+		for (long allocatedBytes : Arrays.asList(0L, 1023L, 1024L, 3000L, 4095L, 4096L)) {
+			statistics.record(OBJECTIVE, "mdht", allocatedBytes);
+		}
+		AllocationHistogram histogram = statistics.getHistograms().get(OBJECTIVE).get("mdht");
+		assertEquals(6, histogram.getCount());
+		assertEquals(13238, histogram.getTotalBytes());
+		assertEquals(13238 / 6, histogram.getMeanBytes());
+		assertEquals(4096, histogram.getMaxBytes());
+		Map<Long, Long> buckets = histogram.getBuckets();
+		assertEquals(Arrays.asList(1024L, 2048L, 4096L, 8192L), Arrays.asList(buckets.keySet().toArray()));
+		assertEquals(Long.valueOf(2), buckets.get(1024L));
+		assertEquals(Long.valueOf(1), buckets.get(2048L));
+		assertEquals(Long.valueOf(2), buckets.get(4096L));
+		assertEquals(Long.valueOf(1), buckets.get(8192L));
+	}
+
+	@Test
+	public void largestAllocationsAreCountedInTheLastBucketTest() {
+		ValidationAllocationStatistics statistics = new ValidationAllocationStatistics();
+		statistics.record(OBJECTIVE, "mdht", Long.MAX_VALUE);
+		statistics.record(OBJECTIVE, "mdht", 1L << 62);
+		Map<Long, Long> buckets = statistics.getHistograms().get(OBJECTIVE).get("mdht").getBuckets();
+		assertEquals(1, buckets.size());
+		assertEquals(Long.valueOf(2), buckets.get(Long.MAX_VALUE));
+	}
+
+	@Test
+	public void negativeAllocationsAreCountedAsZeroTest() {
+		ValidationAllocationStatistics statistics = new ValidationAllocationStatistics();
+		statistics.record(OBJECTIVE, "mdht", -100);
+		AllocationHistogram histogram = statistics.getHistograms().get(OBJECTIVE).get("mdht");
+		assertEquals(1, histogram.getCount());
+		assertEquals(0, histogram.getTotalBytes());
+		assertEquals(Long.valueOf(1), histogram.getBuckets().get(1024L));
+	}
+
+	@Test
+	public void objectivesAreCountedUnderTheObjectiveTheyAreValidatedAsTest() {
+		ValidationAllocationStatistics statistics = new ValidationAllocationStatistics();
+		statistics.record(OBJECTIVE.toUpperCase(), "mdht", 2048);
+		statistics.record("NotAnObjective", "mdht", 2048);
+		statistics.record(null, "mdht", 2048);
+		statistics.record("", "mdht", 2048);
+		Map<String, Map<String, AllocationHistogram>> histograms = statistics.getHistograms();
+		assertEquals(2, histograms.size());
+		assertEquals(1, histograms.get(OBJECTIVE).get("mdht").getCount());
+		assertEquals(1, histograms.get(ValidationObjectives.Sender.C_CDA_IG_PLUS_VOCAB).get("mdht").getCount());
+	}
+
+	@Test
+	public void stagesAreKeptInOrderOfFirstValidationTest() {
+		ValidationAllocationStatistics statistics = new ValidationAllocationStatistics();
+		statistics.record(CCDATypes.SCHEMA_ONLY, "schema", 2048);
+		statistics.record(OBJECTIVE, "schema", 2048);
+		statistics.record(OBJECTIVE, "mdht", 2048);
+		statistics.record(OBJECTIVE, "serialization", 2048);
+		statistics.record(OBJECTIVE, "schema", 2048);
+		Map<String, Map<String, AllocationHistogram>> histograms = statistics.getHistograms();
+		assertEquals(Arrays.asList(CCDATypes.SCHEMA_ONLY, OBJECTIVE), Arrays.asList(histograms.keySet().toArray()));
+		assertEquals(Arrays.asList("schema", "mdht", "serialization"),
+				Arrays.asList(histograms.get(OBJECTIVE).keySet().toArray()));
+		assertEquals(2, histograms.get(OBJECTIVE).get("schema").getCount());
+	}
+
+	@Test
+	public void histogramsAreCopiedTest() {
+		ValidationAllocationStatistics statistics = new ValidationAllocationStatistics();
+		statistics.record(OBJECTIVE, "mdht", 2048);
+		Map<String, Map<String, AllocationHistogram>> histograms = statistics.getHistograms();
+		statistics.record(OBJECTIVE, "mdht", 2048);
+		statistics.record(OBJECTIVE, "vocabulary", 2048);
+		assertEquals(1, histograms.get(OBJECTIVE).get("mdht").getCount());
+		assertFalse(histograms.get(OBJECTIVE).containsKey("vocabulary"));
+		assertTrue(statistics.getHistograms().get(OBJECTIVE).containsKey("vocabulary"));
+	}
+}
@@ -0,0 +1,113 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+import org.sitenv.referenceccda.services.ValidationMemoryBudget;
+import org.sitenv.referenceccda.services.ValidationRejectedException;
+import org.sitenv.referenceccda.validators.ValidationTrace;
+
+public class ValidationMemoryBudgetTest {
+	private static final long MEGABYTE = 1024 * 1024;
+	private static final long BASE_BYTES = 2 * MEGABYTE;
+
+	private final ExecutorService executor = Executors.newCachedThreadPool();
+
+	@After
+	public void shutdownExecutor() {
+		executor.shutdownNow();
+	}
+	@Test
+	public void reservationIsBaseAndDocumentSizeTimesFactorTest() {
+		ValidationMemoryBudget budget = new ValidationMemoryBudget(1024 * MEGABYTE, 40, 1000);
+		ValidationMemoryBudget.Reservation reservation = budget.reserve(MEGABYTE);
+		assertEquals(BASE_BYTES + 40 * MEGABYTE, reservation.getReservedBytes());
+		assertEquals(reservation.getReservedBytes(), budget.getReservedBytes());
+		reservation.close();
+		assertEquals(0, budget.getReservedBytes());
+		reservation.close();
+		assertEquals("Closing twice must not release twice", 0, budget.getReservedBytes());
+	}
+
+	@Test
+	public void documentLargerThanBudgetRunsAloneTest() {
+		ValidationMemoryBudget budget = new ValidationMemoryBudget(100 * MEGABYTE, 40, 50);
+		ValidationMemoryBudget.Reservation large = budget.reserve(10 * MEGABYTE);
+		assertEquals("The reservation must be capped to the budget", 100 * MEGABYTE, large.getReservedBytes());
+		try {
+			budget.reserve(1);
+			fail("A reservation was granted alongside one holding the whole budget");
+		} catch (ValidationRejectedException e) {
+			assertEquals(1, budget.getRejectedCount());
+		}
+		large.close();
+		budget.reserve(1).close();
+	}
+
+	@Test
+	public void waitingReservationIsGrantedWhenMemoryIsReleasedTest() throws Exception {
+		final ValidationMemoryBudget budget = new ValidationMemoryBudget(100 * MEGABYTE, 40, 10000);
+		ValidationMemoryBudget.Reservation first = budget.reserve(2 * MEGABYTE);
+		Future<Long> second = executor.submit(new Callable<Long>() {
+			@Override
+			public Long call() {
+				ValidationMemoryBudget.Reservation reservation = budget.reserve(MEGABYTE);
+				long reservedBytes = reservation.getReservedBytes();
+				reservation.close();
+				return reservedBytes;
+			}
+		});
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (budget.getWaiting() == 0 && System.nanoTime() < deadline) {
+			Thread.sleep(5);
+		}
+		assertEquals(1, budget.getWaiting());
+		first.close();
+		assertEquals(Long.valueOf(BASE_BYTES + 40 * MEGABYTE), second.get(5, TimeUnit.SECONDS));
+		assertEquals(0, budget.getRejectedCount());
+	}
+
+	@Test
+	public void estimateIsCalibratedFromAllocationsOfForkedWorkTest() throws Exception {
+		ValidationMemoryBudget budget = new ValidationMemoryBudget(1024 * MEGABYTE, 40, 1000);
+		final ValidationTrace trace = new ValidationTrace();
+		ValidationMemoryBudget.Reservation reservation = budget.reserve(MEGABYTE, trace);
+		// allocations of work forked to another thread, 140 bytes per document byte above the base
+		executor.submit(new Runnable() {
+			@Override
+			public void run() {
+				trace.addAllocatedBytes(ValidationTrace.DIAGNOSTIC_CONVERSION_STAGE, BASE_BYTES + 140 * MEGABYTE);
+			}
+		}).get();
+		trace.end();
+		reservation.close();
+		// the factor moves a fifth of the way towards the observed value
+		assertEquals(60, budget.getBytesPerDocumentByte(), 0.001);
+		assertEquals(BASE_BYTES + 60 * MEGABYTE, budget.reserve(MEGABYTE).getReservedBytes());
+	}
+
+	@Test
+	public void calibratedFactorIsBoundedTest() throws Exception {
+		ValidationMemoryBudget budget = new ValidationMemoryBudget(1024 * MEGABYTE, 40, 1000);
+		for (int i = 0; i < 50; i++) {
+			final ValidationTrace trace = new ValidationTrace();
+			ValidationMemoryBudget.Reservation reservation = budget.reserve(1, trace);
+			executor.submit(new Runnable() {
+				@Override
+				public void run() {
+					trace.addAllocatedBytes(ValidationTrace.MDHT_STAGE, 1024 * MEGABYTE);
+				}
+			}).get();
+			reservation.close();
+		}
+		assertTrue(budget.getBytesPerDocumentByte() <= 500);
+		assertTrue(budget.getBytesPerDocumentByte() > 499);
+	}
+}
@@ -0,0 +1,286 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sitenv.referenceccda.dto.ValidationResultsDto;
+import org.sitenv.referenceccda.dto.ValidationResultsMetaData;
+import org.sitenv.referenceccda.services.ValidationResultStore;
+import org.sitenv.referenceccda.validators.CCDADocument;
+import org.sitenv.referenceccda.validators.RefCCDAValidationResult;
+import org.sitenv.referenceccda.validators.ValidationResultFilter;
+import org.sitenv.referenceccda.validators.enums.ValidationResultType;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+public class ValidationResultStoreTest {
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	private static final String CCDA_FILE = "<ClinicalDocument xmlns=\"urn:hl7-org:v3\"/>";
+
+	private Path storeDirectory;
+	private ValidationResultStore store;
+
+	@Before
+	public void openStore() throws IOException {
+		storeDirectory = Files.createTempDirectory("results");
+		store = createStore();
+		store.open();
+	}
+
+	@After
+	public void deleteStore() throws IOException {
+		store.close();
+		FileUtils.deleteDirectory(storeDirectory.toFile());
+	}
+
+	@Test
+	public void storedResultsAreReadBackWithoutFileContentsTest() throws IOException {
+		ValidationResultsDto results = buildResults("first");
+		store.store("first", results);
+		assertEquals(CCDA_FILE, results.getResultsMetaData().getCcdaFileContents());
+
+		JsonNode expected = new ObjectMapper().valueToTree(results);
+		((ObjectNode) expected.get("resultsMetaData")).putNull("ccdaFileContents");
+		assertEquals(expected, store.get("first"));
+		assertNull(store.get("unknown"));
+	}
+
+	@Test
+	public void serviceErrorsAreNotStoredTest() {
+		ValidationResultsDto results = buildResults("failed");
+		results.getResultsMetaData().setServiceError(true);
+		store.store("failed", results);
+		assertNull(store.get("failed"));
+	}
+
+	@Test
+	public void resultIdDependsOnTheDocumentAndOptionsTest() throws IOException {
+		ValidationResultFilter resultFilter = new ValidationResultFilter.ValidationResultFilterBuilder().build();
+		ValidationResultFilter cappedResultFilter = new ValidationResultFilter.ValidationResultFilterBuilder().maxResults(10).build();
+		CCDADocument ccdaFile = CCDADocument.fromBytes("ccdaFile.xml", CCDA_FILE.getBytes(UTF_8));
+		String resultId = store.resultId("C-CDA_IG_Only", "", resultFilter, ccdaFile);
+		assertEquals(64, resultId.length());
+		assertEquals(resultId, store.resultId("C-CDA_IG_Only", "", resultFilter,
+				CCDADocument.fromBytes("renamed.xml", CCDA_FILE.getBytes(UTF_8))));
+		assertFalse(resultId.equals(store.resultId("C-CDA_IG_Plus_Vocab", "", resultFilter, ccdaFile)));
+		assertFalse(resultId.equals(store.resultId("C-CDA_IG_Only", "", cappedResultFilter, ccdaFile)));
+		assertFalse(resultId.equals(store.resultId("C-CDA_IG_Only", "", resultFilter,
+				CCDADocument.fromBytes("ccdaFile.xml", (CCDA_FILE + " ").getBytes(UTF_8)))));
+	}
+
+	@Test
+	public void resultsAreKeptWhenTheStoreIsReopenedTest() throws IOException {
+		store.store("first", buildResults("first"));
+		store.store("second", buildResults("second"));
+		store.close();
+		store = createStore();
+		store.open();
+		assertEquals("first", store.get("first").get("resultsMetaData").get("ccdaFileName").asText());
+		assertEquals("second", store.get("second").get("resultsMetaData").get("ccdaFileName").asText());
+	}
+
+	@Test
+	public void tornRecordIsDroppedWhenTheStoreIsReopenedTest() throws IOException {
+		store.store("first", buildResults("first"));
+		store.store("second", buildResults("second"));
+		store.close();
+		Path segment = onlySegment();
+		try (RandomAccessFile file = new RandomAccessFile(segment.toFile(), "rw")) {
+			file.setLength(file.length() - 3);
+		}
+		store = createStore();
+		store.open();
+		assertNotNull(store.get("first"));
+		assertNull(store.get("second"));
+		// the store keeps working after the torn record
+		store.store("third", buildResults("third"));
+		assertNotNull(store.get("third"));
+	}
+
+	@Test
+	public void corruptRecordIsDroppedWhenTheStoreIsReopenedTest() throws IOException {
+		store.store("first", buildResults("first"));
+		store.store("second", buildResults("second"));
+		store.close();
+		Path segment = onlySegment();
+		try (RandomAccessFile file = new RandomAccessFile(segment.toFile(), "rw")) {
+			// a byte of the deflated results of the second record, before its CRC32
+			long position = file.length() - 10;
+			file.seek(position);
+			int value = file.read();
+			file.seek(position);
+			file.write(value ^ 0xff);
+		}
+		store = createStore();
+		store.open();
+		assertNotNull(store.get("first"));
+		assertNull(store.get("second"));
+	}
+
+	@Test
+	public void expiredResultsAreDroppedByCompactionTest() throws Exception {
+		store.store("first", buildResults("first"));
+		ReflectionTestUtils.invokeMethod(store, "startSegment");
+		ReflectionTestUtils.setField(store, "retentionHours", 0L);
+		Thread.sleep(5);
+		assertNull(store.get("first"));
+		ReflectionTestUtils.invokeMethod(store, "compact");
+		assertTrue(segments().isEmpty());
+		assertTrue(((Map<?, ?>) ReflectionTestUtils.getField(store, "index")).isEmpty());
+	}
+
+	@Test
+	public void segmentOfReplacedResultsIsDeletedByCompactionTest() throws IOException {
+		store.store("first", buildResults("first"));
+		ReflectionTestUtils.invokeMethod(store, "startSegment");
+		store.store("first", buildResults("first again"));
+		assertEquals(2, segments().size());
+		ReflectionTestUtils.invokeMethod(store, "compact");
+		assertEquals(1, segments().size());
+		assertEquals("first again", store.get("first").get("resultsMetaData").get("ccdaFileName").asText());
+	}
+
+	@Test
+	public void liveResultsAreCopiedOutOfMostlyReplacedSegmentsTest() throws IOException {
+		store.store("first", buildResults("first"));
+		store.store("second", buildResults("second"));
+		store.store("third", buildResults("third"));
+		ReflectionTestUtils.invokeMethod(store, "startSegment");
+		store.store("first", buildResults("first again"));
+		store.store("second", buildResults("second again"));
+		ReflectionTestUtils.invokeMethod(store, "compact");
+		assertEquals(1, segments().size());
+		assertEquals("first again", store.get("first").get("resultsMetaData").get("ccdaFileName").asText());
+		assertEquals("second again", store.get("second").get("resultsMetaData").get("ccdaFileName").asText());
+		assertEquals("third", store.get("third").get("resultsMetaData").get("ccdaFileName").asText());
+
+		store.close();
+		store = createStore();
+		store.open();
+		assertEquals("third", store.get("third").get("resultsMetaData").get("ccdaFileName").asText());
+	}
+
+	@Test
+	public void oldestSegmentsBeyondMaxMegabytesAreDroppedTest() throws IOException {
+		store.store("first", buildResults("first"));
+		ReflectionTestUtils.invokeMethod(store, "startSegment");
+		store.store("second", buildResults("second"));
+		ReflectionTestUtils.setField(store, "maxMegabytes", 0L);
+		ReflectionTestUtils.invokeMethod(store, "compact");
+		assertNull(store.get("first"));
+		assertNotNull(store.get("second"));
+	}
+
+	@Test
+	public void claimWaitsForTheValidationInProgressTest() throws Exception {
+		assertNull(store.claim("first"));
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			Future<JsonNode> waiting = executor.submit(new Callable<JsonNode>() {
+				@Override
+				public JsonNode call() {
+					return store.claim("first");
+				}
+			});
+			Thread.sleep(100);
+			assertFalse(waiting.isDone());
+			store.store("first", buildResults("first"));
+			store.complete("first");
+			assertEquals("first", waiting.get(5, TimeUnit.SECONDS).get("resultsMetaData").get("ccdaFileName").asText());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void claimStopsWaitingAfterClaimWaitSecondsTest() throws Exception {
+		ReflectionTestUtils.setField(store, "claimWaitSeconds", 1L);
+		assertNull(store.claim("first"));
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			Future<JsonNode> waiting = executor.submit(new Callable<JsonNode>() {
+				@Override
+				public JsonNode call() {
+					JsonNode storedResults = store.claim("first");
+					// does not release the requests waiting for the validation in progress
+					store.complete("first");
+					return storedResults;
+				}
+			});
+			assertNull(waiting.get(5, TimeUnit.SECONDS));
+			assertTrue(((Map<?, ?>) ReflectionTestUtils.getField(store, "validationsInProgress")).containsKey("first"));
+		} finally {
+			executor.shutdownNow();
+		}
+		store.complete("first");
+		assertTrue(((Map<?, ?>) ReflectionTestUtils.getField(store, "validationsInProgress")).isEmpty());
+	}
+
+	private ValidationResultStore createStore() {
+		ValidationResultStore resultStore = new ValidationResultStore();
+		ReflectionTestUtils.setField(resultStore, "storeDirectory", storeDirectory.toString());
+		return resultStore;
+	}
+
+	private Path onlySegment() throws IOException {
+		List<Path> segments = segments();
+		assertEquals(1, segments.size());
+		return segments.get(0);
+	}
+
+	private List<Path> segments() throws IOException {
+		List<Path> segments = new ArrayList<Path>();
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(storeDirectory, "results-*.seg")) {
+			for (Path file : files) {
+				if (Files.size(file) > 0) {
+					segments.add(file);
+				}
+			}
+		}
+		Collections.sort(segments);
+		return segments;
+	}
+
+	private static ValidationResultsDto buildResults(String ccdaFileName) {
+		ValidationResultsMetaData resultsMetaData = new ValidationResultsMetaData();
+		resultsMetaData.setCcdaFileName(ccdaFileName);
+		resultsMetaData.setCcdaFileContents(CCDA_FILE);
+		resultsMetaData.setCcdaDocumentType("Continuity Of Care Document");
+		List<RefCCDAValidationResult> results = new ArrayList<RefCCDAValidationResult>();
+		for (int i = 0; i < 3; i++) {
+			RefCCDAValidationResult result = new RefCCDAValidationResult.RefCCDAValidationResultBuilder(
+					"SHALL contain exactly one [1..1] code", "/ClinicalDocument/component[" + i + "]", null,
+					ValidationResultType.CCDA_MDHT_CONFORMANCE_ERROR, 10 + i).build();
+			results.add(result);
+			resultsMetaData.addCount(result.getType());
+		}
+		ValidationResultsDto validationResults = new ValidationResultsDto();
+		validationResults.setResultsMetaData(resultsMetaData);
+		validationResults.setCcdaValidationResults(results);
+		return validationResults;
+	}
+}
@@ -0,0 +1,170 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Test;
+import org.sitenv.referenceccda.validators.CCDADocument;
+import org.sitenv.referenceccda.validators.RefCCDAValidationResult;
+import org.sitenv.referenceccda.validators.ValidationForkJoinPool;
+import org.sitenv.referenceccda.validators.ValidationResultFilter;
+import org.sitenv.referenceccda.validators.vocabulary.VocabularyCCDAValidator;
+import org.sitenv.vocabularies.validation.dto.NodeValidationResult;
+import org.sitenv.vocabularies.validation.dto.VocabularyValidationResult;
+import org.sitenv.vocabularies.validation.dto.enums.VocabularyValidationResultLevel;
+import org.sitenv.vocabularies.validation.services.VocabularyValidationService;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.xml.sax.SAXException;
+
+/**
+ * Compares the parallel mode, which indexes the line numbers while the vocabulary service runs, with the sequential
+ * mode, the vocabulary service being replaced by one returning a result for every code of the document.
+ */
+public class VocabularyCCDAValidatorTest {
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	private static final int SECTIONS = 4;
+	private static final int ENTRIES = 500;
+
+	private final ValidationForkJoinPool validationForkJoinPool = new ValidationForkJoinPool(2);
+
+	@After
+	public void shutdownPool() {
+		validationForkJoinPool.shutdown();
+	}
+
+	@Test
+	public void parallelModeGivesTheResultsOfTheSequentialModeTest() throws Exception {
+		CCDADocument ccdaFile = CCDADocument.fromBytes("ccdaFile.xml", document(true).getBytes(UTF_8));
+		List<RefCCDAValidationResult> sequentialResults = createValidator(false).validateFile("", "", ccdaFile,
+				new ValidationResultFilter.ValidationResultFilterBuilder().build());
+		List<RefCCDAValidationResult> parallelResults = createValidator(true).validateFile("", "", ccdaFile,
+				new ValidationResultFilter.ValidationResultFilterBuilder().build());
+
+		// one per code, and one whose path is not in the document
+		assertEquals(SECTIONS * ENTRIES + 1, sequentialResults.size());
+		assertEquals(describe(sequentialResults), describe(parallelResults));
+		// each entry is on a line of its own, after the two lines of the sections before it and its own
+		RefCCDAValidationResult last = parallelResults.get(SECTIONS * ENTRIES - 1);
+		assertEquals(Integer.toString(2 + SECTIONS * 2 + SECTIONS * ENTRIES - 1), last.getDocumentLineNumber());
+		assertEquals("Line number not available", parallelResults.get(SECTIONS * ENTRIES).getDocumentLineNumber());
+	}
+
+	@Test
+	public void parallelModeReportsTheParseErrorOfTheSequentialModeTest() throws Exception {
+		CCDADocument ccdaFile = CCDADocument.fromBytes("ccdaFile.xml", document(false).getBytes(UTF_8));
+		assertEquals(validationFailure(createValidator(false), ccdaFile), validationFailure(createValidator(true), ccdaFile));
+	}
+
+	private VocabularyCCDAValidator createValidator(boolean parallel) {
+		VocabularyCCDAValidator validator = new VocabularyCCDAValidator(new CodeReportingValidationService());
+		validator.setValidationForkJoinPool(validationForkJoinPool);
+		ReflectionTestUtils.setField(validator, "parallel", parallel);
+		return validator;
+	}
+
+	private static String validationFailure(VocabularyCCDAValidator validator, CCDADocument ccdaFile) {
+		try {
+			validator.validateFile("", "", ccdaFile, new ValidationResultFilter.ValidationResultFilterBuilder().build());
+			fail("The document which is not well formed was validated");
+			return null;
+		} catch (SAXException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("section"));
+			return e.getMessage();
+		}
+	}
+
+	private static List<String> describe(List<RefCCDAValidationResult> results) {
+		List<String> descriptions = new ArrayList<String>();
+		for (RefCCDAValidationResult result : results) {
+			descriptions.add(result.getType() + " " + result.getDocumentLineNumber() + " " + result.getxPath() + " "
+					+ result.getDescription() + " " + result.getActualCode());
+		}
+		return descriptions;
+	}
+
+	/**
+	 * @param wellFormed false to leave the last section unclosed
+	 */
+	private static String document(boolean wellFormed) {
+		StringBuilder document = new StringBuilder("<ClinicalDocument xmlns=\"urn:hl7-org:v3\">\n<component><structuredBody>\n");
+		for (int section = 1; section <= SECTIONS; section++) {
+			document.append("<component><section>\n");
+			for (int entry = 1; entry <= ENTRIES; entry++) {
+				document.append("<entry><observation><code code=\"").append(section * ENTRIES + entry).append("\"/></observation></entry>\n");
+			}
+			if (wellFormed || section < SECTIONS) {
+				document.append("</section></component>\n");
+			}
+		}
+		return document.append("</structuredBody></component></ClinicalDocument>").toString();
+	}
+
+	/**
+	 * Reads the whole document, as the vocabulary service does, and reports a result of a level depending on the entry
+	 * for each code, in document order.
+	 */
+	private static class CodeReportingValidationService extends VocabularyValidationService {
+		@Override
+		public List<VocabularyValidationResult> validate(InputStream in) throws IOException, SAXException {
+			IOUtils.toByteArray(in);
+			List<VocabularyValidationResult> results = new ArrayList<VocabularyValidationResult>();
+			for (int section = 1; section <= SECTIONS; section++) {
+				for (int entry = 1; entry <= ENTRIES; entry++) {
+					String xpath = "/ClinicalDocument[1]/component[1]/structuredBody[1]/component[" + section + "]/section[1]/entry["
+							+ entry + "]/observation[1]/code[1]";
+					results.add(new Result(VocabularyValidationResultLevel.values()[entry % 3], xpath,
+							Integer.toString(section * ENTRIES + entry)));
+				}
+			}
+			results.add(new Result(VocabularyValidationResultLevel.SHALL, "/ClinicalDocument[1]/unknown[1]", null));
+			return results;
+		}
+	}
+
+	private static class Result extends VocabularyValidationResult {
+		private final VocabularyValidationResultLevel level;
+		private final NodeValidationResult nodeValidationResult;
+
+		Result(VocabularyValidationResultLevel level, final String xpath, final String code) {
+			this.level = level;
+			this.nodeValidationResult = new NodeValidationResult() {
+				@Override
+				public String getValidatedDocumentXpathExpression() {
+					return xpath;
+				}
+
+				@Override
+				public String getConfiguredXpathExpression() {
+					return "//code";
+				}
+
+				@Override
+				public String getRequestedCode() {
+					return code;
+				}
+			};
+		}
+
+		@Override
+		public String getMessage() {
+			return "The code " + nodeValidationResult.getRequestedCode() + " is not valid";
+		}
+
+		@Override
+		public VocabularyValidationResultLevel getVocabularyValidationResultLevel() {
+			return level;
+		}
+
+		@Override
+		public NodeValidationResult getNodeValidationResult() {
+			return nodeValidationResult;
+		}
+	}
+}
@@ -0,0 +1,274 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sitenv.referenceccda.validators.XMLParserProvider;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.DefaultHandler;
+
+public class XMLParserProviderTest {
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	private static final int MAX_ELEMENT_DEPTH = 10;
+	private static final int MAX_ATTRIBUTE_SIZE = 100;
+
+	@Before
+	public void configureLimits() {
+		XMLParserProvider.configureLimits(MAX_ELEMENT_DEPTH, MAX_ATTRIBUTE_SIZE);
+	}
+
+	@After
+	public void restoreDefaultLimits() {
+		XMLParserProvider.configureLimits(1000, 1024 * 1024);
+	}
+
+	@Test
+	public void saxParserAcceptsDocumentWithinLimitsTest() throws Exception {
+		ElementCounter counter = new ElementCounter();
+		XMLParserProvider.parse(stream(nestedDocument(MAX_ELEMENT_DEPTH, MAX_ATTRIBUTE_SIZE)), counter);
+		assertEquals(MAX_ELEMENT_DEPTH, counter.elements);
+	}
+
+	@Test
+	public void saxParserRejectsElementDepthAboveLimitTest() throws Exception {
+		try {
+			XMLParserProvider.parse(stream(nestedDocument(MAX_ELEMENT_DEPTH + 1, 1)), new DefaultHandler());
+			fail("The document nested deeper than the maximum element depth was parsed");
+		} catch (SAXException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("maximum element depth of " + MAX_ELEMENT_DEPTH));
+		}
+	}
+
+	@Test
+	public void saxParserRejectsAttributeSizeAboveLimitTest() throws Exception {
+		try {
+			XMLParserProvider.parse(stream(nestedDocument(1, MAX_ATTRIBUTE_SIZE + 1)), new DefaultHandler());
+			fail("The document with an attribute longer than the maximum attribute size was parsed");
+		} catch (SAXException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("maximum attribute size of " + MAX_ATTRIBUTE_SIZE));
+		}
+	}
+
+	@Test
+	public void saxParserDoesNotResolveExternalEntitiesTest() throws Exception {
+		String document = "<?xml version=\"1.0\"?><!DOCTYPE doc [<!ENTITY ext SYSTEM \"file:///etc/passwd\">]>"
+				+ "<doc>&ext;</doc>";
+		final StringBuilder text = new StringBuilder();
+		try {
+			XMLParserProvider.parse(stream(document), new DefaultHandler() {
+				@Override
+				public void characters(char[] ch, int start, int length) {
+					text.append(ch, start, length);
+				}
+			});
+		} catch (SAXException e) {
+			// rejecting the document is also acceptable
+		}
+		assertEquals("The external entity was resolved", "", text.toString());
+	}
+
+	@Test
+	public void saxParserCanBeUsedFromAHandlerTest() throws Exception {
+		final ElementCounter nestedCounter = new ElementCounter();
+		ElementCounter counter = new ElementCounter() {
+			@Override
+			public void startElement(String uri, String localName, String qName, Attributes attributes) throws SAXException {
+				super.startElement(uri, localName, qName, attributes);
+				try {
+					XMLParserProvider.parse(stream(nestedDocument(2, 1)), nestedCounter);
+				} catch (IOException e) {
+					throw new SAXException(e);
+				}
+			}
+		};
+		XMLParserProvider.parse(stream(nestedDocument(3, 1)), counter);
+		assertEquals(3, counter.elements);
+		assertEquals(6, nestedCounter.elements);
+	}
+
+	@Test
+	public void pooledSAXParsersAreSharedBetweenThreadsTest() throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		try {
+			List<Future<Integer>> counts = new ArrayList<Future<Integer>>();
+			for (int i = 0; i < 200; i++) {
+				final int depth = 1 + i % MAX_ELEMENT_DEPTH;
+				counts.add(executor.submit(new Callable<Integer>() {
+					@Override
+					public Integer call() throws Exception {
+						ElementCounter counter = new ElementCounter();
+						XMLParserProvider.parse(stream(nestedDocument(depth, 1)), counter);
+						return counter.elements;
+					}
+				}));
+			}
+			for (int i = 0; i < counts.size(); i++) {
+				assertEquals(1 + i % MAX_ELEMENT_DEPTH, counts.get(i).get().intValue());
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void borrowedReaderAppliesLimitsAndReturnsItsParserToThePoolTest() throws Exception {
+		((BlockingQueue<?>) ReflectionTestUtils.getField(XMLParserProvider.class, "SAX_PARSERS")).clear();
+		XMLReader reader = XMLParserProvider.borrowXMLReader();
+		Object parser = ReflectionTestUtils.getField(reader, "parser");
+		ElementCounter counter = new ElementCounter();
+		reader.setContentHandler(counter);
+		try {
+			reader.parse(new InputSource(stream(nestedDocument(MAX_ELEMENT_DEPTH + 1, 1))));
+			fail("The document nested deeper than the maximum element depth was parsed");
+		} catch (SAXException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("maximum element depth of " + MAX_ELEMENT_DEPTH));
+		} finally {
+			XMLParserProvider.releaseXMLReader(reader);
+		}
+
+		XMLReader nextReader = XMLParserProvider.borrowXMLReader();
+		try {
+			assertSame(parser, ReflectionTestUtils.getField(nextReader, "parser"));
+			// the handlers of the previous caller were dropped with the reset
+			nextReader.parse(new InputSource(stream(nestedDocument(2, 1))));
+			assertEquals(MAX_ELEMENT_DEPTH, counter.elements);
+		} finally {
+			XMLParserProvider.releaseXMLReader(nextReader);
+		}
+	}
+
+	@Test
+	public void staxReaderAcceptsDocumentWithinLimitsTest() throws Exception {
+		assertEquals(MAX_ELEMENT_DEPTH, countStartElements(nestedDocument(MAX_ELEMENT_DEPTH, MAX_ATTRIBUTE_SIZE)));
+	}
+
+	@Test
+	public void staxReaderRejectsElementDepthAboveLimitTest() throws Exception {
+		try {
+			countStartElements(nestedDocument(MAX_ELEMENT_DEPTH + 1, 1));
+			fail("The document nested deeper than the maximum element depth was read");
+		} catch (XMLStreamException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("maximum element depth of " + MAX_ELEMENT_DEPTH));
+		}
+	}
+
+	@Test
+	public void staxReaderRejectsAttributeSizeAboveLimitTest() throws Exception {
+		try {
+			countStartElements(nestedDocument(1, MAX_ATTRIBUTE_SIZE + 1));
+			fail("The document with an attribute longer than the maximum attribute size was read");
+		} catch (XMLStreamException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("maximum attribute size of " + MAX_ATTRIBUTE_SIZE));
+		}
+	}
+
+	@Test
+	public void staxReaderCountsSiblingsAtTheSameDepthTest() throws Exception {
+		StringBuilder document = new StringBuilder("<root>");
+		for (int i = 0; i < MAX_ELEMENT_DEPTH * 10; i++) {
+			document.append("<entry><code>").append(i).append("</code></entry>");
+		}
+		document.append("</root>");
+		XMLStreamReader reader = XMLParserProvider.createXMLStreamReader(stream(document.toString()));
+		try {
+			int codes = 0;
+			while (reader.hasNext()) {
+				if (reader.next() == XMLStreamConstants.START_ELEMENT && "code".equals(reader.getLocalName())) {
+					// getElementText reads up to the end of the element
+					assertEquals(Integer.toString(codes++), reader.getElementText());
+				}
+			}
+			assertEquals(MAX_ELEMENT_DEPTH * 10, codes);
+		} finally {
+			reader.close();
+		}
+	}
+
+	@Test
+	public void staxReaderDoesNotResolveExternalEntitiesTest() throws Exception {
+		String document = "<?xml version=\"1.0\"?><!DOCTYPE doc [<!ENTITY ext SYSTEM \"file:///etc/passwd\">]>"
+				+ "<doc>&ext;</doc>";
+		StringBuilder text = new StringBuilder();
+		try {
+			XMLStreamReader reader = XMLParserProvider.createXMLStreamReader(stream(document));
+			try {
+				while (reader.hasNext()) {
+					if (reader.next() == XMLStreamConstants.CHARACTERS) {
+						text.append(reader.getText());
+					}
+				}
+			} finally {
+				reader.close();
+			}
+		} catch (XMLStreamException e) {
+			// rejecting the document is also acceptable
+		}
+		assertEquals("The external entity was resolved", "", text.toString());
+	}
+
+	private static int countStartElements(String document) throws XMLStreamException {
+		XMLStreamReader reader = XMLParserProvider.createXMLStreamReader(stream(document));
+		try {
+			int elements = 0;
+			while (reader.hasNext()) {
+				if (reader.next() == XMLStreamConstants.START_ELEMENT) {
+					elements++;
+				}
+			}
+			return elements;
+		} finally {
+			reader.close();
+		}
+	}
+
+	private static String nestedDocument(int depth, int attributeSize) {
+		StringBuilder attribute = new StringBuilder();
+		for (int i = 0; i < attributeSize; i++) {
+			attribute.append('a');
+		}
+		StringBuilder document = new StringBuilder();
+		for (int i = 0; i < depth; i++) {
+			document.append("<e value=\"").append(attribute).append("\">");
+		}
+		for (int i = 0; i < depth; i++) {
+			document.append("</e>");
+		}
+		return document.toString();
+	}
+
+	private static InputStream stream(String document) {
+		return new ByteArrayInputStream(document.getBytes(UTF_8));
+	}
+
+	private static class ElementCounter extends DefaultHandler {
+		int elements;
+
+		@Override
+		public void startElement(String uri, String localName, String qName, Attributes attributes) throws SAXException {
+			elements++;
+		}
+	}
+}